@@ -0,0 +1,47 @@
+package io.corbel.lib.rabbitmq.benchmarks;
+
+import java.util.Map;
+
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.MapPropertySource;
+
+import io.corbel.lib.rabbitmq.ioc.AbstractRabbitMQConfiguration;
+
+/**
+ * Library configuration on top of a {@link StubRabbitConnectionFactory}
+ */
+@Configuration
+public class BenchmarkConfiguration extends AbstractRabbitMQConfiguration {
+
+	@Autowired
+	private Environment environment;
+
+	public static AnnotationConfigApplicationContext start(Map<String, Object> properties) {
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+		context.register(BenchmarkConfiguration.class);
+		context.refresh();
+		return context;
+	}
+
+	@Bean
+	public StubRabbitConnectionFactory stubRabbitConnectionFactory() {
+		return new StubRabbitConnectionFactory();
+	}
+
+	@Override
+	protected CachingConnectionFactory createCachingConnectionFactory() {
+		return new CachingConnectionFactory(stubRabbitConnectionFactory());
+	}
+
+	@Override
+	protected Environment getEnvironment() {
+		return environment;
+	}
+
+}
@@ -0,0 +1,109 @@
+package io.corbel.lib.rabbitmq.benchmarks;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+import io.corbel.lib.rabbitmq.converter.JacksonMessageConverter;
+
+/**
+ * Serialization round trip of an event through the message converters. Run with {@code -prof gc} to compare the
+ * allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+	public static class Event implements Serializable {
+
+		private String id = "5f0c8a2e-13b7-4c1d-9d3e-6a2b1c7e8f90";
+		private String type = "resource.updated";
+		private long timestamp = 1431000000000L;
+		private List<String> tags = Arrays.asList("domain", "resource", "update");
+
+		public String getId() {
+			return id;
+		}
+
+		public void setId(String id) {
+			this.id = id;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public void setType(String type) {
+			this.type = type;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public void setTimestamp(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		public List<String> getTags() {
+			return tags;
+		}
+
+		public void setTags(List<String> tags) {
+			this.tags = tags;
+		}
+	}
+
+	@Param({ "simple", "jackson2", "jackson" })
+	private String converterName;
+
+	private MessageConverter converter;
+	private final Event event = new Event();
+
+	@Setup
+	public void setup() {
+		converter = createConverter(converterName);
+	}
+
+	@Benchmark
+	public Object roundTrip() {
+		Message message = converter.toMessage(event, new MessageProperties());
+		return converter.fromMessage(message);
+	}
+
+	protected MessageConverter createConverter(String name) {
+		switch (name) {
+			case "jackson2":
+				return new Jackson2JsonMessageConverter();
+			case "jackson":
+				JacksonMessageConverter jackson = new JacksonMessageConverter();
+				jackson.setTrustedPackages(Event.class.getPackage().getName());
+				return jackson;
+			default:
+				return new SimpleMessageConverter();
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package io.corbel.lib.rabbitmq.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import io.corbel.lib.rabbitmq.config.AmqpConfigurer;
+
+/**
+ * Dispatches messages from the stub channel through a container created by the {@link AmqpConfigurer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+
+	private static final String QUEUE = "benchmark.queue";
+	private static final int MESSAGES = 1000;
+
+	@Param({ "1", "4" })
+	private int consumers;
+
+	private AnnotationConfigApplicationContext context;
+	private StubRabbitConnectionFactory broker;
+	private SimpleMessageListenerContainer container;
+	private volatile CountDownLatch handled;
+	private final byte[] payload = new byte[256];
+
+	@Setup
+	public void setup() throws Exception {
+		context = BenchmarkConfiguration.start(new HashMap<>());
+		broker = context.getBean(StubRabbitConnectionFactory.class);
+		container = context.getBean(AmqpConfigurer.class).listenerContainer(container -> {
+			container.setConcurrentConsumers(consumers);
+			container.setMessageListener((MessageListener) message -> handled.countDown());
+			return container;
+		}, QUEUE);
+		container.afterPropertiesSet();
+		container.start();
+		while (!broker.hasConsumers(QUEUE)) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void resetLatch() {
+		handled = new CountDownLatch(MESSAGES);
+	}
+
+	@TearDown
+	public void tearDown() {
+		container.stop();
+		context.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void dispatch() throws Exception {
+		for (int i = 0; i < MESSAGES; i++) {
+			broker.deliver(QUEUE, payload);
+		}
+		handled.await();
+	}
+
+}
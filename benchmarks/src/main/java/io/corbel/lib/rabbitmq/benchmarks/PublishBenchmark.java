@@ -0,0 +1,60 @@
+package io.corbel.lib.rabbitmq.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Sends through the amqpTemplate bean, with the plain template (batchSize 0) and the batching one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class PublishBenchmark {
+
+	@Param({ "0", "100" })
+	private int batchSize;
+
+	private AnnotationConfigApplicationContext context;
+	private AmqpTemplate template;
+	private final byte[] payload = new byte[256];
+
+	@Setup
+	public void setup() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("rabbitmq.publisher.batchSize", batchSize);
+		context = BenchmarkConfiguration.start(properties);
+		template = context.getBean(AmqpTemplate.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public void convertAndSend() {
+		template.convertAndSend("benchmark.exchange", "benchmark.key", payload);
+	}
+
+}
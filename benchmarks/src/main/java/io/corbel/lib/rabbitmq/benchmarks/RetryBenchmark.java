@@ -0,0 +1,87 @@
+package io.corbel.lib.rabbitmq.benchmarks;
+
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.aop.Advice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.config.AdviceChains;
+import io.corbel.lib.rabbitmq.config.AmqpConfigurer;
+
+/**
+ * Overhead of the retry interceptor built by setRetryOpertations on a successful listener invocation, which is the
+ * common case, compared with a proxy without advices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryBenchmark {
+
+	public interface Listener {
+		void invokeListener(Channel channel, Message message) throws Exception;
+	}
+
+	private AnnotationConfigApplicationContext context;
+	private Listener plain;
+	private Listener withRetry;
+	private final Message message = new Message(new byte[256], new MessageProperties());
+
+	@Setup
+	public void setup() {
+		context = BenchmarkConfiguration.start(new HashMap<>());
+		AmqpConfigurer configurer = context.getBean(AmqpConfigurer.class);
+		SimpleMessageListenerContainer container = configurer.listenerContainer(configurer.setRetryOpertations(
+				Optional.of(3), Optional.empty()), "benchmark.queue");
+		Listener target = (channel, message) -> {};
+		plain = proxy(target, new Advice[0]);
+		withRetry = proxy(target, AdviceChains.get(container));
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public void plain() throws Exception {
+		plain.invokeListener(null, message);
+	}
+
+	@Benchmark
+	public void withRetry() throws Exception {
+		withRetry.invokeListener(null, message);
+	}
+
+	private Listener proxy(Listener target, Advice[] advices) {
+		ProxyFactory factory = new ProxyFactory();
+		for (Advice advice : advices) {
+			factory.addAdvice(advice);
+		}
+		factory.addInterface(Listener.class);
+		factory.setTarget(target);
+		return (Listener) factory.getProxy();
+	}
+
+}
@@ -0,0 +1,121 @@
+package io.corbel.lib.rabbitmq.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Client connection factory whose connections and channels never touch the network. Publishes are counted and
+ * discarded, and {@link #deliver(String, byte[])} pushes messages to the consumers registered with basicConsume, so
+ * the library can be benchmarked without a broker.
+ */
+public class StubRabbitConnectionFactory extends ConnectionFactory {
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicInteger consumerTags = new AtomicInteger();
+	private final Map<String, List<StubConsumer>> consumers = new ConcurrentHashMap<>();
+	private final AtomicLong deliveries = new AtomicLong();
+
+	@Override
+	public Connection newConnection(ExecutorService executor, Address[] addrs) {
+		return newConnection(executor);
+	}
+
+	@Override
+	public Connection newConnection(ExecutorService executor) {
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "createChannel":
+							return newChannel();
+						case "isOpen":
+							return true;
+						default:
+							return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	/**
+	 * Delivers the body to one of the consumers of the queue, in round robin
+	 */
+	public void deliver(String queue, byte[] body) throws Exception {
+		List<StubConsumer> queueConsumers = consumers.get(queue);
+		long deliveryTag = deliveries.incrementAndGet();
+		StubConsumer target = queueConsumers.get((int) (deliveryTag % queueConsumers.size()));
+		target.consumer.handleDelivery(target.tag, new Envelope(deliveryTag, false, "", queue),
+				new BasicProperties(), body);
+	}
+
+	public boolean hasConsumers(String queue) {
+		return !consumers.getOrDefault(queue, new CopyOnWriteArrayList<>()).isEmpty();
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	private Channel newChannel() {
+		AtomicLong publishSeqNo = new AtomicLong(1);
+		return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "basicPublish":
+							published.incrementAndGet();
+							publishSeqNo.incrementAndGet();
+							return null;
+						case "getNextPublishSeqNo":
+							return publishSeqNo.get();
+						case "basicConsume":
+							return consume((String) args[0], (Consumer) args[args.length - 1]);
+						case "isOpen":
+							return true;
+						default:
+							return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	private String consume(String queue, Consumer consumer) {
+		String tag = "stub-" + consumerTags.incrementAndGet();
+		consumers.computeIfAbsent(queue, key -> new CopyOnWriteArrayList<>()).add(new StubConsumer(tag, consumer));
+		consumer.handleConsumeOk(tag);
+		return tag;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	private static class StubConsumer {
+
+		private final String tag;
+		private final Consumer consumer;
+
+		StubConsumer(String tag, Consumer consumer) {
+			this.tag = tag;
+			this.consumer = consumer;
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+package io.corbel.lib.rabbitmq.compression;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+/**
+ * {@link MessageConverter} that compresses the messages created by another converter and decompresses them before
+ * handing them to it.
+ */
+public class CompressingMessageConverter implements MessageConverter {
+
+	private final MessageConverter delegate;
+	private final CompressingPostProcessor compressor;
+	private final DecompressingPostProcessor decompressor;
+
+	public CompressingMessageConverter(MessageConverter delegate, CompressingPostProcessor compressor,
+			DecompressingPostProcessor decompressor) {
+		this.delegate = delegate;
+		this.compressor = compressor;
+		this.decompressor = decompressor;
+	}
+
+	@Override
+	public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+		return compressor.postProcessMessage(delegate.toMessage(object, messageProperties));
+	}
+
+	@Override
+	public Object fromMessage(Message message) throws MessageConversionException {
+		return delegate.fromMessage(decompressor.postProcessMessage(message));
+	}
+
+}
@@ -0,0 +1,69 @@
+package io.corbel.lib.rabbitmq.compression;
+
+import java.io.IOException;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+/**
+ * Compresses the body of the messages bigger than a threshold, and records the compression in their
+ * {@code content-encoding}. Smaller messages are sent as they are, since the compression would cost more than it saves.
+ */
+public class CompressingPostProcessor implements MessagePostProcessor {
+
+	/** Header that makes the Spring AMQP decompressing post processors handle the message */
+	public static final String SPRING_AUTO_DECOMPRESS_HEADER = "springAutoDecompress";
+
+	private final Compression compression;
+	private final int threshold;
+	private final Counter uncompressedBytes;
+	private final Counter compressedBytes;
+
+	public CompressingPostProcessor(Compression compression, int threshold) {
+		this(compression, threshold, MetricsRegistry.NOOP);
+	}
+
+	public CompressingPostProcessor(Compression compression, int threshold, MetricsRegistry metricsRegistry) {
+		this.compression = compression;
+		this.threshold = threshold;
+		this.uncompressedBytes = metricsRegistry.counter(AmqpMetrics.compressionUncompressedBytes(compression
+				.getEncoding()));
+		this.compressedBytes = metricsRegistry.counter(AmqpMetrics.compressionCompressedBytes(compression
+				.getEncoding()));
+	}
+
+	@Override
+	public Message postProcessMessage(Message message) throws AmqpException {
+		MessageProperties properties = message.getMessageProperties();
+		if (message.getBody().length < threshold
+				|| Compression.fromContentEncoding(properties.getContentEncoding()) != null) {
+			return message;
+		}
+		try {
+			byte[] body = compression.compress(message.getBody());
+			uncompressedBytes.add(message.getBody().length);
+			compressedBytes.add(body.length);
+			properties.setContentEncoding(compression.contentEncoding(properties.getContentEncoding()));
+			properties.setContentLength(body.length);
+			properties.setHeader(SPRING_AUTO_DECOMPRESS_HEADER, true);
+			return new Message(body, properties);
+		} catch (IOException e) {
+			throw new AmqpException("Failed to compress message with " + compression.getEncoding(), e);
+		}
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+}
@@ -0,0 +1,132 @@
+package io.corbel.lib.rabbitmq.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression algorithms supported for message bodies, identified by the value written in the
+ * {@code content-encoding} of the message.
+ *
+ * The original encoding of the body is kept after the algorithm as {@code <algorithm>:<original encoding>}, the same
+ * format used by the Spring AMQP compressing post processors, so both can read the messages of the other.
+ */
+public enum Compression {
+
+	GZIP("gzip") {
+		@Override
+		OutputStream compressing(OutputStream output) throws IOException {
+			return new GZIPOutputStream(output);
+		}
+
+		@Override
+		InputStream decompressing(InputStream input) throws IOException {
+			return new GZIPInputStream(input);
+		}
+	},
+	DEFLATE("deflate") {
+		@Override
+		OutputStream compressing(OutputStream output) {
+			return new DeflaterOutputStream(output);
+		}
+
+		@Override
+		InputStream decompressing(InputStream input) {
+			return new InflaterInputStream(input);
+		}
+	};
+
+	private static final char ENCODING_SEPARATOR = ':';
+	private static final int BUFFER_SIZE = 4096;
+
+	private final String encoding;
+
+	Compression(String encoding) {
+		this.encoding = encoding;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public byte[] compress(byte[] body) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(body.length / 4, 32));
+		try (OutputStream compressing = compressing(output)) {
+			compressing.write(body);
+		}
+		return output.toByteArray();
+	}
+
+	public byte[] decompress(byte[] body) throws IOException {
+		return decompress(body, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @throws DecompressedSizeExceededException as soon as the decompressed body grows over maxBytes, so a small body
+	 *         that inflates to gigabytes is never held in memory
+	 */
+	public byte[] decompress(byte[] body, int maxBytes) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(Math.max(body.length * 4, 32), maxBytes));
+		try (InputStream decompressing = decompressing(new ByteArrayInputStream(body))) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = decompressing.read(buffer)) != -1) {
+				if (read > maxBytes - output.size()) {
+					throw new DecompressedSizeExceededException(maxBytes);
+				}
+				output.write(buffer, 0, read);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * @return the content encoding of a body compressed from another with the given encoding
+	 */
+	public String contentEncoding(String originalEncoding) {
+		return originalEncoding != null ? encoding + ENCODING_SEPARATOR + originalEncoding : encoding;
+	}
+
+	/**
+	 * @return the compression used by a body with the given content encoding, or null if it is not compressed
+	 */
+	public static Compression fromContentEncoding(String contentEncoding) {
+		if (contentEncoding != null) {
+			int separator = contentEncoding.indexOf(ENCODING_SEPARATOR);
+			String algorithm = separator >= 0 ? contentEncoding.substring(0, separator) : contentEncoding;
+			for (Compression compression : values()) {
+				if (compression.encoding.equalsIgnoreCase(algorithm.trim())) {
+					return compression;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the encoding of the body before it was compressed, or null if it had none
+	 */
+	public static String originalEncoding(String contentEncoding) {
+		int separator = contentEncoding.indexOf(ENCODING_SEPARATOR);
+		return separator >= 0 ? contentEncoding.substring(separator + 1) : null;
+	}
+
+	public static Compression forName(String name) {
+		Compression compression = fromContentEncoding(name);
+		if (compression == null) {
+			throw new IllegalArgumentException("Unsupported compression " + name);
+		}
+		return compression;
+	}
+
+	abstract OutputStream compressing(OutputStream output) throws IOException;
+
+	abstract InputStream decompressing(InputStream input) throws IOException;
+
+}
@@ -0,0 +1,16 @@
+package io.corbel.lib.rabbitmq.compression;
+
+import java.io.IOException;
+
+/**
+ * The body of a compressed message decompresses to more bytes than allowed
+ */
+public class DecompressedSizeExceededException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DecompressedSizeExceededException(int maxBytes) {
+		super("Decompressed message body exceeds " + maxBytes + " bytes");
+	}
+
+}
@@ -0,0 +1,71 @@
+package io.corbel.lib.rabbitmq.compression;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+/**
+ * Decompresses the messages whose {@code content-encoding} names a {@link Compression}, restoring their original
+ * encoding. Any other message is returned untouched, so it is safe to apply on every received message.
+ *
+ * Messages that decompress to more than the maximum size are rejected without requeue.
+ */
+public class DecompressingPostProcessor implements MessagePostProcessor {
+
+	public static final int DEFAULT_MAX_DECOMPRESSED_BYTES = 64 * 1024 * 1024;
+
+	private final int maxDecompressedBytes;
+	private final Map<Compression, Counter> compressedBytes = new EnumMap<>(Compression.class);
+	private final Map<Compression, Counter> uncompressedBytes = new EnumMap<>(Compression.class);
+
+	public DecompressingPostProcessor() {
+		this(MetricsRegistry.NOOP);
+	}
+
+	public DecompressingPostProcessor(MetricsRegistry metricsRegistry) {
+		this(metricsRegistry, DEFAULT_MAX_DECOMPRESSED_BYTES);
+	}
+
+	public DecompressingPostProcessor(MetricsRegistry metricsRegistry, int maxDecompressedBytes) {
+		this.maxDecompressedBytes = maxDecompressedBytes;
+		for (Compression compression : Compression.values()) {
+			compressedBytes.put(compression, metricsRegistry.counter(AmqpMetrics.decompressionCompressedBytes(
+					compression.getEncoding())));
+			uncompressedBytes.put(compression, metricsRegistry.counter(AmqpMetrics
+					.decompressionUncompressedBytes(compression.getEncoding())));
+		}
+	}
+
+	@Override
+	public Message postProcessMessage(Message message) throws AmqpException {
+		MessageProperties properties = message.getMessageProperties();
+		Compression compression = properties != null ? Compression.fromContentEncoding(properties
+				.getContentEncoding()) : null;
+		if (compression == null) {
+			return message;
+		}
+		try {
+			byte[] body = compression.decompress(message.getBody(), maxDecompressedBytes);
+			compressedBytes.get(compression).add(message.getBody().length);
+			uncompressedBytes.get(compression).add(body.length);
+			properties.setContentEncoding(Compression.originalEncoding(properties.getContentEncoding()));
+			properties.setContentLength(body.length);
+			return new Message(body, properties);
+		} catch (DecompressedSizeExceededException e) {
+			throw new AmqpRejectAndDontRequeueException(e);
+		} catch (IOException e) {
+			throw new AmqpException("Failed to decompress message with " + compression.getEncoding(), e);
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.scheduling.support.TaskUtils;
+
+/**
+ * Adjusts the consumers and prefetch of a {@link SimpleMessageListenerContainer} from the measured handler latency,
+ * idle time and redelivery rate.
+ *
+ * On every adjustment, consumers are added while they are busy most of the interval and removed while they are mostly
+ * idle. The prefetch is sized to hold {@link AdaptiveConcurrencyOptions#getPrefetchBufferMillis()} of work at the
+ * current latency, so slow handlers do not keep many unacked messages in memory.
+ *
+ * The broker applies the prefetch of a consumer when it subscribes, and the container only passes the prefetch count
+ * to the consumers it starts. So a new prefetch, including the halving on redeliveries, only reaches the consumers
+ * added by later adjustments or started by a restart of the container. The ones already running keep theirs.
+ *
+ * The adjustments stop when the container is found stopped, and are scheduled again by the first message handled
+ * after it is started again.
+ */
+public class AdaptiveConcurrency implements MethodInterceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+
+	private static final double HIGH_UTILIZATION = 0.8;
+	private static final double LOW_UTILIZATION = 0.3;
+
+	private final SimpleMessageListenerContainer container;
+	private final AdaptiveConcurrencyOptions options;
+	private final ScheduledExecutorService scheduler;
+
+	private final LongAdder handled = new LongAdder();
+	private final LongAdder redelivered = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+
+	private int consumers;
+	private int prefetch;
+	private long lastAdjustment = System.nanoTime();
+	private volatile ScheduledFuture<?> adjustments;
+
+	/**
+	 * Creates an instance whose adjustments are applied by calling {@link #adjust()}
+	 */
+	public AdaptiveConcurrency(SimpleMessageListenerContainer container, AdaptiveConcurrencyOptions options) {
+		this(container, options, null);
+	}
+
+	/**
+	 * @param scheduler scheduler of the adjustments, every {@link AdaptiveConcurrencyOptions#getIntervalMillis()}
+	 */
+	public AdaptiveConcurrency(SimpleMessageListenerContainer container, AdaptiveConcurrencyOptions options,
+			ScheduledExecutorService scheduler) {
+		this.container = container;
+		this.options = options;
+		this.scheduler = scheduler;
+		this.consumers = options.getMinConsumers();
+		this.prefetch = options.getMinPrefetch();
+		container.setConcurrentConsumers(consumers);
+		container.setPrefetchCount(prefetch);
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		if (scheduler != null && adjustments == null) {
+			schedule();
+		}
+		Object[] arguments = invocation.getArguments();
+		boolean isRedelivered = arguments.length > 1 && arguments[1] instanceof Message
+				&& Boolean.TRUE.equals(((Message) arguments[1]).getMessageProperties().isRedelivered());
+		long start = System.nanoTime();
+		try {
+			return invocation.proceed();
+		} finally {
+			record(System.nanoTime() - start, isRedelivered);
+		}
+	}
+
+	/**
+	 * Schedules the adjustments on the scheduler given on creation, unless they are already scheduled
+	 */
+	public synchronized void schedule() {
+		if (scheduler != null && adjustments == null) {
+			lastAdjustment = System.nanoTime();
+			adjustments = scheduler.scheduleAtFixedRate(TaskUtils.decorateTaskWithErrorHandler(this::adjust,
+					TaskUtils.LOG_AND_SUPPRESS_ERROR_HANDLER, true), options.getIntervalMillis(), options
+					.getIntervalMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Applies the adjustment for the statistics gathered since the previous call.
+	 */
+	public void adjust() {
+		adjust(System.nanoTime());
+	}
+
+	void record(long nanos, boolean isRedelivered) {
+		if (isRedelivered) {
+			redelivered.increment();
+		}
+		busyNanos.add(nanos);
+		handled.increment();
+	}
+
+	synchronized void adjust(long now) {
+		long elapsed = now - lastAdjustment;
+		lastAdjustment = now;
+		long count = handled.sumThenReset();
+		long redeliveredCount = redelivered.sumThenReset();
+		long busy = busyNanos.sumThenReset();
+		if (!container.isRunning()) {
+			if (adjustments != null) {
+				adjustments.cancel(false);
+				adjustments = null;
+			}
+			return;
+		}
+		if (elapsed <= 0) {
+			return;
+		}
+
+		double utilization = (double) busy / (elapsed * consumers);
+		double redeliveryRate = count > 0 ? (double) redeliveredCount / count : 0;
+		int newConsumers = consumers;
+		int newPrefetch = prefetch;
+
+		if (count == 0 || utilization < LOW_UTILIZATION) {
+			newConsumers = Math.max(options.getMinConsumers(), consumers - 1);
+		} else if (utilization > HIGH_UTILIZATION && redeliveryRate <= options.getMaxRedeliveryRate()) {
+			newConsumers = Math.min(options.getMaxConsumers(), consumers + 1);
+		}
+
+		if (redeliveryRate > options.getMaxRedeliveryRate()) {
+			newPrefetch = prefetch / 2;
+		} else if (count > 0) {
+			double latencyMillis = busy / 1_000_000.0 / count;
+			newPrefetch = (int) Math.ceil(options.getPrefetchBufferMillis() / Math.max(latencyMillis, 0.001));
+		}
+		newPrefetch = Math.max(options.getMinPrefetch(), Math.min(options.getMaxPrefetch(), newPrefetch));
+
+		if (newPrefetch != prefetch) {
+			prefetch = newPrefetch;
+			container.setPrefetchCount(prefetch);
+		}
+		if (newConsumers != consumers) {
+			LOG.debug("Adjusting consumers of {} from {} to {} (utilization: {}, redelivery rate: {}, prefetch: {})",
+					Arrays.toString(container.getQueueNames()), consumers, newConsumers, utilization, redeliveryRate, prefetch);
+			consumers = newConsumers;
+			container.setConcurrentConsumers(consumers);
+		}
+	}
+
+	public synchronized int getConsumers() {
+		return consumers;
+	}
+
+	public synchronized int getPrefetch() {
+		return prefetch;
+	}
+
+}
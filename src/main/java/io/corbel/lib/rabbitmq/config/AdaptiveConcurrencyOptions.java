@@ -0,0 +1,76 @@
+package io.corbel.lib.rabbitmq.config;
+
+public class AdaptiveConcurrencyOptions {
+
+	private int minConsumers = 1;
+	private int maxConsumers = 10;
+	private int minPrefetch = 1;
+	private int maxPrefetch = 250;
+	private long prefetchBufferMillis = 1000;
+	private double maxRedeliveryRate = 0.1;
+	private long intervalMillis = 5000;
+
+	public int getMinConsumers() {
+		return minConsumers;
+	}
+
+	public void setMinConsumers(int minConsumers) {
+		this.minConsumers = minConsumers;
+	}
+
+	public int getMaxConsumers() {
+		return maxConsumers;
+	}
+
+	public void setMaxConsumers(int maxConsumers) {
+		this.maxConsumers = maxConsumers;
+	}
+
+	public int getMinPrefetch() {
+		return minPrefetch;
+	}
+
+	public void setMinPrefetch(int minPrefetch) {
+		this.minPrefetch = minPrefetch;
+	}
+
+	public int getMaxPrefetch() {
+		return maxPrefetch;
+	}
+
+	public void setMaxPrefetch(int maxPrefetch) {
+		this.maxPrefetch = maxPrefetch;
+	}
+
+	/**
+	 * Handler time worth of messages each consumer keeps prefetched. The prefetch count is derived from it and the
+	 * measured handler latency.
+	 */
+	public long getPrefetchBufferMillis() {
+		return prefetchBufferMillis;
+	}
+
+	public void setPrefetchBufferMillis(long prefetchBufferMillis) {
+		this.prefetchBufferMillis = prefetchBufferMillis;
+	}
+
+	/**
+	 * Ratio of redelivered messages above which consumers are not added and prefetch is reduced.
+	 */
+	public double getMaxRedeliveryRate() {
+		return maxRedeliveryRate;
+	}
+
+	public void setMaxRedeliveryRate(double maxRedeliveryRate) {
+		this.maxRedeliveryRate = maxRedeliveryRate;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public void setIntervalMillis(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+	}
+
+}
@@ -0,0 +1,35 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.Arrays;
+
+import org.aopalliance.aop.Advice;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+
+/**
+ * Helpers to combine several advices around the listener of a {@link SimpleMessageListenerContainer}, which only
+ * offers a setter for the whole chain.
+ */
+public final class AdviceChains {
+
+	private static final String ADVICE_CHAIN_FIELD = "adviceChain";
+
+	private AdviceChains() {}
+
+	/**
+	 * Adds the advice at the end of the chain, so it runs inside the advices already present.
+	 */
+	public static SimpleMessageListenerContainer append(SimpleMessageListenerContainer container, Advice advice) {
+		Advice[] current = get(container);
+		Advice[] chain = Arrays.copyOf(current, current.length + 1);
+		chain[current.length] = advice;
+		container.setAdviceChain(chain);
+		return container;
+	}
+
+	public static Advice[] get(SimpleMessageListenerContainer container) {
+		Advice[] chain = (Advice[]) new DirectFieldAccessor(container).getPropertyValue(ADVICE_CHAIN_FIELD);
+		return chain != null ? chain : new Advice[0];
+	}
+
+}
@@ -1,5 +1,8 @@
 package io.corbel.lib.rabbitmq.config;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Executor;
@@ -7,18 +10,37 @@ import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding.DestinationType;
 import org.springframework.amqp.core.Exchange;
 import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder;
 import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder.StatelessRetryInterceptorBuilder;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
 import org.springframework.amqp.rabbit.retry.RejectAndDontRequeueRecoverer;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
 import org.springframework.retry.interceptor.RetryOperationsInterceptor;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
 import org.springframework.util.ErrorHandler;
 
+import io.corbel.lib.rabbitmq.listener.BatchMessageListener;
+import io.corbel.lib.rabbitmq.listener.PartitionedMessageListenerAdapter;
+import io.corbel.lib.rabbitmq.listener.ReplyingMessageListener;
+import io.corbel.lib.rabbitmq.listener.RequestHandler;
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.RetryMetricsListener;
+import io.corbel.lib.rabbitmq.publisher.ConfirmingPublisher;
+import io.corbel.lib.rabbitmq.reactive.PublishingSubscriber;
+import io.corbel.lib.rabbitmq.reactive.QueuePublisher;
+
 public interface AmqpConfigurer {
 
 	TopicExchange topicExchange(String name, UnaryOperator<Exchange> modifier);
@@ -45,6 +67,12 @@ public interface AmqpConfigurer {
 		return queue(name, null);
 	}
 
+	/**
+	 * Declares a {@link ShardedQueue}: a consistent hash exchange with the given name, which requires the
+	 * rabbitmq_consistent_hash_exchange plugin, and the given number of shard queues bound to it with the same weight.
+	 */
+	ShardedQueue shardedQueue(String name, int shards, Function<Queue, Queue>... modifiers);
+
 	void bind(final String exchangeName, final String destination, final DestinationType destinationType,
 			Optional<String> routingKey, Optional<Map<String, Object>> arguments);
 
@@ -61,37 +89,231 @@ public interface AmqpConfigurer {
 
 	UnaryOperator<Queue> setTimeToLive(int milliseconds);
 
+	/**
+	 * Keeps the messages of the queue on disk instead of in memory, trading latency for a bounded broker memory
+	 */
+	UnaryOperator<Queue> setLazyMode();
+
+	UnaryOperator<Queue> setQueueType(QueueType queueType);
+
+	/**
+	 * Limits the number of ready messages of the queue, applying the overflow policy when it is reached
+	 */
+	UnaryOperator<Queue> setMaxLength(int maxLength);
+
+	/**
+	 * Limits the total size of the bodies of the ready messages of the queue, applying the overflow policy when it is
+	 * reached
+	 */
+	UnaryOperator<Queue> setMaxLengthBytes(long maxLengthBytes);
+
+	UnaryOperator<Queue> setOverflow(OverflowPolicy overflowPolicy);
+
+	/**
+	 * Delivers the messages of the queue to a single consumer at a time, failing over to another one if it is cancelled
+	 */
+	UnaryOperator<Queue> setSingleActiveConsumer();
+
+	/**
+	 * Makes the queue a priority queue, delivering first the messages with the highest priority property, from 0 up
+	 * to maxPriority. The broker keeps a sub-queue per priority, so keep it low, usually below 10.
+	 */
+	UnaryOperator<Queue> setMaxPriority(int maxPriority);
+
+	/**
+	 * @return the registry where the listener containers and retry interceptors report their metrics
+	 */
+	MetricsRegistry metricsRegistry();
+
+	/**
+	 * @return the executor shared by the listener containers that are created without an explicit one. By default a
+	 *         new single thread executor for each container.
+	 */
+	default Executor consumerExecutor() {
+		return Executors.newSingleThreadExecutor();
+	}
+
 	SimpleMessageListenerContainer listenerContainer(Executor executor,
 			UnaryOperator<SimpleMessageListenerContainer> modifier, String... queueNames);
 
 	default SimpleMessageListenerContainer listenerContainer(UnaryOperator<SimpleMessageListenerContainer> modifier,
 			String... queueNames) {
-		return listenerContainer(Executors.newSingleThreadExecutor(), modifier, queueNames);
+		return listenerContainer(consumerExecutor(), modifier, queueNames);
 	}
 
 	default SimpleMessageListenerContainer listenerContainer(String... queueNames) {
-		return listenerContainer(Executors.newSingleThreadExecutor(), null, queueNames);
+		return listenerContainer(consumerExecutor(), null, queueNames);
 	}
 
 	default SimpleMessageListenerContainer listenerContainer(Executor executor, String... queueNames) {
 		return listenerContainer(executor, null, queueNames);
 	}
 
+	/**
+	 * Creates a container for each shard of the queue, each one with a single exclusive consumer. When every instance
+	 * of an application creates them, each shard is consumed by one instance at a time, and the shards of an instance
+	 * that leaves are claimed by the others when their containers retry the consumption, every
+	 * {@link ShardedQueue#STANDBY_RECOVERY_INTERVAL_MILLIS} unless the modifier sets another recovery interval.
+	 */
+	default List<SimpleMessageListenerContainer> shardListenerContainers(ShardedQueue shardedQueue,
+			UnaryOperator<SimpleMessageListenerContainer> modifier) {
+		return shardListenerContainers(shardedQueue.getShardQueueNames(), modifier);
+	}
+
+	default List<SimpleMessageListenerContainer> shardListenerContainers(List<String> shardQueueNames,
+			UnaryOperator<SimpleMessageListenerContainer> modifier) {
+		List<SimpleMessageListenerContainer> containers = new ArrayList<>(shardQueueNames.size());
+		for (String shardQueueName : shardQueueNames) {
+			containers.add(listenerContainer((SimpleMessageListenerContainer container) -> {
+				container.setExclusive(true);
+				container.setConcurrentConsumers(1);
+				container.setRecoveryInterval(ShardedQueue.STANDBY_RECOVERY_INTERVAL_MILLIS);
+				return modifier != null ? modifier.apply(container) : container;
+			}, shardQueueName));
+		}
+		return containers;
+	}
+
 	UnaryOperator<SimpleMessageListenerContainer> setRetryOpertations(RetryOperationsInterceptor interceptor);
 
 	UnaryOperator<SimpleMessageListenerContainer> setErrorHandler(ErrorHandler errorHandler);
 
+	/**
+	 * Adjusts consumers and prefetch of the container at runtime within the bounds of the options. A new prefetch only
+	 * reaches the consumers started after it, see {@link AdaptiveConcurrency}.
+	 */
+	UnaryOperator<SimpleMessageListenerContainer> adaptiveConcurrency(AdaptiveConcurrencyOptions options);
+
+	/**
+	 * Delivers the messages of the container to the listener in batches of up to batchSize messages, or the ones
+	 * received within batchTimeoutMillis, and acknowledges each batch at once
+	 */
+	UnaryOperator<SimpleMessageListenerContainer> batchListener(BatchMessageListener listener, int batchSize,
+			long batchTimeoutMillis);
+
+	/**
+	 * Handles the messages of the container in the given number of lanes, keeping the order of the messages with the
+	 * same partition key, see {@link PartitionedMessageListenerAdapter#headerKey(String)} and
+	 * {@link PartitionedMessageListenerAdapter#routingKey()}
+	 */
+	UnaryOperator<SimpleMessageListenerContainer> partitionedListener(MessageListener listener, int lanes,
+			Function<Message, Object> partitionKey);
+
+	/**
+	 * Stops the consumption of the container while the failure or slow call rate of its listener is over the
+	 * thresholds of the options, probing it periodically to resume, and reports the state changes to the listener
+	 */
+	UnaryOperator<SimpleMessageListenerContainer> circuitBreaker(CircuitBreakerOptions options,
+			CircuitBreakerListener listener);
+
+	default UnaryOperator<SimpleMessageListenerContainer> circuitBreaker(CircuitBreakerOptions options) {
+		return circuitBreaker(options, null);
+	}
+
+	/**
+	 * Replies to the requests received by the container with the result of the handler, sent to the reply-to address
+	 * of each request with its correlation id, as a {@link io.corbel.lib.rabbitmq.publisher.DirectReplyToClient}
+	 * expects
+	 */
+	default UnaryOperator<SimpleMessageListenerContainer> replyingListener(RequestHandler handler) {
+		return (SimpleMessageListenerContainer container) -> {
+			container.setMessageListener(new ReplyingMessageListener(handler));
+			return container;
+		};
+	}
+
+	default SimpleMessageListenerContainer replyingListenerContainer(RequestHandler handler, String... queueNames) {
+		return listenerContainer(replyingListener(handler), queueNames);
+	}
+
+	/**
+	 * Reactive Streams publisher of the messages of the queue, where the demand of each subscriber bounds the prefetch
+	 * of its consumer, up to maxPrefetch. With {@link AcknowledgeMode#AUTO} messages are acknowledged once the
+	 * subscriber handles them, with {@link AcknowledgeMode#MANUAL} the subscriber acknowledges them.
+	 */
+	QueuePublisher queuePublisher(String queueName, AcknowledgeMode acknowledgeMode, int maxPrefetch);
+
+	default QueuePublisher queuePublisher(String queueName) {
+		return queuePublisher(queueName, AcknowledgeMode.AUTO, QueuePublisher.DEFAULT_MAX_PREFETCH);
+	}
+
+	/**
+	 * Reactive Streams subscriber that publishes the messages to the exchange, with the routing key computed for each
+	 * message, keeping at most maxInFlight of them unconfirmed
+	 */
+	default PublishingSubscriber publishingSubscriber(ConfirmingPublisher publisher, String exchange,
+			Function<Message, String> routingKey, int maxInFlight) {
+		return new PublishingSubscriber(publisher, exchange, routingKey, maxInFlight);
+	}
+
+	/**
+	 * Acknowledges without calling the listener the messages whose key, see {@link DeduplicationAdvice#messageId()}
+	 * and {@link DeduplicationAdvice#header(String)}, was already handled within the last ttlMillis, remembering up to
+	 * capacity keys
+	 */
+	UnaryOperator<SimpleMessageListenerContainer> deduplicate(Function<Message, String> key, int capacity,
+			long ttlMillis);
+
+	/**
+	 * Runs the listener of the container within a slot shared with all the containers scheduled by the configurer.
+	 * While the slots are all taken, they go first to the containers of the highest priority, and among the ones with
+	 * the same priority, each scheduling class, such as a tenant, gets a share of the handling time proportional to
+	 * its weight. Containers with the same scheduling class share its share.
+	 */
+	UnaryOperator<SimpleMessageListenerContainer> fairScheduling(String schedulingClass, int weight, int priority);
+
+	default UnaryOperator<SimpleMessageListenerContainer> fairScheduling(String schedulingClass, int weight) {
+		return fairScheduling(schedulingClass, weight, 0);
+	}
+
 	default UnaryOperator<SimpleMessageListenerContainer> setRetryOpertations(Optional<Integer> maxAttempts,
 			Optional<BackoffOptions> backoffOptions) {
-		StatelessRetryInterceptorBuilder builder = RetryInterceptorBuilder.stateless();
+		RetryTemplate retryTemplate = new RetryTemplate();
+		SimpleRetryPolicy retryPolicy = new SimpleRetryPolicy();
 		if (maxAttempts.isPresent()) {
-			builder.maxAttempts(maxAttempts.get());
+			retryPolicy.setMaxAttempts(maxAttempts.get());
 		}
+		retryTemplate.setRetryPolicy(retryPolicy);
 		if (backoffOptions.isPresent()) {
 			BackoffOptions options = backoffOptions.get();
-			builder.backOffOptions(options.getInitialInterval(), options.getMultiplier(), options.getMaxInterval());
+			ExponentialBackOffPolicy backOffPolicy = new ExponentialBackOffPolicy();
+			backOffPolicy.setInitialInterval(options.getInitialInterval());
+			backOffPolicy.setMultiplier(options.getMultiplier());
+			backOffPolicy.setMaxInterval(options.getMaxInterval());
+			retryTemplate.setBackOffPolicy(backOffPolicy);
 		}
-		builder.recoverer(new RejectAndDontRequeueRecoverer());
+		retryTemplate.registerListener(new RetryMetricsListener(metricsRegistry()));
+
+		StatelessRetryInterceptorBuilder builder = RetryInterceptorBuilder.stateless();
+		builder.retryOperations(retryTemplate);
+		MessageRecoverer recoverer = new RejectAndDontRequeueRecoverer();
+		Counter deadLettered = metricsRegistry().counter(AmqpMetrics.DEAD_LETTERED);
+		builder.recoverer((message, cause) -> {
+			deadLettered.increment();
+			recoverer.recover(message, cause);
+		});
 		return setRetryOpertations(builder.build());
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Retries the failed messages of the queue through the broker instead of sleeping on the consumer thread. A retry
+	 * queue is declared for each distinct backoff delay, with that delay as TTL, and expired messages are dead lettered
+	 * back to the queue. Consumers keep handling other messages while the failed ones wait.
+	 */
+	default UnaryOperator<SimpleMessageListenerContainer> setDelayedRetry(String queueName, int maxAttempts,
+			BackoffOptions backoffOptions) {
+		List<Long> delays = DelayedRetryAdvice.retryDelays(maxAttempts, backoffOptions);
+		String retryExchange = queueName + ".retry";
+		String requeueExchange = queueName + ".retry.requeue";
+		topicExchange(retryExchange);
+		fanoutExchange(requeueExchange);
+		bind(requeueExchange, queueName, DestinationType.QUEUE, Optional.empty(), Optional.empty());
+		for (Long delay : new LinkedHashSet<>(delays)) {
+			Queue retryQueue = queue(retryExchange + "." + delay, setTimeToLive(delay.intValue()),
+					setDeadLetterExchange(requeueExchange));
+			bind(retryExchange, retryQueue, Optional.of(String.valueOf(delay)), Optional.empty());
+		}
+		DelayedRetryAdvice advice = new DelayedRetryAdvice(retryExchange, delays, metricsRegistry());
+		return (SimpleMessageListenerContainer container) -> AdviceChains.append(container, advice);
+	}
+}
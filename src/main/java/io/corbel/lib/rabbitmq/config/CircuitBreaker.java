@@ -0,0 +1,189 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.scheduling.support.TaskUtils;
+
+/**
+ * Stops the consumption of a {@link SimpleMessageListenerContainer} while its listener keeps failing, so messages
+ * stay in the queue instead of being retried and dead lettered while a dependency is down.
+ *
+ * Calls are evaluated in windows of {@link CircuitBreakerOptions#getWindowSize()} calls. When the rate of failed or
+ * slow calls of a window reaches its threshold the circuit opens and the container is stopped, returning its
+ * unacknowledged messages to the queue. After {@link CircuitBreakerOptions#getOpenMillis()} the container is started
+ * again with a few consumers to probe the listener, and it recovers its consumers when the probe calls succeed, or
+ * opens again otherwise.
+ *
+ * The container is stopped and started from the given scheduler, since a consumer thread can not stop its own
+ * container. It is only started again if it was the circuit breaker that stopped it, and never after
+ * {@link #shutdown()}.
+ */
+public class CircuitBreaker implements MethodInterceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final SimpleMessageListenerContainer container;
+	private final CircuitBreakerOptions options;
+	private final ScheduledExecutorService scheduler;
+	private final CircuitBreakerListener listener;
+	private final List<ScheduledFuture<?>> pending = new CopyOnWriteArrayList<>();
+
+	private State state = State.CLOSED;
+	private boolean stoppedContainer;
+	private boolean shutdown;
+	private int calls;
+	private int failures;
+	private int slowCalls;
+	private int consumers;
+
+	public CircuitBreaker(SimpleMessageListenerContainer container, CircuitBreakerOptions options,
+			ScheduledExecutorService scheduler, CircuitBreakerListener listener) {
+		this.container = container;
+		this.options = options;
+		this.scheduler = scheduler;
+		this.listener = listener;
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Object result = invocation.proceed();
+			failed = false;
+			return result;
+		} finally {
+			record(failed, System.nanoTime() - start);
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Cancels the pending stop and restart of the container
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		pending.forEach(future -> future.cancel(false));
+		pending.clear();
+	}
+
+	synchronized void record(boolean failed, long nanos) {
+		if (state == State.OPEN) {
+			// Messages still handled by the consumers being stopped
+			return;
+		}
+		calls++;
+		if (failed) {
+			failures++;
+		}
+		if (options.getSlowCallMillis() > 0 && TimeUnit.NANOSECONDS.toMillis(nanos) >= options.getSlowCallMillis()) {
+			slowCalls++;
+		}
+		int window = state == State.HALF_OPEN ? options.getProbeCalls() : options.getWindowSize();
+		if (calls < window) {
+			return;
+		}
+		double failureRate = (double) failures / calls;
+		double slowCallRate = (double) slowCalls / calls;
+		resetWindow();
+		if (failureRate >= options.getFailureRateThreshold()
+				|| (options.getSlowCallMillis() > 0 && slowCallRate >= options.getSlowCallRateThreshold())) {
+			LOG.warn("Opening circuit of listener for queues {}: failure rate {}, slow call rate {}", Arrays
+					.toString(container.getQueueNames()), failureRate, slowCallRate);
+			open();
+		} else if (state == State.HALF_OPEN) {
+			close();
+		}
+	}
+
+	private void open() {
+		if (state == State.CLOSED) {
+			consumers = (Integer) new DirectFieldAccessor(container).getPropertyValue("concurrentConsumers");
+		}
+		transition(State.OPEN);
+		schedule(this::stopContainer, 0);
+		schedule(this::halfOpen, options.getOpenMillis());
+	}
+
+	private void stopContainer() {
+		synchronized (this) {
+			// Not running when the application stopped it before the circuit opened
+			stoppedContainer = container.isRunning();
+		}
+		// Outside the lock, as it waits for the consumers, which record their last calls
+		container.stop();
+	}
+
+	private void halfOpen() {
+		int probeConsumers;
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			if (!stoppedContainer) {
+				LOG.info("Closing circuit of listener for queues {} without starting it, it was stopped externally",
+						Arrays.toString(container.getQueueNames()));
+				transition(State.CLOSED);
+				return;
+			}
+			transition(State.HALF_OPEN);
+			probeConsumers = Math.min(options.getProbeConsumers(), consumers);
+		}
+		container.setConcurrentConsumers(probeConsumers);
+		container.start();
+	}
+
+	private void close() {
+		transition(State.CLOSED);
+		int restoredConsumers = consumers;
+		schedule(() -> container.setConcurrentConsumers(restoredConsumers), 0);
+	}
+
+	private void transition(State to) {
+		State from = state;
+		state = to;
+		resetWindow();
+		if (listener != null) {
+			try {
+				listener.onStateChange(container, from, to);
+			} catch (RuntimeException e) {
+				LOG.error("Circuit breaker listener failed", e);
+			}
+		}
+	}
+
+	private void schedule(Runnable task, long delayMillis) {
+		if (shutdown) {
+			return;
+		}
+		pending.removeIf(Future::isDone);
+		pending.add(scheduler.schedule(TaskUtils.decorateTaskWithErrorHandler(task,
+				TaskUtils.LOG_AND_SUPPRESS_ERROR_HANDLER, false), delayMillis, TimeUnit.MILLISECONDS));
+	}
+
+	private void resetWindow() {
+		calls = 0;
+		failures = 0;
+		slowCalls = 0;
+	}
+
+}
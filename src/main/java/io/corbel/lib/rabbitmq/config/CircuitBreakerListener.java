@@ -0,0 +1,15 @@
+package io.corbel.lib.rabbitmq.config;
+
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import io.corbel.lib.rabbitmq.config.CircuitBreaker.State;
+
+/**
+ * Receives the state changes of the {@link CircuitBreaker} of a listener container
+ */
+@FunctionalInterface
+public interface CircuitBreakerListener {
+
+	void onStateChange(SimpleMessageListenerContainer container, State from, State to);
+
+}
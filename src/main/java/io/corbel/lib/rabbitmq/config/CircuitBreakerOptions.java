@@ -0,0 +1,69 @@
+package io.corbel.lib.rabbitmq.config;
+
+public class CircuitBreakerOptions {
+
+	private double failureRateThreshold = 0.5;
+	private long slowCallMillis = 0;
+	private double slowCallRateThreshold = 0.5;
+	private int windowSize = 50;
+	private long openMillis = 30000;
+	private int probeConsumers = 1;
+	private int probeCalls = 10;
+
+	public double getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public void setFailureRateThreshold(double failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	public long getSlowCallMillis() {
+		return slowCallMillis;
+	}
+
+	public void setSlowCallMillis(long slowCallMillis) {
+		this.slowCallMillis = slowCallMillis;
+	}
+
+	public double getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public long getOpenMillis() {
+		return openMillis;
+	}
+
+	public void setOpenMillis(long openMillis) {
+		this.openMillis = openMillis;
+	}
+
+	public int getProbeConsumers() {
+		return probeConsumers;
+	}
+
+	public void setProbeConsumers(int probeConsumers) {
+		this.probeConsumers = probeConsumers;
+	}
+
+	public int getProbeCalls() {
+		return probeCalls;
+	}
+
+	public void setProbeCalls(int probeCalls) {
+		this.probeCalls = probeCalls;
+	}
+
+}
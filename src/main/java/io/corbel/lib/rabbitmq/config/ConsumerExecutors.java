@@ -0,0 +1,83 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Factory of the executors shared by the listener containers created by {@link RabbitMQConfigurer}.
+ *
+ * Each consumer of a {@link org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer} blocks a thread
+ * for as long as it is running, so the pool keeps one thread per core alive and grows on demand, without limit unless
+ * a maximum is set. Threads of stopped containers are reused by the next ones instead of being leaked.
+ */
+public final class ConsumerExecutors {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConsumerExecutors.class);
+
+	/** Unbounded, as a consumer that finds no thread cannot start */
+	public static final int DEFAULT_MAX_THREADS = Integer.MAX_VALUE;
+
+	private static final String THREAD_NAME_PREFIX = "rabbitmq-consumer-";
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private ConsumerExecutors() {}
+
+	/**
+	 * @return a pool shared by the containers, which grows with their consumers without limit, see
+	 *         {@link #boundedPool(int)} to set a maximum
+	 */
+	public static ExecutorService sharedPool() {
+		return boundedPool(DEFAULT_MAX_THREADS);
+	}
+
+	/**
+	 * @param maxThreads maximum number of consumers running at the same time in all the containers. Starting one
+	 *        more fails with a {@link RejectedExecutionException}.
+	 */
+	public static ExecutorService boundedPool(int maxThreads) {
+		int coreThreads = Math.min(Runtime.getRuntime().availableProcessors(), maxThreads);
+		return new ThreadPoolExecutor(coreThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), new CustomizableThreadFactory(THREAD_NAME_PREFIX), (task, executor) -> {
+					throw new RejectedExecutionException("All the " + maxThreads
+							+ " consumer threads are in use, raise rabbitmq.consumer.maxThreads to run more consumers");
+				});
+	}
+
+	/**
+	 * @return an executor that runs each consumer in its own virtual thread, or empty when the JVM does not support
+	 *         them (before JDK 21)
+	 */
+	public static Optional<ExecutorService> virtualThreads() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return Optional.of((ExecutorService) factory.invoke(null));
+		} catch (ReflectiveOperationException e) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return the virtual threads executor when requested and available, the bounded pool otherwise
+	 */
+	public static ExecutorService create(boolean useVirtualThreads, int maxThreads) {
+		if (useVirtualThreads) {
+			Optional<ExecutorService> executor = virtualThreads();
+			if (executor.isPresent()) {
+				return executor.get();
+			}
+			LOG.warn("Virtual threads are not supported by this JVM, using a bounded pool of {} threads", maxThreads);
+		}
+		return boundedPool(maxThreads);
+	}
+
+}
@@ -0,0 +1,180 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Binding.DestinationType;
+import org.springframework.amqp.core.Exchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.support.RabbitExceptionTranslator;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Keeps the topology declared through the {@link AmqpConfigurer}, so identical declarations are only sent once to the
+ * broker, and the whole topology can be declared in a single pass on one channel.
+ *
+ * The pass uses the no-wait variants of the declarations followed by one synchronous method, so it costs a single
+ * round trip regardless of the number of declarations. Since declarations are idempotent, the topology is declared
+ * again the same way when the connection is recovered.
+ */
+public class DeclarationRegistry implements ConnectionListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DeclarationRegistry.class);
+
+	private final Map<String, Definition<Exchange>> exchanges = new LinkedHashMap<>();
+	private final Map<String, Definition<Queue>> queues = new LinkedHashMap<>();
+	private final Map<String, Definition<Binding>> bindings = new LinkedHashMap<>();
+
+	private final LongAdder immediateDeclarationNanos = new LongAdder();
+
+	private volatile boolean reconnecting;
+	private volatile long lastDeclarationMillis;
+	private volatile int lastDeclarationCount;
+
+	/**
+	 * @return true when the exchange was not registered before or its definition changed
+	 */
+	public synchronized boolean register(Exchange exchange) {
+		return register(exchanges, exchange.getName(), exchange, Arrays.asList(exchange.getType(), exchange
+				.isDurable(), exchange.isAutoDelete(), copy(exchange.getArguments())));
+	}
+
+	public synchronized boolean register(Queue queue) {
+		return register(queues, queue.getName(), queue, Arrays.asList(queue.isDurable(), queue.isExclusive(), queue
+				.isAutoDelete(), copy(queue.getArguments())));
+	}
+
+	public synchronized boolean register(Binding binding) {
+		String key = String.join("|", binding.getExchange(), binding.getDestinationType().name(), binding
+				.getDestination(), binding.getRoutingKey());
+		return register(bindings, key, binding, Arrays.asList(copy(binding.getArguments())));
+	}
+
+	/**
+	 * Declares all the registered exchanges, queues and bindings, in that order, on a single channel.
+	 */
+	public void declareAll(ConnectionFactory connectionFactory) {
+		Connection connection = connectionFactory.createConnection();
+		declareAll(connection);
+	}
+
+	public synchronized void declareAll(Connection connection) {
+		long start = System.nanoTime();
+		Channel channel = connection.createChannel(false);
+		try {
+			for (Definition<Exchange> definition : exchanges.values()) {
+				Exchange exchange = definition.declarable;
+				channel.exchangeDeclareNoWait(exchange.getName(), exchange.getType(), exchange.isDurable(), exchange
+						.isAutoDelete(), false, exchange.getArguments());
+			}
+			for (Definition<Queue> definition : queues.values()) {
+				Queue queue = definition.declarable;
+				channel.queueDeclareNoWait(queue.getName(), queue.isDurable(), queue.isExclusive(), queue
+						.isAutoDelete(), queue.getArguments());
+			}
+			for (Definition<Binding> definition : bindings.values()) {
+				Binding binding = definition.declarable;
+				if (binding.getDestinationType() == DestinationType.QUEUE) {
+					channel.queueBindNoWait(binding.getDestination(), binding.getExchange(), binding.getRoutingKey(),
+							binding.getArguments());
+				} else {
+					channel.exchangeBindNoWait(binding.getDestination(), binding.getExchange(), binding
+							.getRoutingKey(), binding.getArguments());
+				}
+			}
+			// The broker handles the methods of a channel in order, so this fails if any declaration failed
+			channel.basicQos(0);
+		} catch (IOException e) {
+			throw RabbitExceptionTranslator.convertRabbitAccessException(e);
+		} finally {
+			RabbitUtils.closeChannel(channel);
+		}
+		lastDeclarationCount = exchanges.size() + queues.size() + bindings.size();
+		lastDeclarationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		LOG.info("Declared {} exchanges, {} queues and {} bindings in {} ms", exchanges.size(), queues.size(),
+				bindings.size(), lastDeclarationMillis);
+	}
+
+	@Override
+	public void onCreate(Connection connection) {
+		if (reconnecting) {
+			reconnecting = false;
+			try {
+				declareAll(connection);
+			} catch (RuntimeException e) {
+				LOG.error("Unable to declare topology after reconnection", e);
+			}
+		}
+	}
+
+	@Override
+	public void onClose(Connection connection) {
+		reconnecting = true;
+	}
+
+	/**
+	 * Records the time spent on a declaration sent to the broker on its own, outside {@link #declareAll(Connection)}
+	 */
+	public void recordImmediateDeclaration(long nanos) {
+		immediateDeclarationNanos.add(nanos);
+	}
+
+	public long getImmediateDeclarationMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(immediateDeclarationNanos.sum());
+	}
+
+	public long getLastDeclarationMillis() {
+		return lastDeclarationMillis;
+	}
+
+	public int getLastDeclarationCount() {
+		return lastDeclarationCount;
+	}
+
+	public synchronized int size() {
+		return exchanges.size() + queues.size() + bindings.size();
+	}
+
+	private <T> boolean register(Map<String, Definition<T>> registry, String key, T declarable, List<Object> signature) {
+		Definition<T> previous = registry.get(key);
+		if (previous != null && previous.signature.equals(signature)) {
+			return false;
+		}
+		if (previous != null) {
+			LOG.warn("Declaration of {} changed from {} to {}", key, previous.signature, signature);
+		}
+		registry.put(key, new Definition<>(declarable, signature));
+		return true;
+	}
+
+	private static Map<String, Object> copy(Map<String, Object> arguments) {
+		return arguments != null ? new HashMap<>(arguments) : new HashMap<>();
+	}
+
+	private static class Definition<T> {
+
+		private final T declarable;
+		private final List<Object> signature;
+
+		Definition(T declarable, List<Object> signature) {
+			this.declarable = declarable;
+			this.signature = Objects.requireNonNull(signature);
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.listener.BatchingMessageListenerAdapter;
+import io.corbel.lib.rabbitmq.listener.PartitionedMessageListenerAdapter;
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+/**
+ * Advice for the listener containers that skips the messages already handled, such as the ones redelivered after a
+ * consumer crashed before acknowledging them.
+ *
+ * The key of a message is kept in a {@link DeduplicationCache} once the listener handles it without failing, so a
+ * failed message is handled again when it is retried or redelivered. A duplicate is acknowledged without calling the
+ * listener. Messages without key are always handled.
+ *
+ * A {@link BatchingMessageListenerAdapter} skips the duplicates of its batches with
+ * {@link #skipDuplicates(List)} and records them with {@link #handled(List)}.
+ */
+public class DeduplicationAdvice implements MethodInterceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DeduplicationAdvice.class);
+
+	private final SimpleMessageListenerContainer container;
+	private final Function<Message, String> key;
+	private final DeduplicationCache cache;
+	private final Counter hits;
+	private final Counter misses;
+
+	public DeduplicationAdvice(SimpleMessageListenerContainer container, Function<Message, String> key,
+			DeduplicationCache cache, MetricsRegistry metricsRegistry) {
+		this.container = container;
+		this.key = key;
+		this.cache = cache;
+		this.hits = metricsRegistry.counter(AmqpMetrics.DEDUPLICATION_HITS);
+		this.misses = metricsRegistry.counter(AmqpMetrics.DEDUPLICATION_MISSES);
+	}
+
+	/**
+	 * @return key read from the message id property
+	 */
+	public static Function<Message, String> messageId() {
+		return message -> message.getMessageProperties().getMessageId();
+	}
+
+	/**
+	 * @return key read from a header of the message
+	 */
+	public static Function<Message, String> header(String headerName) {
+		return message -> {
+			Object value = message.getMessageProperties().getHeaders().get(headerName);
+			return value != null ? value.toString() : null;
+		};
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		Object[] arguments = invocation.getArguments();
+		if (arguments.length < 2 || !(arguments[1] instanceof Message)) {
+			return invocation.proceed();
+		}
+		Message message = (Message) arguments[1];
+		String messageKey = key.apply(message);
+		if (messageKey == null) {
+			return invocation.proceed();
+		}
+		if (cache.contains(messageKey)) {
+			hits.increment();
+			LOG.debug("Skipping duplicate message {}", messageKey);
+			acknowledge(arguments[0], message);
+			return null;
+		}
+		misses.increment();
+		Object result = invocation.proceed();
+		cache.add(messageKey);
+		return result;
+	}
+
+	/**
+	 * @return the messages of a batch that were not handled yet
+	 */
+	public List<Message> skipDuplicates(List<Message> messages) {
+		List<Message> unhandled = new ArrayList<>(messages.size());
+		for (Message message : messages) {
+			String messageKey = key.apply(message);
+			if (messageKey == null) {
+				unhandled.add(message);
+			} else if (cache.contains(messageKey)) {
+				hits.increment();
+				LOG.debug("Skipping duplicate message {}", messageKey);
+			} else {
+				misses.increment();
+				unhandled.add(message);
+			}
+		}
+		return unhandled;
+	}
+
+	/**
+	 * Records the messages of a batch handled without failing
+	 */
+	public void handled(List<Message> messages) {
+		for (Message message : messages) {
+			String messageKey = key.apply(message);
+			if (messageKey != null) {
+				cache.add(messageKey);
+			}
+		}
+	}
+
+	/**
+	 * The container acknowledges the skipped message unless the listener does it: in manual mode the listener
+	 * adapters acknowledge the messages their advices return from
+	 */
+	private void acknowledge(Object channel, Message message) throws Exception {
+		Object listener = container.getMessageListener();
+		if (container.getAcknowledgeMode() == AcknowledgeMode.MANUAL && channel instanceof Channel
+				&& !(listener instanceof PartitionedMessageListenerAdapter)
+				&& !(listener instanceof BatchingMessageListenerAdapter)) {
+			((Channel) channel).basicAck(message.getMessageProperties().getDeliveryTag(), false);
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded set of the keys seen within a time window, used to detect redelivered messages.
+ *
+ * Keys are stored as 64 bit hashes in primitive arrays, so adding a key does not allocate and the memory used is fixed
+ * by the capacity. Keys are evicted oldest first, either when they are older than the TTL or when the capacity is
+ * reached: a key is added once its message was handled and is never refreshed, so insertion order is also the order
+ * of last use. Two different keys with the same hash are taken as the same, which is negligible at 64 bits.
+ *
+ * The keys are spread over segments with their own lock, so concurrent consumers rarely contend.
+ */
+public class DeduplicationCache {
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 64;
+
+	private final Segment[] segments;
+	private final long ttlMillis;
+	private final LongSupplier clock;
+
+	public DeduplicationCache(int capacity, long ttlMillis) {
+		this(capacity, ttlMillis, System::currentTimeMillis);
+	}
+
+	DeduplicationCache(int capacity, long ttlMillis, LongSupplier clock) {
+		int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, Integer.highestOneBit(capacity / MIN_SEGMENT_CAPACITY)));
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment((capacity + segmentCount - 1) / segmentCount);
+		}
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+	}
+
+	public boolean contains(String key) {
+		long hash = hash(key);
+		return segment(hash).contains(hash, clock.getAsLong() - ttlMillis);
+	}
+
+	public void add(String key) {
+		long hash = hash(key);
+		long now = clock.getAsLong();
+		segment(hash).add(hash, now, now - ttlMillis);
+	}
+
+	/**
+	 * @return number of keys kept, including the expired ones not evicted yet
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private Segment segment(long hash) {
+		return segments[(int) (hash >>> 60) & (segments.length - 1)];
+	}
+
+	/**
+	 * 64 bit FNV-1a of the UTF-8 bytes of the key, never 0 since it marks the empty slots
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		return hash != 0 ? hash : 1;
+	}
+
+	/**
+	 * Open addressing table of hashes with linear probing, and a ring with the hashes and times in insertion order.
+	 */
+	private static class Segment {
+
+		private final long[] table;
+		private final long[] ringKeys;
+		private final long[] ringTimes;
+		private int head;
+		private int size;
+
+		Segment(int capacity) {
+			this.table = new long[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2];
+			this.ringKeys = new long[capacity];
+			this.ringTimes = new long[capacity];
+		}
+
+		synchronized boolean contains(long hash, long expiredBefore) {
+			evictExpired(expiredBefore);
+			return indexOf(hash) >= 0;
+		}
+
+		synchronized void add(long hash, long now, long expiredBefore) {
+			evictExpired(expiredBefore);
+			if (indexOf(hash) >= 0) {
+				return;
+			}
+			if (size == ringKeys.length) {
+				evictOldest();
+			}
+			int mask = table.length - 1;
+			int slot = (int) hash & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = hash;
+			int tail = (head + size) % ringKeys.length;
+			ringKeys[tail] = hash;
+			ringTimes[tail] = now;
+			size++;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		private void evictExpired(long expiredBefore) {
+			while (size > 0 && ringTimes[head] < expiredBefore) {
+				evictOldest();
+			}
+		}
+
+		private void evictOldest() {
+			remove(ringKeys[head]);
+			head = (head + 1) % ringKeys.length;
+			size--;
+		}
+
+		private int indexOf(long hash) {
+			int mask = table.length - 1;
+			for (int slot = (int) hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+				if (table[slot] == hash) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Shifts back the following entries of the probe sequence, so lookups do not stop at the freed slot
+		 */
+		private void remove(long hash) {
+			int mask = table.length - 1;
+			int free = indexOf(hash);
+			if (free < 0) {
+				return;
+			}
+			for (int slot = (free + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+				int home = (int) table[slot] & mask;
+				if (((slot - home) & mask) >= ((slot - free) & mask)) {
+					table[free] = table[slot];
+					free = slot;
+				}
+			}
+			table[free] = 0;
+		}
+	}
+
+}
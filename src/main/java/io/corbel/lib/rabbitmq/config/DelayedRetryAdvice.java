@@ -0,0 +1,122 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+/**
+ * Advice for the listener containers that retries failed messages through the broker instead of blocking the
+ * consumer thread during the backoff.
+ *
+ * A failed message is published again, on the channel it was received from, to the retry exchange with the delay of
+ * its next attempt as routing key, and then acknowledged. The retry exchange routes it to a queue whose TTL is that
+ * delay, and which dead letters it back to the original queue when it expires. Once the attempts are exhausted the
+ * message is rejected without requeue, as with the blocking retry.
+ */
+public class DelayedRetryAdvice implements MethodInterceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DelayedRetryAdvice.class);
+
+	public static final String RETRY_ATTEMPT_HEADER = "x-retry-attempt";
+
+	private final String retryExchange;
+	private final List<Long> delays;
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+	private final Counter retries;
+	private final Counter deadLettered;
+
+	/**
+	 * @param delays delay in milliseconds before each retry, the first one after the first failed attempt
+	 */
+	public DelayedRetryAdvice(String retryExchange, List<Long> delays, MetricsRegistry metricsRegistry) {
+		this.retryExchange = retryExchange;
+		this.delays = new ArrayList<>(delays);
+		this.retries = metricsRegistry.counter(AmqpMetrics.RETRIES);
+		this.deadLettered = metricsRegistry.counter(AmqpMetrics.DEAD_LETTERED);
+	}
+
+	/**
+	 * @return the delays of the retries of a message handled up to maxAttempts times, growing as set by the options
+	 */
+	public static List<Long> retryDelays(int maxAttempts, BackoffOptions backoffOptions) {
+		if (maxAttempts <= 1) {
+			return Collections.emptyList();
+		}
+		List<Long> delays = new ArrayList<>(maxAttempts - 1);
+		double delay = Math.max(1, backoffOptions.getInitialInterval());
+		long maxInterval = backoffOptions.getMaxInterval() > 0 ? backoffOptions.getMaxInterval() : Integer.MAX_VALUE;
+		for (int retry = 1; retry < maxAttempts; retry++) {
+			delays.add(Math.min((long) delay, maxInterval));
+			delay *= Math.max(1, backoffOptions.getMultiplier());
+		}
+		return delays;
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		try {
+			return invocation.proceed();
+		} catch (Throwable e) {
+			Object[] arguments = invocation.getArguments();
+			if (arguments.length < 2 || !(arguments[0] instanceof Channel) || !(arguments[1] instanceof Message)
+					|| isRejected(e)) {
+				throw e;
+			}
+			Message message = (Message) arguments[1];
+			int attempt = getAttempt(message);
+			if (attempt >= delays.size()) {
+				deadLettered.increment();
+				throw new AmqpRejectAndDontRequeueException("Retries exhausted after " + (attempt + 1) + " attempts",
+						e);
+			}
+			republish((Channel) arguments[0], message, attempt + 1, delays.get(attempt));
+			retries.increment();
+			LOG.debug("Listener failed, retry {} scheduled in {} ms: {}", attempt + 1, delays.get(attempt), e
+					.toString());
+			return null;
+		}
+	}
+
+	private void republish(Channel channel, Message message, int attempt, long delay) throws Exception {
+		MessageProperties properties = message.getMessageProperties();
+		properties.setHeader(RETRY_ATTEMPT_HEADER, attempt);
+		// The TTL of the retry queue sets the delay, a shorter expiration of the message would cut it
+		properties.setExpiration(null);
+		channel.basicPublish(retryExchange, String.valueOf(delay), false, messagePropertiesConverter
+				.fromMessageProperties(properties, "UTF-8"), message.getBody());
+	}
+
+	private int getAttempt(Message message) {
+		Object attempt = message.getMessageProperties().getHeaders().get(RETRY_ATTEMPT_HEADER);
+		if (attempt instanceof Number) {
+			return ((Number) attempt).intValue();
+		}
+		return attempt != null ? Integer.parseInt(attempt.toString()) : 0;
+	}
+
+	private boolean isRejected(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof AmqpRejectAndDontRequeueException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,218 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.amqp.AmqpException;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.Timer;
+
+/**
+ * Shares a fixed number of execution slots among the listener containers, so the handling of messages of one class of
+ * containers, such as a tenant or a priority class, does not starve the others.
+ *
+ * A consumer thread takes a slot before running the listener and gives it back afterwards. While all the slots are
+ * taken, the freed slots are granted to the waiting threads of the class with the highest priority, and among classes
+ * with the same priority by deficit round robin: each class gets credit in turns in proportion to its weight, and is
+ * charged with the time its listeners actually ran. Over time each class of a priority gets a share of the handling
+ * time proportional to its weight, whatever the cost of its messages. Higher priorities are served strictly first.
+ *
+ * Only the slots granted while contended are charged, and a class leaving the round starts over: the time a class
+ * ran while the slots were free does not count against it once the contention starts.
+ */
+public class FairScheduler {
+
+	/** Credit given to a class of weight 1 on each turn */
+	private static final long QUANTUM_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, SchedulingClass> classes = new ConcurrentHashMap<>();
+	private final TreeMap<Integer, Queue<SchedulingClass>> active = new TreeMap<>(Comparator.reverseOrder());
+	private final MetricsRegistry metricsRegistry;
+	private int freeSlots;
+
+	public FairScheduler(int slots) {
+		this(slots, MetricsRegistry.NOOP);
+	}
+
+	public FairScheduler(int slots, MetricsRegistry metricsRegistry) {
+		this.freeSlots = slots;
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * @return the class with the given name, created or updated with the given weight and priority
+	 */
+	public SchedulingClass register(String name, int weight, int priority) {
+		SchedulingClass schedulingClass = classes.computeIfAbsent(name, key -> new SchedulingClass(key, metricsRegistry
+				.timer(AmqpMetrics.schedulingWait(key))));
+		lock.lock();
+		try {
+			schedulingClass.weight = Math.max(1, weight);
+			if (schedulingClass.waiters.isEmpty()) {
+				schedulingClass.priority = priority;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return schedulingClass;
+	}
+
+	/**
+	 * Blocks until a slot is granted to the class
+	 */
+	public void acquire(SchedulingClass schedulingClass) {
+		long start = System.nanoTime();
+		Waiter waiter;
+		lock.lock();
+		try {
+			if (freeSlots > 0 && active.isEmpty()) {
+				freeSlots--;
+				return;
+			}
+			waiter = new Waiter(Thread.currentThread());
+			if (schedulingClass.waiters.isEmpty()) {
+				active.computeIfAbsent(schedulingClass.priority, priority -> new ArrayDeque<>()).add(schedulingClass);
+			}
+			schedulingClass.waiters.add(waiter);
+			grant();
+		} finally {
+			lock.unlock();
+		}
+		while (!waiter.granted) {
+			LockSupport.park(this);
+			if (Thread.interrupted() && cancel(schedulingClass, waiter)) {
+				Thread.currentThread().interrupt();
+				throw new AmqpException("Interrupted waiting for a scheduling slot");
+			}
+		}
+		schedulingClass.waitTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Gives back the slot taken by the class, which is charged with the time it was held if it was granted in turn
+	 */
+	public void release(SchedulingClass schedulingClass, long elapsedNanos) {
+		lock.lock();
+		try {
+			if (schedulingClass.grantedSlots > 0) {
+				schedulingClass.grantedSlots--;
+				// A class that left the round is not charged for more than one turn
+				schedulingClass.deficit = Math.max(schedulingClass.deficit - elapsedNanos, -schedulingClass.weight
+						* QUANTUM_NANOS);
+			}
+			freeSlots++;
+			grant();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getFreeSlots() {
+		lock.lock();
+		try {
+			return freeSlots;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getWaiting() {
+		lock.lock();
+		try {
+			return classes.values().stream().mapToInt(schedulingClass -> schedulingClass.waiters.size()).sum();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void grant() {
+		while (freeSlots > 0 && !active.isEmpty()) {
+			Queue<SchedulingClass> round = active.firstEntry().getValue();
+			SchedulingClass next = round.peek();
+			if (next.deficit <= 0) {
+				// Its turn is over: new credit, and to the back of the round
+				next.deficit += next.weight * QUANTUM_NANOS;
+				round.add(round.poll());
+				continue;
+			}
+			Waiter waiter = next.waiters.poll();
+			if (next.waiters.isEmpty()) {
+				leave(round, next);
+			}
+			next.grantedSlots++;
+			freeSlots--;
+			waiter.granted = true;
+			LockSupport.unpark(waiter.thread);
+		}
+	}
+
+	/**
+	 * @return true if the waiter was removed before being granted a slot
+	 */
+	private boolean cancel(SchedulingClass schedulingClass, Waiter waiter) {
+		lock.lock();
+		try {
+			if (waiter.granted || !schedulingClass.waiters.remove(waiter)) {
+				return false;
+			}
+			if (schedulingClass.waiters.isEmpty()) {
+				leave(active.get(schedulingClass.priority), schedulingClass);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the class without waiters from its round, with its credit or debt
+	 */
+	private void leave(Queue<SchedulingClass> round, SchedulingClass schedulingClass) {
+		round.remove(schedulingClass);
+		if (round.isEmpty()) {
+			active.remove(schedulingClass.priority);
+		}
+		schedulingClass.deficit = 0;
+	}
+
+	public static class SchedulingClass {
+
+		private final String name;
+		private final Timer waitTime;
+		private final Queue<Waiter> waiters = new ArrayDeque<>();
+		private int weight = 1;
+		private int priority;
+		private long deficit;
+		private int grantedSlots;
+
+		SchedulingClass(String name, Timer waitTime) {
+			this.name = name;
+			this.waitTime = waitTime;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static class Waiter {
+
+		private final Thread thread;
+		private volatile boolean granted;
+
+		Waiter(Thread thread) {
+			this.thread = thread;
+		}
+	}
+
+}
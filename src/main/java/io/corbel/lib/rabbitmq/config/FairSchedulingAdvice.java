@@ -0,0 +1,36 @@
+package io.corbel.lib.rabbitmq.config;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import io.corbel.lib.rabbitmq.config.FairScheduler.SchedulingClass;
+
+/**
+ * Advice for the listener containers that runs the listener within a slot of a {@link FairScheduler}, so the
+ * containers of different classes share the slots by priority and weight.
+ *
+ * The listener runs on the consumer thread as without the advice, which only waits for the slot, so the
+ * acknowledgement, retries and transactions of the container are not affected.
+ */
+public class FairSchedulingAdvice implements MethodInterceptor {
+
+	private final FairScheduler scheduler;
+	private final SchedulingClass schedulingClass;
+
+	public FairSchedulingAdvice(FairScheduler scheduler, SchedulingClass schedulingClass) {
+		this.scheduler = scheduler;
+		this.schedulingClass = schedulingClass;
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		scheduler.acquire(schedulingClass);
+		long start = System.nanoTime();
+		try {
+			return invocation.proceed();
+		} finally {
+			scheduler.release(schedulingClass, System.nanoTime() - start);
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package io.corbel.lib.rabbitmq.config;
+
+/**
+ * Values of the {@code x-overflow} argument, what the broker does when a queue reaches its maximum length
+ */
+public enum OverflowPolicy {
+
+	/** Discards or dead letters the oldest messages */
+	DROP_HEAD("drop-head"),
+	/** Rejects the new messages, nacking them to publishers with confirms */
+	REJECT_PUBLISH("reject-publish"),
+	/** Rejects the new messages and dead letters them, requires RabbitMQ 3.8 */
+	REJECT_PUBLISH_DLX("reject-publish-dlx");
+
+	private final String value;
+
+	OverflowPolicy(String value) {
+		this.value = value;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+}
@@ -0,0 +1,24 @@
+package io.corbel.lib.rabbitmq.config;
+
+/**
+ * Values of the {@code x-queue-type} argument
+ */
+public enum QueueType {
+
+	CLASSIC("classic"),
+	/** Replicated with Raft, requires RabbitMQ 3.8 */
+	QUORUM("quorum"),
+	/** Append-only log, requires RabbitMQ 3.9 and consumers with a prefetch and manual acks */
+	STREAM("stream");
+
+	private final String value;
+
+	QueueType(String value) {
+		this.value = value;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+}
@@ -1,34 +1,148 @@
 package io.corbel.lib.rabbitmq.config;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
-import org.aopalliance.aop.Advice;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.Binding.DestinationType;
+import org.springframework.amqp.core.CustomExchange;
 import org.springframework.amqp.core.Exchange;
 import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.MessagePostProcessor;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.retry.interceptor.RetryOperationsInterceptor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.scheduling.support.TaskUtils;
 import org.springframework.util.ErrorHandler;
 
-public class RabbitMQConfigurer implements AmqpConfigurer {
+import io.corbel.lib.rabbitmq.compression.DecompressingPostProcessor;
+import io.corbel.lib.rabbitmq.listener.BatchMessageListener;
+import io.corbel.lib.rabbitmq.listener.BatchingMessageListenerAdapter;
+import io.corbel.lib.rabbitmq.listener.PartitionedMessageListenerAdapter;
+import io.corbel.lib.rabbitmq.metrics.ListenerMetricsAdvice;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.reactive.QueuePublisher;
+
+public class RabbitMQConfigurer implements AmqpConfigurer, DisposableBean, SmartInitializingSingleton {
 
 	private final RabbitAdmin rabbitAdmin;
 	private final ConnectionFactory connectionFactory;
+	private final ExecutorService consumerExecutor;
+	private final DeclarationRegistry declarations = new DeclarationRegistry();
+	private final List<PartitionedMessageListenerAdapter> partitionedListeners = new CopyOnWriteArrayList<>();
+	private final List<QueuePublisher> queuePublishers = new CopyOnWriteArrayList<>();
+	private final List<CircuitBreaker> circuitBreakers = new CopyOnWriteArrayList<>();
+	private boolean deferDeclarations;
+	private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+	private int maxDecompressedBytes = DecompressingPostProcessor.DEFAULT_MAX_DECOMPRESSED_BYTES;
+	private ScheduledExecutorService scheduler;
+	private ScheduledExecutorService batchFlushScheduler;
+	private FairScheduler fairScheduler;
+	private int schedulingSlots = Runtime.getRuntime().availableProcessors();
 
 	public RabbitMQConfigurer(RabbitAdmin rabbitAdmin, ConnectionFactory connectionFactory) {
+		this(rabbitAdmin, connectionFactory, ConsumerExecutors.sharedPool());
+	}
+
+	public RabbitMQConfigurer(RabbitAdmin rabbitAdmin, ConnectionFactory connectionFactory,
+			ExecutorService consumerExecutor) {
 		this.rabbitAdmin = rabbitAdmin;
 		this.connectionFactory = connectionFactory;
+		this.consumerExecutor = consumerExecutor;
+		connectionFactory.addConnectionListener(declarations);
+	}
+
+	/**
+	 * When enabled, exchanges, queues and bindings are only registered when configured, and the whole topology is
+	 * declared in a single pass once all the singletons of the context are created (or on {@link #declareAll()}).
+	 */
+	public void setDeferDeclarations(boolean deferDeclarations) {
+		this.deferDeclarations = deferDeclarations;
+	}
+
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * Size over which the compressed messages received by the listener containers are rejected once decompressed
+	 */
+	public void setMaxDecompressedBytes(int maxDecompressedBytes) {
+		this.maxDecompressedBytes = maxDecompressedBytes;
+	}
+
+	/**
+	 * Number of listeners of the containers with {@link #fairScheduling(String, int, int)} that may run at the same
+	 * time, the number of processors by default. Must be set before configuring them.
+	 */
+	public void setSchedulingSlots(int schedulingSlots) {
+		this.schedulingSlots = schedulingSlots;
+	}
+
+	@Override
+	public MetricsRegistry metricsRegistry() {
+		return metricsRegistry;
+	}
+
+	public boolean isDeferDeclarations() {
+		return deferDeclarations;
+	}
+
+	public void declareAll() {
+		declarations.declareAll(connectionFactory);
+	}
+
+	public DeclarationRegistry getDeclarations() {
+		return declarations;
+	}
+
+	@Override
+	public void afterSingletonsInstantiated() {
+		if (deferDeclarations) {
+			declareAll();
+		}
+	}
+
+	@Override
+	public Executor consumerExecutor() {
+		return consumerExecutor;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		consumerExecutor.shutdown();
+		circuitBreakers.forEach(CircuitBreaker::shutdown);
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		if (batchFlushScheduler != null) {
+			batchFlushScheduler.shutdown();
+		}
+		partitionedListeners.forEach(PartitionedMessageListenerAdapter::shutdown);
+		queuePublishers.forEach(QueuePublisher::shutdown);
 	}
 
 	@Override
@@ -48,10 +162,25 @@ public class RabbitMQConfigurer implements AmqpConfigurer {
 			modify(queue, modifiers);
 		}
 
-		rabbitAdmin.declareQueue(queue);
+		if (declarations.register(queue)) {
+			declare(() -> rabbitAdmin.declareQueue(queue));
+		}
 		return queue;
 	}
 
+	@Override
+	public ShardedQueue shardedQueue(String name, int shards, Function<Queue, Queue>... modifiers) {
+		configureExchange(null, new CustomExchange(name, ShardedQueue.CONSISTENT_HASH_EXCHANGE_TYPE, true, false));
+		List<String> shardQueueNames = new ArrayList<>(shards);
+		for (int shard = 0; shard < shards; shard++) {
+			Queue shardQueue = queue(ShardedQueue.shardQueueName(name, shard), modifiers);
+			// The routing key of a consistent hash binding is its weight
+			bind(name, shardQueue, Optional.of("1"), Optional.empty());
+			shardQueueNames.add(shardQueue.getName());
+		}
+		return new ShardedQueue(name, shardQueueNames);
+	}
+
 	@Override
 	public UnaryOperator<Exchange> alternateExchange(final String name) {
 		return (Exchange exchange) -> {
@@ -63,8 +192,11 @@ public class RabbitMQConfigurer implements AmqpConfigurer {
 	@Override
 	public void bind(final String exchangeName, String destination, DestinationType destinationType,
 			Optional<String> routingKey, Optional<Map<String, Object>> arguments) {
-		rabbitAdmin.declareBinding(new Binding(destination, destinationType, exchangeName, routingKey.orElse(""),
-				arguments.orElse(null)));
+		Binding binding = new Binding(destination, destinationType, exchangeName, routingKey.orElse(""), arguments
+				.orElse(null));
+		if (declarations.register(binding)) {
+			declare(() -> rabbitAdmin.declareBinding(binding));
+		}
 	}
 
 	@Override
@@ -83,6 +215,44 @@ public class RabbitMQConfigurer implements AmqpConfigurer {
 		};
 	}
 
+	@Override
+	public UnaryOperator<Queue> setLazyMode() {
+		return setArgument("x-queue-mode", "lazy");
+	}
+
+	@Override
+	public UnaryOperator<Queue> setQueueType(QueueType queueType) {
+		return setArgument("x-queue-type", queueType.getValue());
+	}
+
+	@Override
+	public UnaryOperator<Queue> setMaxLength(int maxLength) {
+		return setArgument("x-max-length", maxLength);
+	}
+
+	@Override
+	public UnaryOperator<Queue> setMaxLengthBytes(long maxLengthBytes) {
+		return setArgument("x-max-length-bytes", maxLengthBytes);
+	}
+
+	@Override
+	public UnaryOperator<Queue> setOverflow(OverflowPolicy overflowPolicy) {
+		return setArgument("x-overflow", overflowPolicy.getValue());
+	}
+
+	@Override
+	public UnaryOperator<Queue> setSingleActiveConsumer() {
+		return setArgument("x-single-active-consumer", true);
+	}
+
+	@Override
+	public UnaryOperator<Queue> setMaxPriority(int maxPriority) {
+		if (maxPriority < 1 || maxPriority > 255) {
+			throw new IllegalArgumentException("Max priority must be between 1 and 255, was " + maxPriority);
+		}
+		return setArgument("x-max-priority", maxPriority);
+	}
+
 	@Override
 	public SimpleMessageListenerContainer listenerContainer(Executor executor,
 			UnaryOperator<SimpleMessageListenerContainer> modifier, String... queueNames) {
@@ -90,15 +260,19 @@ public class RabbitMQConfigurer implements AmqpConfigurer {
 		container.setTaskExecutor(executor);
 		container.setQueueNames(queueNames);
 		container.setErrorHandler(TaskUtils.LOG_AND_PROPAGATE_ERROR_HANDLER);
+		if (metricsRegistry != MetricsRegistry.NOOP) {
+			AdviceChains.append(container, new ListenerMetricsAdvice(metricsRegistry));
+		}
 		modify(container, modifier);
+		takeAdviceChain(container);
+		addDecompressor(container);
 		return container;
 	}
 
 	@Override
 	public UnaryOperator<SimpleMessageListenerContainer> setRetryOpertations(RetryOperationsInterceptor interceptor) {
 		return (SimpleMessageListenerContainer container) -> {
-			container.setAdviceChain(new Advice[] { interceptor });
-			return container;
+			return AdviceChains.append(container, interceptor);
 		};
 	}
 
@@ -110,12 +284,169 @@ public class RabbitMQConfigurer implements AmqpConfigurer {
 		};
 	}
 
+	@Override
+	public UnaryOperator<SimpleMessageListenerContainer> adaptiveConcurrency(AdaptiveConcurrencyOptions options) {
+		return (SimpleMessageListenerContainer container) -> {
+			AdaptiveConcurrency adaptiveConcurrency = new AdaptiveConcurrency(container, options, scheduler());
+			adaptiveConcurrency.schedule();
+			return AdviceChains.append(container, adaptiveConcurrency);
+		};
+	}
+
+	@Override
+	public UnaryOperator<SimpleMessageListenerContainer> batchListener(BatchMessageListener listener, int batchSize,
+			long batchTimeoutMillis) {
+		return (SimpleMessageListenerContainer container) -> {
+			BatchingMessageListenerAdapter adapter = new BatchingMessageListenerAdapter(listener, batchSize,
+					batchTimeoutMillis);
+			long checkInterval = Math.max(1, batchTimeoutMillis / 2);
+			batchFlushScheduler().scheduleWithFixedDelay(
+					TaskUtils.decorateTaskWithErrorHandler(adapter::flushExpired,
+							TaskUtils.LOG_AND_SUPPRESS_ERROR_HANDLER, true), checkInterval, checkInterval,
+					TimeUnit.MILLISECONDS);
+			return adapter.configure(container);
+		};
+	}
+
+	@Override
+	public UnaryOperator<SimpleMessageListenerContainer> partitionedListener(MessageListener listener, int lanes,
+			Function<Message, Object> partitionKey) {
+		return (SimpleMessageListenerContainer container) -> {
+			PartitionedMessageListenerAdapter adapter = new PartitionedMessageListenerAdapter(listener, lanes,
+					partitionKey);
+			partitionedListeners.add(adapter);
+			return adapter.configure(container);
+		};
+	}
+
+	@Override
+	public UnaryOperator<SimpleMessageListenerContainer> circuitBreaker(CircuitBreakerOptions options,
+			CircuitBreakerListener listener) {
+		return (SimpleMessageListenerContainer container) -> {
+			CircuitBreaker circuitBreaker = new CircuitBreaker(container, options, scheduler(), listener);
+			circuitBreakers.add(circuitBreaker);
+			return AdviceChains.append(container, circuitBreaker);
+		};
+	}
+
+	@Override
+	public QueuePublisher queuePublisher(String queueName, AcknowledgeMode acknowledgeMode, int maxPrefetch) {
+		QueuePublisher publisher = new QueuePublisher(connectionFactory, queueName, acknowledgeMode, maxPrefetch,
+				createDecompressor());
+		queuePublishers.add(publisher);
+		return publisher;
+	}
+
+	@Override
+	public UnaryOperator<SimpleMessageListenerContainer> deduplicate(Function<Message, String> key, int capacity,
+			long ttlMillis) {
+		return (SimpleMessageListenerContainer container) -> {
+			return AdviceChains.append(container, new DeduplicationAdvice(container, key, new DeduplicationCache(
+					capacity, ttlMillis), metricsRegistry));
+		};
+	}
+
+	@Override
+	public UnaryOperator<SimpleMessageListenerContainer> fairScheduling(String schedulingClass, int weight,
+			int priority) {
+		return (SimpleMessageListenerContainer container) -> {
+			FairScheduler fairScheduler = fairScheduler();
+			return AdviceChains.append(container, new FairSchedulingAdvice(fairScheduler, fairScheduler.register(
+					schedulingClass, weight, priority)));
+		};
+	}
+
+	/**
+	 * Moves the advices added by the modifiers after the listener adapter to it, so they run once per message
+	 */
+	private void takeAdviceChain(SimpleMessageListenerContainer container) {
+		Object listener = container.getMessageListener();
+		if (listener instanceof PartitionedMessageListenerAdapter) {
+			((PartitionedMessageListenerAdapter) listener).takeAdviceChain(container);
+		} else if (listener instanceof BatchingMessageListenerAdapter) {
+			((BatchingMessageListenerAdapter) listener).takeAdviceChain(container);
+		}
+	}
+
+	/**
+	 * Added after the modifiers, so post processors set by them are kept, and first, so they get the decompressed body
+	 */
+	@SuppressWarnings("unchecked")
+	private void addDecompressor(SimpleMessageListenerContainer container) {
+		Collection<MessagePostProcessor> current = (Collection<MessagePostProcessor>) new DirectFieldAccessor(container)
+				.getPropertyValue("afterReceivePostProcessors");
+		List<MessagePostProcessor> postProcessors = new ArrayList<>();
+		postProcessors.add(createDecompressor());
+		if (current != null) {
+			postProcessors.addAll(current);
+		}
+		container.setAfterReceivePostProcessors(postProcessors.toArray(new MessagePostProcessor[postProcessors
+				.size()]));
+	}
+
+	private DecompressingPostProcessor createDecompressor() {
+		return new DecompressingPostProcessor(metricsRegistry, maxDecompressedBytes);
+	}
+
+	private UnaryOperator<Queue> setArgument(String name, Object value) {
+		return (Queue queue) -> {
+			queue.getArguments().put(name, value);
+			return queue;
+		};
+	}
+
+	/**
+	 * Delayed tasks are dropped on shutdown, so no container is started again once the context is closing
+	 */
+	private synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rabbitmq-configurer-");
+			threadFactory.setDaemon(true);
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Runs the listeners of the batches flushed on timeout, and their retries, apart from the scheduler of the
+	 * adjustments and circuit breakers
+	 */
+	private synchronized ScheduledExecutorService batchFlushScheduler() {
+		if (batchFlushScheduler == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rabbitmq-batch-flush-");
+			threadFactory.setDaemon(true);
+			batchFlushScheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+					threadFactory);
+		}
+		return batchFlushScheduler;
+	}
+
+	private synchronized FairScheduler fairScheduler() {
+		if (fairScheduler == null) {
+			fairScheduler = new FairScheduler(schedulingSlots, metricsRegistry);
+		}
+		return fairScheduler;
+	}
+
 	private <T extends Exchange> T configureExchange(UnaryOperator<Exchange> modifier, T exchange) {
 		modify(exchange, modifier);
-		rabbitAdmin.declareExchange(exchange);
+		if (declarations.register(exchange)) {
+			declare(() -> rabbitAdmin.declareExchange(exchange));
+		}
 		return exchange;
 	}
 
+	private void declare(Runnable declaration) {
+		if (!deferDeclarations) {
+			long start = System.nanoTime();
+			declaration.run();
+			declarations.recordImmediateDeclaration(System.nanoTime() - start);
+		}
+	}
+
 	private <T> void modify(T element, UnaryOperator<T> modifier) {
 		if (modifier != null) {
 			modifier.apply(element);
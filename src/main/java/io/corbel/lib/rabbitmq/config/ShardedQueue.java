@@ -0,0 +1,56 @@
+package io.corbel.lib.rabbitmq.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A logical queue split in several shard queues, bound to a consistent hash exchange with the same name. Messages are
+ * published to the exchange, and the hash of their routing key chooses the shard, so messages with the same routing
+ * key always go to the same shard.
+ */
+public class ShardedQueue {
+
+	public static final String CONSISTENT_HASH_EXCHANGE_TYPE = "x-consistent-hash";
+
+	/**
+	 * Interval between the attempts of a standby container to claim its shard. Every refused attempt closes a channel
+	 * and logs a warning, so it is longer than the default recovery interval of the containers.
+	 */
+	public static final long STANDBY_RECOVERY_INTERVAL_MILLIS = 30000;
+
+	private final String name;
+	private final List<String> shardQueueNames;
+
+	public ShardedQueue(String name, List<String> shardQueueNames) {
+		this.name = name;
+		this.shardQueueNames = Collections.unmodifiableList(new ArrayList<>(shardQueueNames));
+	}
+
+	public static String shardQueueName(String name, int shard) {
+		return name + ".shard." + shard;
+	}
+
+	/**
+	 * @return name of the exchange where the messages are published
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public List<String> getShardQueueNames() {
+		return shardQueueNames;
+	}
+
+	/**
+	 * @return the shards assigned to an instance when they are split evenly among a known number of instances
+	 */
+	public List<String> getShardQueueNames(int instanceIndex, int instanceCount) {
+		List<String> assigned = new ArrayList<>();
+		for (int shard = instanceIndex; shard < shardQueueNames.size(); shard += instanceCount) {
+			assigned.add(shardQueueNames.get(shard));
+		}
+		return assigned;
+	}
+
+}
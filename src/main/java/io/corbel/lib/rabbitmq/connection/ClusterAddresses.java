@@ -0,0 +1,68 @@
+package io.corbel.lib.rabbitmq.connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.AbstractConnectionFactory;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+
+/**
+ * Spreads the connections of a connection factory across the nodes of a cluster.
+ *
+ * The client connects to the first reachable address of the list, so the list is shuffled once to spread the
+ * instances of an application, and rotated every time a connection is created so that the next one starts with
+ * another node. After a connection is lost, the new one is tried first against a different node, failing over to the
+ * rest of the list if it is not reachable.
+ */
+public class ClusterAddresses implements ConnectionListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ClusterAddresses.class);
+
+	private final AbstractConnectionFactory connectionFactory;
+	private final List<String> addresses;
+	private int next;
+
+	public ClusterAddresses(AbstractConnectionFactory connectionFactory, String addresses, boolean shuffle) {
+		this.connectionFactory = connectionFactory;
+		this.addresses = Arrays.stream(addresses.split(",")).map(String::trim).filter(address -> !address.isEmpty())
+				.collect(Collectors.toCollection(ArrayList::new));
+		if (this.addresses.isEmpty()) {
+			throw new IllegalArgumentException("No RabbitMQ addresses in " + addresses);
+		}
+		if (shuffle) {
+			Collections.shuffle(this.addresses);
+		}
+		apply();
+	}
+
+	@Override
+	public synchronized void onCreate(Connection connection) {
+		next = (next + 1) % addresses.size();
+		apply();
+	}
+
+	@Override
+	public void onClose(Connection connection) {
+		LOG.info("Connection to RabbitMQ closed, next connection will try {} first", getAddresses().get(0));
+	}
+
+	/**
+	 * @return the addresses in the order they will be tried by the next connection
+	 */
+	public synchronized List<String> getAddresses() {
+		List<String> ordered = new ArrayList<>(addresses.subList(next, addresses.size()));
+		ordered.addAll(addresses.subList(0, next));
+		return ordered;
+	}
+
+	private void apply() {
+		connectionFactory.setAddresses(String.join(",", getAddresses()));
+	}
+
+}
@@ -0,0 +1,130 @@
+package io.corbel.lib.rabbitmq.connection;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory.CacheMode;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.beans.DirectFieldAccessor;
+
+/**
+ * Usage statistics of the connections and channels of a {@link CachingConnectionFactory}, to size its caches.
+ *
+ * Physical connections and channels opened are counted through listeners, so a count that keeps growing means the
+ * cache is too small for the load. The current cache contents are read from the factory, which does not expose them
+ * in this version of Spring AMQP.
+ */
+public class ConnectionPoolStats implements ConnectionListener {
+
+	private final String name;
+	private final CachingConnectionFactory connectionFactory;
+	private final DirectFieldAccessor fields;
+	private final LongAdder connectionsCreated = new LongAdder();
+	private final LongAdder connectionsClosed = new LongAdder();
+	private final LongAdder channelsCreated = new LongAdder();
+
+	public ConnectionPoolStats(String name, CachingConnectionFactory connectionFactory) {
+		this.name = name;
+		this.connectionFactory = connectionFactory;
+		this.fields = new DirectFieldAccessor(connectionFactory);
+		connectionFactory.addConnectionListener(this);
+		connectionFactory.addChannelListener((channel, transactional) -> channelsCreated.increment());
+	}
+
+	@Override
+	public void onCreate(Connection connection) {
+		connectionsCreated.increment();
+	}
+
+	@Override
+	public void onClose(Connection connection) {
+		connectionsClosed.increment();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public CacheMode getCacheMode() {
+		return connectionFactory.getCacheMode();
+	}
+
+	public int getChannelCacheSize() {
+		return connectionFactory.getChannelCacheSize();
+	}
+
+	public int getConnectionCacheSize() {
+		return connectionFactory.getConnectionCacheSize();
+	}
+
+	public long getConnectionsCreated() {
+		return connectionsCreated.sum();
+	}
+
+	public long getConnectionsClosed() {
+		return connectionsClosed.sum();
+	}
+
+	public long getChannelsCreated() {
+		return channelsCreated.sum();
+	}
+
+	/**
+	 * @return open channels waiting in the cache to be checked out
+	 */
+	@SuppressWarnings("unchecked")
+	public int getIdleChannels() {
+		if (getCacheMode() == CacheMode.CONNECTION) {
+			return size(((Map<Object, Collection<?>>) fields.getPropertyValue("openConnectionNonTransactionalChannels")))
+					+ size(((Map<Object, Collection<?>>) fields.getPropertyValue("openConnectionTransactionalChannels")));
+		}
+		return size((Collection<?>) fields.getPropertyValue("cachedChannelsNonTransactional"))
+				+ size((Collection<?>) fields.getPropertyValue("cachedChannelsTransactional"));
+	}
+
+	/**
+	 * @return channels checked out right now, only tracked when a channel checkout timeout is set
+	 */
+	@SuppressWarnings("unchecked")
+	public int getCheckedOutChannels() {
+		Map<Connection, Semaphore> permits = (Map<Connection, Semaphore>) fields.getPropertyValue("checkoutPermits");
+		synchronized (permits) {
+			return permits.values().stream().mapToInt(
+					semaphore -> getChannelCacheSize() - semaphore.availablePermits()).sum();
+		}
+	}
+
+	/**
+	 * @return open connections, including the ones idle in the cache, in connection cache mode
+	 */
+	public int getOpenConnections() {
+		if (getCacheMode() == CacheMode.CONNECTION) {
+			return size((Collection<?>) fields.getPropertyValue("openConnections"));
+		}
+		return (int) Math.max(0, Math.min(1, getConnectionsCreated() - getConnectionsClosed()));
+	}
+
+	@Override
+	public String toString() {
+		return name + " [cacheMode=" + getCacheMode() + ", openConnections=" + getOpenConnections() + ", idleChannels="
+				+ getIdleChannels() + ", checkedOutChannels=" + getCheckedOutChannels() + ", connectionsCreated="
+				+ getConnectionsCreated() + ", channelsCreated=" + getChannelsCreated() + "]";
+	}
+
+	private static int size(Collection<?> collection) {
+		synchronized (collection) {
+			return collection.size();
+		}
+	}
+
+	private static int size(Map<?, ? extends Collection<?>> channelsByConnection) {
+		synchronized (channelsByConnection) {
+			return channelsByConnection.values().stream().mapToInt(ConnectionPoolStats::size).sum();
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+package io.corbel.lib.rabbitmq.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.AbstractMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.util.ClassUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Jackson based {@link org.springframework.amqp.support.converter.MessageConverter} for high message rates.
+ *
+ * Readers and writers are resolved once per type and cached, and the serialization buffer is reused by each thread,
+ * so the only allocation per message is its body. The type of the payload travels in the {@code __TypeId__} header,
+ * the same used by {@link org.springframework.amqp.support.converter.Jackson2JsonMessageConverter}, so both can read
+ * the messages of the other for plain classes.
+ *
+ * The type id of a received message only selects a class when it is mapped with {@link #setTypeMappings(Map)} or the
+ * class is in one of the {@link #setTrustedPackages(String...)}, so a producer can not make the consumer instantiate
+ * any class on its classpath. Messages of other types fail to convert.
+ *
+ * Binary formats are supported with an {@link ObjectMapper} built on their factory and the matching content type, e.g.
+ * {@code new JacksonMessageConverter(new ObjectMapper(new SmileFactory()), "application/x-jackson-smile")}.
+ */
+public class JacksonMessageConverter extends AbstractMessageConverter {
+
+	public static final String TYPE_ID_HEADER = "__TypeId__";
+
+	/** Buffers that grew over this size are not kept by the thread after the conversion */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	private static final String TRUST_ALL = "*";
+
+	private final ObjectMapper objectMapper;
+	private final String contentType;
+	private final boolean json;
+	private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ObjectReader> readers = new ConcurrentHashMap<>();
+	private final ThreadLocal<ReusableOutputStream> buffers = ThreadLocal.withInitial(ReusableOutputStream::new);
+	private final Map<String, Class<?>> idClassMappings = new ConcurrentHashMap<>();
+	private final Map<Class<?>, String> classIdMappings = new ConcurrentHashMap<>();
+	private volatile Set<String> trustedPackages = new LinkedHashSet<>(Arrays.asList("java.lang", "java.util"));
+
+	public JacksonMessageConverter() {
+		this(new ObjectMapper());
+	}
+
+	public JacksonMessageConverter(ObjectMapper objectMapper) {
+		this(objectMapper, MessageProperties.CONTENT_TYPE_JSON);
+	}
+
+	public JacksonMessageConverter(ObjectMapper objectMapper, String contentType) {
+		this.objectMapper = objectMapper;
+		this.contentType = contentType;
+		this.json = contentType.contains("json");
+	}
+
+	/**
+	 * Packages, with their subpackages, whose classes may be read from the type id of a message. Only java.lang and
+	 * java.util by default, {@code "*"} trusts any package.
+	 */
+	public void setTrustedPackages(String... trustedPackages) {
+		this.trustedPackages = new LinkedHashSet<>(Arrays.asList(trustedPackages));
+		readers.clear();
+	}
+
+	/**
+	 * Type ids sent instead of the class names of the mapped classes, and always trusted on receive
+	 */
+	public void setTypeMappings(Map<String, Class<?>> typeMappings) {
+		idClassMappings.clear();
+		classIdMappings.clear();
+		typeMappings.forEach((typeId, type) -> {
+			idClassMappings.put(typeId, type);
+			classIdMappings.put(type, typeId);
+		});
+		readers.clear();
+	}
+
+	@Override
+	protected Message createMessage(Object object, MessageProperties messageProperties) {
+		ObjectWriter writer = writers.computeIfAbsent(object.getClass(), objectMapper::writerFor);
+		ReusableOutputStream buffer = buffers.get();
+		byte[] body;
+		try {
+			writer.writeValue(buffer, object);
+			body = buffer.toByteArray();
+		} catch (IOException e) {
+			throw new MessageConversionException("Failed to convert " + object.getClass().getName(), e);
+		} finally {
+			buffer.reset();
+			if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+				buffers.remove();
+			}
+		}
+		messageProperties.setContentType(contentType);
+		if (json) {
+			messageProperties.setContentEncoding("UTF-8");
+		}
+		messageProperties.setContentLength(body.length);
+		messageProperties.setHeader(TYPE_ID_HEADER, classIdMappings.getOrDefault(object.getClass(), object.getClass()
+				.getName()));
+		return new Message(body, messageProperties);
+	}
+
+	@Override
+	public Object fromMessage(Message message) throws MessageConversionException {
+		MessageProperties properties = message.getMessageProperties();
+		if (properties == null || properties.getContentType() == null
+				|| !properties.getContentType().startsWith(contentType)) {
+			return message.getBody();
+		}
+		Object typeId = properties.getHeaders().get(TYPE_ID_HEADER);
+		ObjectReader reader = typeId != null ? readers.computeIfAbsent(typeId.toString(), this::createReader)
+				: readers.computeIfAbsent(Object.class.getName(), this::createReader);
+		try {
+			return reader.readValue(message.getBody());
+		} catch (IOException e) {
+			throw new MessageConversionException("Failed to convert message of type " + typeId, e);
+		}
+	}
+
+	private ObjectReader createReader(String typeId) {
+		Class<?> type = idClassMappings.get(typeId);
+		if (type != null) {
+			return objectMapper.reader(type);
+		}
+		if (!isTrusted(typeId)) {
+			throw new MessageConversionException("Message type " + typeId + " is not in the trusted packages");
+		}
+		try {
+			return objectMapper.reader(ClassUtils.forName(typeId, getClass().getClassLoader()));
+		} catch (ClassNotFoundException | LinkageError e) {
+			throw new MessageConversionException("Unknown message type " + typeId, e);
+		}
+	}
+
+	private boolean isTrusted(String typeId) {
+		Set<String> trusted = trustedPackages;
+		if (trusted.contains(TRUST_ALL) || typeId.equals(Object.class.getName())) {
+			return true;
+		}
+		// Arrays and generic types are not trusted, as their elements could be of any class
+		if (typeId.indexOf('[') >= 0 || typeId.indexOf('<') >= 0) {
+			return false;
+		}
+		String packageName = ClassUtils.getPackageName(typeId);
+		for (String trustedPackage : trusted) {
+			if (packageName.equals(trustedPackage) || packageName.startsWith(trustedPackage + ".")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class ReusableOutputStream extends ByteArrayOutputStream {
+
+		ReusableOutputStream() {
+			super(INITIAL_BUFFER_SIZE);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		@Override
+		public synchronized byte[] toByteArray() {
+			return Arrays.copyOf(buf, count);
+		}
+	}
+
+}
@@ -1,20 +1,43 @@
 package io.corbel.lib.rabbitmq.ioc;
 
+import io.corbel.lib.rabbitmq.compression.CompressingMessageConverter;
+import io.corbel.lib.rabbitmq.compression.CompressingPostProcessor;
+import io.corbel.lib.rabbitmq.compression.Compression;
+import io.corbel.lib.rabbitmq.compression.DecompressingPostProcessor;
 import io.corbel.lib.rabbitmq.config.AmqpConfigurer;
+import io.corbel.lib.rabbitmq.config.ConsumerExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory.CacheMode;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.core.support.SimpleBatchingStrategy;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
 
 import io.corbel.lib.rabbitmq.config.RabbitMQConfigurer;
+import io.corbel.lib.rabbitmq.connection.ClusterAddresses;
+import io.corbel.lib.rabbitmq.connection.ConnectionPoolStats;
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.SimpleMetricsRegistry;
+import io.corbel.lib.rabbitmq.publisher.ConfirmingPublisher;
+import io.corbel.lib.rabbitmq.publisher.DirectReplyToClient;
+import io.corbel.lib.rabbitmq.publisher.InstrumentedBatchingRabbitTemplate;
+import io.corbel.lib.rabbitmq.publisher.InstrumentedRabbitTemplate;
+import io.corbel.lib.rabbitmq.publisher.OutboxOptions;
+import io.corbel.lib.rabbitmq.publisher.OutboxPublisher;
 
+import java.nio.file.Paths;
 import java.util.Optional;
 
 @Configuration
@@ -22,20 +45,139 @@ public abstract class AbstractRabbitMQConfiguration {
 
 	private static final Logger LOG = LoggerFactory.getLogger(AbstractRabbitMQConfiguration.class);
 
+	private static final int DEFAULT_PUBLISHER_BATCH_BYTES = 64 * 1024;
+	private static final long DEFAULT_PUBLISHER_LINGER_MS = 10;
+	private static final int DEFAULT_PUBLISHER_CONFIRMS_MAX_IN_FLIGHT = 1000;
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	private static final long DEFAULT_RPC_TIMEOUT_MILLIS = 5000;
+
+	public static final String PUBLISHER_POOL = "publisher";
+	public static final String CONSUMER_POOL = "consumer";
+
 	@Bean
 	public AmqpTemplate amqpTemplate() {
-		RabbitTemplate template = new RabbitTemplate(connectionFactory());
+		RabbitTemplate template = createRabbitTemplate();
 		MessageConverter messageConverters = getMessageConverter();
 		if (messageConverters != null) {
 			template.setMessageConverter(messageConverters);
 		}
+		template.setAfterReceivePostProcessor(createDecompressor());
+		// Applied on send, after batching, so a batch is compressed as a whole
+		createCompressor().ifPresent(template::setBeforePublishPostProcessors);
 
 		return template;
 	}
 
+	/**
+	 * Registry where the templates, listener containers and retry interceptors report their metrics. Override to
+	 * report them to another metrics system.
+	 */
+	@Bean
+	public MetricsRegistry metricsRegistry() {
+		return new SimpleMetricsRegistry();
+	}
+
+	@Bean
+	public ConfirmingPublisher confirmingPublisher() {
+		int maxInFlight = Optional.ofNullable(getPublisherConfirmsMaxInFlight()).orElse(
+				DEFAULT_PUBLISHER_CONFIRMS_MAX_IN_FLIGHT);
+		return new ConfirmingPublisher(publisherConnectionFactory(), createPublisherMessageConverter(), maxInFlight,
+				metricsRegistry());
+	}
+
+	/**
+	 * Asynchronous request/reply client over direct reply-to. Only created when used.
+	 */
+	@Bean
+	@Lazy
+	public DirectReplyToClient directReplyToClient() {
+		return new DirectReplyToClient(publisherConnectionFactory(), createPublisherMessageConverter(), Optional
+				.ofNullable(getRpcTimeoutMillis()).orElse(DEFAULT_RPC_TIMEOUT_MILLIS), metricsRegistry());
+	}
+
+	/**
+	 * Publisher that spools the messages to a local journal, so sends do not depend on the broker being reachable.
+	 * Only created when used, and requires rabbitmq.outbox.dir.
+	 */
+	@Bean
+	@Lazy
+	public OutboxPublisher outboxPublisher() {
+		String directory = getOutboxDirectory();
+		if (directory == null) {
+			throw new IllegalStateException("The outbox publisher requires " + configKey("rabbitmq.outbox.dir"));
+		}
+		OutboxOptions options = new OutboxOptions();
+		Optional.ofNullable(getOutboxSegmentBytes()).ifPresent(options::setSegmentBytes);
+		Optional.ofNullable(getOutboxMaxBytes()).ifPresent(options::setMaxBytes);
+		options.setForce(isOutboxForce());
+		return new OutboxPublisher(publisherConnectionFactory(), createPublisherMessageConverter(), Paths.get(
+				directory), options, metricsRegistry());
+	}
+
+	/**
+	 * Connection factory of the {@link RabbitAdmin}, and of any other component not using a dedicated one
+	 */
 	@Bean
+	@Primary
 	public ConnectionFactory connectionFactory() {
-		CachingConnectionFactory connectionFactory = new CachingConnectionFactory(getRabbitHost(), getRabbitPort());
+		return createConnectionFactory(null);
+	}
+
+	/**
+	 * Connection factory of the templates, so a publisher blocked by the broker flow control does not stall the
+	 * consumers
+	 */
+	@Bean
+	public CachingConnectionFactory publisherConnectionFactory() {
+		return createConnectionFactory(PUBLISHER_POOL);
+	}
+
+	/**
+	 * Connection factory of the listener containers
+	 */
+	@Bean
+	public CachingConnectionFactory consumerConnectionFactory() {
+		return createConnectionFactory(CONSUMER_POOL);
+	}
+
+	@Bean
+	public ConnectionPoolStats publisherConnectionPoolStats() {
+		return new ConnectionPoolStats(PUBLISHER_POOL, publisherConnectionFactory());
+	}
+
+	@Bean
+	public ConnectionPoolStats consumerConnectionPoolStats() {
+		return new ConnectionPoolStats(CONSUMER_POOL, consumerConnectionFactory());
+	}
+
+	@Bean
+	public RabbitAdmin rabbitAdmin() {
+		return new RabbitAdmin(connectionFactory());
+	}
+
+	@Bean
+	public AmqpConfigurer amqpConfigurer() {
+		RabbitMQConfigurer configurer = new RabbitMQConfigurer(rabbitAdmin(), consumerConnectionFactory(), ConsumerExecutors
+				.create(isConsumerVirtualThreads(), Optional.ofNullable(getConsumerMaxThreads()).orElse(
+						ConsumerExecutors.DEFAULT_MAX_THREADS)));
+		configurer.setDeferDeclarations(isDeferDeclarations());
+		configurer.setMetricsRegistry(metricsRegistry());
+		Optional.ofNullable(getSchedulingSlots()).ifPresent(configurer::setSchedulingSlots);
+		Optional.ofNullable(getMaxDecompressedBytes()).ifPresent(configurer::setMaxDecompressedBytes);
+		return configurer;
+	}
+
+	@Bean
+	public AmqpConfigurationBeanPostProcessor amqpConfigurationBeanPostProcessor() {
+		return new AmqpConfigurationBeanPostProcessor(amqpConfigurer(), Optional.ofNullable(
+				getConfigurationParallelism()).orElse(0));
+	}
+
+	/**
+	 * @param pool name of the dedicated pool, whose cache settings override the general ones, or null
+	 */
+	private CachingConnectionFactory createConnectionFactory(String pool) {
+		CachingConnectionFactory connectionFactory = createCachingConnectionFactory();
 		connectionFactory.setUsername(getRabbitUsername());
 		connectionFactory.setPassword(getRabbitPassword());
 		Integer requestedHeartbeat = getRequestedHeartbeat();
@@ -50,32 +192,95 @@ public abstract class AbstractRabbitMQConfiguration {
 		if (virtualHost != null) {
 			connectionFactory.setVirtualHost(virtualHost);
 		}
+		Integer connectTimeout = getConnectTimeout();
+		if (connectTimeout != null) {
+			connectionFactory.setConnectionTimeout(connectTimeout);
+		}
+		Integer channelCacheSize = getChannelCacheSize(pool);
+		if (channelCacheSize != null) {
+			connectionFactory.setChannelCacheSize(channelCacheSize);
+		}
+		Integer connectionCacheSize = getConnectionCacheSize(pool);
+		CacheMode cacheMode = getCacheMode(pool);
+		if (cacheMode == CacheMode.CONNECTION || (cacheMode == null && connectionCacheSize != null)) {
+			connectionFactory.setCacheMode(CacheMode.CONNECTION);
+			if (connectionCacheSize != null) {
+				connectionFactory.setConnectionCacheSize(connectionCacheSize);
+			}
+		}
+		Long channelCheckoutTimeout = getChannelCheckoutTimeout(pool);
+		if (channelCheckoutTimeout != null) {
+			connectionFactory.setChannelCheckoutTimeout(channelCheckoutTimeout);
+		}
+		String addresses = getRabbitAddresses();
+		if (addresses != null) {
+			connectionFactory.addConnectionListener(new ClusterAddresses(connectionFactory, addresses,
+					isShuffleAddresses()));
+		}
+		Counter channelsCreated = metricsRegistry().counter(AmqpMetrics.CHANNEL_CREATED);
+		connectionFactory.addChannelListener((channel, transactional) -> channelsCreated.increment());
 		return connectionFactory;
 	}
 
-	@Bean
-	public RabbitAdmin rabbitAdmin() {
-		return new RabbitAdmin(connectionFactory());
+	private RabbitTemplate createRabbitTemplate() {
+		Integer batchSize = getPublisherBatchSize();
+		if (batchSize == null || batchSize <= 1) {
+			return new InstrumentedRabbitTemplate(publisherConnectionFactory(), metricsRegistry());
+		}
+		int batchBytes = Optional.ofNullable(getPublisherBatchBytes()).orElse(DEFAULT_PUBLISHER_BATCH_BYTES);
+		long lingerMs = Optional.ofNullable(getPublisherLingerMs()).orElse(DEFAULT_PUBLISHER_LINGER_MS);
+		LOG.info("Batching publisher enabled: batchSize={}, batchBytes={}, lingerMs={}", batchSize, batchBytes,
+				lingerMs);
+		RabbitTemplate template = new InstrumentedBatchingRabbitTemplate(new SimpleBatchingStrategy(batchSize,
+				batchBytes, lingerMs), metricsRegistry());
+		template.setConnectionFactory(publisherConnectionFactory());
+		return template;
 	}
 
-	@Bean
-	public AmqpConfigurer amqpConfigurer() {
-		return new RabbitMQConfigurer(rabbitAdmin(), connectionFactory());
+	/**
+	 * Converter of the publishers that convert the messages themselves, so they are compressed as the template does
+	 */
+	private MessageConverter createPublisherMessageConverter() {
+		MessageConverter messageConverter = getMessageConverter();
+		Optional<CompressingPostProcessor> compressor = createCompressor();
+		if (compressor.isPresent()) {
+			messageConverter = new CompressingMessageConverter(Optional.ofNullable(messageConverter).orElseGet(
+					SimpleMessageConverter::new), compressor.get(), createDecompressor());
+		}
+		return messageConverter;
 	}
 
-	@Bean
-	public AmqpConfigurationBeanPostProcessor amqpConfigurationBeanPostProcessor() {
-		return new AmqpConfigurationBeanPostProcessor(amqpConfigurer());
+	private DecompressingPostProcessor createDecompressor() {
+		return new DecompressingPostProcessor(metricsRegistry(), Optional.ofNullable(getMaxDecompressedBytes()).orElse(
+				DecompressingPostProcessor.DEFAULT_MAX_DECOMPRESSED_BYTES));
+	}
+
+	private Optional<CompressingPostProcessor> createCompressor() {
+		return Optional.ofNullable(getCompression()).map(
+				compression -> new CompressingPostProcessor(Compression.forName(compression), Optional.ofNullable(
+						getCompressionThreshold()).orElse(DEFAULT_COMPRESSION_THRESHOLD), metricsRegistry()));
 	}
 
 	protected abstract Environment getEnvironment();
 
+	/**
+	 * Override by subclasses to create the {@link CachingConnectionFactory} on top of another client connection
+	 * factory, e.g. an in-process stub. The remaining settings are applied to every connection factory created with it.
+	 */
+	protected CachingConnectionFactory createCachingConnectionFactory() {
+		if (getRabbitAddresses() != null) {
+			return new CachingConnectionFactory();
+		}
+		return new CachingConnectionFactory(getRabbitHost(), getRabbitPort());
+	}
+
 	protected Optional<String> configPrefix() {
 		return Optional.empty();
 	}
 
 	/**
-	 * Override by subclasses to define the {@link MessageConverter} of the {@link AmqpTemplate}
+	 * Override by subclasses to define the {@link MessageConverter} of the {@link AmqpTemplate}, e.g. a
+	 * {@link io.corbel.lib.rabbitmq.converter.JacksonMessageConverter}
 	 */
 	protected MessageConverter getMessageConverter() {
 		return null;
@@ -89,6 +294,59 @@ public abstract class AbstractRabbitMQConfiguration {
 		return getEnvironment().getProperty(configKey("rabbitmq.port"), Integer.class);
 	}
 
+	/**
+	 * Comma separated host:port list of the nodes of the cluster. When set, it is used instead of the host and port.
+	 */
+	protected String getRabbitAddresses() {
+		return getEnvironment().getProperty(configKey("rabbitmq.addresses"), String.class);
+	}
+
+	/**
+	 * Shuffle the addresses so the instances of an application do not all connect to the first node. Enabled by
+	 * default.
+	 */
+	protected boolean isShuffleAddresses() {
+		return !Boolean.FALSE.equals(getEnvironment().getProperty(configKey("rabbitmq.addresses.shuffle"),
+				Boolean.class));
+	}
+
+	/**
+	 * Timeout in milliseconds to open the connection to a node before trying the next address
+	 */
+	protected Integer getConnectTimeout() {
+		return getEnvironment().getProperty(configKey("rabbitmq.connectTimeout"), Integer.class);
+	}
+
+	/**
+	 * Number of idle channels kept open by the connection factory for each connection
+	 */
+	protected Integer getChannelCacheSize(String pool) {
+		return getCacheProperty(pool, "channel.size", Integer.class);
+	}
+
+	/**
+	 * Number of connections kept open by the connection factory. When set without a cache mode, a connection is
+	 * cached instead of a single shared one, so with several addresses the connections are spread across the nodes.
+	 */
+	protected Integer getConnectionCacheSize(String pool) {
+		return getCacheProperty(pool, "connection.size", Integer.class);
+	}
+
+	/**
+	 * CHANNEL to share a single connection and cache its channels, or CONNECTION to cache connections
+	 */
+	protected CacheMode getCacheMode(String pool) {
+		return getCacheProperty(pool, "mode", CacheMode.class);
+	}
+
+	/**
+	 * Time in milliseconds to wait for a channel when all the cached ones are checked out. When set, the channel
+	 * cache size becomes a hard limit instead of opening extra channels.
+	 */
+	protected Long getChannelCheckoutTimeout(String pool) {
+		return getCacheProperty(pool, "channel.checkoutTimeout", Long.class);
+	}
+
 	protected String getRabbitUsername() {
 		return getEnvironment().getProperty(configKey("rabbitmq.username"), String.class);
 	}
@@ -109,6 +367,136 @@ public abstract class AbstractRabbitMQConfiguration {
 		return getEnvironment().getProperty(configKey("rabbitmq.virtualHost"), String.class);
 	}
 
+	/**
+	 * Maximum number of messages grouped in a single publish. Batching is disabled when not set.
+	 */
+	protected Integer getPublisherBatchSize() {
+		return getEnvironment().getProperty(configKey("rabbitmq.publisher.batchSize"), Integer.class);
+	}
+
+	protected Integer getPublisherBatchBytes() {
+		return getEnvironment().getProperty(configKey("rabbitmq.publisher.batchBytes"), Integer.class);
+	}
+
+	protected Long getPublisherLingerMs() {
+		return getEnvironment().getProperty(configKey("rabbitmq.publisher.lingerMs"), Long.class);
+	}
+
+	/**
+	 * Maximum number of unconfirmed messages of the {@link ConfirmingPublisher} before senders are blocked.
+	 */
+	protected Integer getPublisherConfirmsMaxInFlight() {
+		return getEnvironment().getProperty(configKey("rabbitmq.publisher.confirms.maxInFlight"), Integer.class);
+	}
+
+	/**
+	 * Time in milliseconds the {@link DirectReplyToClient} waits for a reply
+	 */
+	protected Long getRpcTimeoutMillis() {
+		return getEnvironment().getProperty(configKey("rabbitmq.rpc.timeout"), Long.class);
+	}
+
+	/**
+	 * Directory of the journal of the {@link OutboxPublisher}, on a local disk
+	 */
+	protected String getOutboxDirectory() {
+		return getEnvironment().getProperty(configKey("rabbitmq.outbox.dir"), String.class);
+	}
+
+	/**
+	 * Size in bytes of each file of the outbox journal, which bounds the size of a message
+	 */
+	protected Integer getOutboxSegmentBytes() {
+		return getEnvironment().getProperty(configKey("rabbitmq.outbox.segmentBytes"), Integer.class);
+	}
+
+	/**
+	 * Maximum size in bytes of the outbox journal, sends fail once it is full
+	 */
+	protected Long getOutboxMaxBytes() {
+		return getEnvironment().getProperty(configKey("rabbitmq.outbox.maxBytes"), Long.class);
+	}
+
+	/**
+	 * Flush each message of the outbox journal to disk, so it also survives an operating system crash
+	 */
+	protected boolean isOutboxForce() {
+		return Boolean.TRUE.equals(getEnvironment().getProperty(configKey("rabbitmq.outbox.force"), Boolean.class));
+	}
+
+	/**
+	 * Compression of the published message bodies, gzip or deflate. Messages are not compressed when not set, but
+	 * compressed messages are always decompressed on receive.
+	 */
+	protected String getCompression() {
+		return getEnvironment().getProperty(configKey("rabbitmq.compression"), String.class);
+	}
+
+	/**
+	 * Minimum size in bytes of a message body to compress it
+	 */
+	protected Integer getCompressionThreshold() {
+		return getEnvironment().getProperty(configKey("rabbitmq.compression.threshold"), Integer.class);
+	}
+
+	/**
+	 * Size in bytes over which received compressed messages are rejected once decompressed, 64 MiB by default
+	 */
+	protected Integer getMaxDecompressedBytes() {
+		return getEnvironment().getProperty(configKey("rabbitmq.compression.maxDecompressedBytes"), Integer.class);
+	}
+
+	/**
+	 * Maximum number of threads shared by all the listener containers, unbounded when not set. Containers fail to
+	 * start consumers beyond it.
+	 */
+	protected Integer getConsumerMaxThreads() {
+		return getEnvironment().getProperty(configKey("rabbitmq.consumer.maxThreads"), Integer.class);
+	}
+
+	/**
+	 * Run listener consumers in virtual threads (JDK 21+) instead of the bounded pool
+	 */
+	protected boolean isConsumerVirtualThreads() {
+		return Boolean.TRUE.equals(getEnvironment().getProperty(configKey("rabbitmq.consumer.virtualThreads"),
+				Boolean.class));
+	}
+
+	/**
+	 * Number of listeners of the fairly scheduled containers that may run at the same time
+	 */
+	protected Integer getSchedulingSlots() {
+		return getEnvironment().getProperty(configKey("rabbitmq.scheduling.slots"), Integer.class);
+	}
+
+	/**
+	 * Declare the whole topology in a single pass after the context singletons are created, instead of one round trip
+	 * per declaration
+	 */
+	protected boolean isDeferDeclarations() {
+		return Boolean.TRUE.equals(getEnvironment().getProperty(configKey("rabbitmq.declarations.deferred"),
+				Boolean.class));
+	}
+
+	/**
+	 * Number of threads used to apply the AmqpConfiguration beans concurrently after the context refresh. When not
+	 * set, each configuration is applied synchronously during its bean initialization.
+	 */
+	protected Integer getConfigurationParallelism() {
+		return getEnvironment().getProperty(configKey("rabbitmq.configuration.parallelism"), Integer.class);
+	}
+
+	/**
+	 * Reads rabbitmq.&lt;pool&gt;.cache.&lt;name&gt;, falling back to the rabbitmq.cache.&lt;name&gt; shared by all the pools
+	 */
+	private <T> T getCacheProperty(String pool, String name, Class<T> type) {
+		T value = null;
+		if (pool != null) {
+			value = getEnvironment().getProperty(configKey("rabbitmq." + pool + ".cache." + name), type);
+		}
+		return value != null ? value : getEnvironment().getProperty(configKey("rabbitmq.cache." + name), type);
+	}
+
 	private String configKey(String keyName){
 		return configPrefix().map(prefix -> prefix+".").orElse("").concat(keyName);
 	}
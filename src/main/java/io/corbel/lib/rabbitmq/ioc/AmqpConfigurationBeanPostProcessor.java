@@ -1,17 +1,56 @@
 package io.corbel.lib.rabbitmq.ioc;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanInitializationException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import io.corbel.lib.rabbitmq.config.AmqpConfiguration;
 import io.corbel.lib.rabbitmq.config.AmqpConfigurer;
+import io.corbel.lib.rabbitmq.config.RabbitMQConfigurer;
+
+/**
+ * Runs the {@link AmqpConfiguration} beans against the {@link AmqpConfigurer}.
+ *
+ * By default each configuration runs as soon as its bean is initialized. With a positive parallelism, configurations
+ * are collected and run concurrently on a pool of that size once the context is refreshed, so their round trips to
+ * the broker overlap. The refresh waits for all of them and fails with the first failure, as it does when they run
+ * synchronously. {@link #getReadiness()} completes when all of them have finished.
+ */
+public class AmqpConfigurationBeanPostProcessor implements BeanPostProcessor,
+		ApplicationListener<ContextRefreshedEvent> {
 
-public class AmqpConfigurationBeanPostProcessor implements BeanPostProcessor {
+	private static final Logger LOG = LoggerFactory.getLogger(AmqpConfigurationBeanPostProcessor.class);
 
 	private final AmqpConfigurer configurer;
+	private final int parallelism;
+	private final List<AmqpConfiguration> pending = new CopyOnWriteArrayList<>();
+	private final CompletableFuture<Void> readiness = new CompletableFuture<>();
+	private final AtomicBoolean started = new AtomicBoolean();
 
 	public AmqpConfigurationBeanPostProcessor(AmqpConfigurer configurer) {
+		this(configurer, 0);
+	}
+
+	public AmqpConfigurationBeanPostProcessor(AmqpConfigurer configurer, int parallelism) {
 		this.configurer = configurer;
+		this.parallelism = parallelism;
+		if (parallelism <= 0) {
+			readiness.complete(null);
+		}
 	}
 
 	@Override
@@ -22,9 +61,72 @@ public class AmqpConfigurationBeanPostProcessor implements BeanPostProcessor {
 	@Override
 	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
 		if (AmqpConfiguration.class.isAssignableFrom(bean.getClass())) {
-			((AmqpConfiguration) bean).configure(configurer);
+			if (parallelism > 0) {
+				pending.add((AmqpConfiguration) bean);
+			} else {
+				((AmqpConfiguration) bean).configure(configurer);
+			}
 		}
 		return bean;
 	}
 
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		if (parallelism > 0 && started.compareAndSet(false, true)) {
+			configurePending();
+			try {
+				readiness.join();
+			} catch (CompletionException e) {
+				throw new BeanInitializationException("AMQP configuration failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @return future completed once all the {@link AmqpConfiguration} beans have been applied, or completed
+	 *         exceptionally if any of them failed
+	 */
+	public CompletableFuture<Void> getReadiness() {
+		return readiness;
+	}
+
+	private void configurePending() {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory(
+				"rabbitmq-configuration-"));
+		AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+		CompletableFuture<?>[] configurations = pending.stream()
+				.map(configuration -> CompletableFuture.runAsync(() -> configuration.configure(configurer), executor)
+						.whenComplete((result, error) -> {
+							if (error != null) {
+								firstFailure.compareAndSet(null, unwrap(error));
+							}
+						})).toArray(CompletableFuture[]::new);
+		CompletableFuture.allOf(configurations).thenRun(this::declareDeferred).whenComplete((result, error) -> {
+			executor.shutdown();
+			if (error != null) {
+				Throwable cause = firstFailure.get() != null ? firstFailure.get() : unwrap(error);
+				LOG.error("AMQP configuration failed", cause);
+				readiness.completeExceptionally(cause);
+			} else {
+				LOG.info("Applied {} AMQP configurations in {} ms", configurations.length, System
+						.currentTimeMillis() - start);
+				readiness.complete(null);
+			}
+		});
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+	}
+
+	/**
+	 * Deferred declarations were already sent when the singletons were created, before these configurations ran
+	 */
+	private void declareDeferred() {
+		if (configurer instanceof RabbitMQConfigurer && ((RabbitMQConfigurer) configurer).isDeferDeclarations()) {
+			((RabbitMQConfigurer) configurer).declareAll();
+		}
+	}
+
 }
@@ -0,0 +1,12 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import java.util.List;
+
+import org.springframework.amqp.core.Message;
+
+@FunctionalInterface
+public interface BatchMessageListener {
+
+	void onMessages(List<Message> messages) throws Exception;
+
+}
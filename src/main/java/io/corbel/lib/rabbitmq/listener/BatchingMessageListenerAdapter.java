@@ -0,0 +1,226 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.aopalliance.aop.Advice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.aop.framework.ProxyFactory;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.config.AdviceChains;
+import io.corbel.lib.rabbitmq.config.DeduplicationAdvice;
+
+/**
+ * Collects up to {@code batchSize} messages, or the messages received in {@code batchTimeoutMillis}, and hands them to
+ * a {@link BatchMessageListener} at once. A successful batch is acknowledged with a single multiple ack.
+ *
+ * When the batch fails, its messages are handled one by one through the advice chain of the container, so the retry
+ * interceptor and its recoverer decide what happens to each failing message: it is rejected without requeue when the
+ * recoverer gives up with an {@link AmqpRejectAndDontRequeueException}, and requeued otherwise. The adapter takes
+ * over that chain, since around {@link #onMessage(Message, Channel)} the advices would only see messages being added
+ * to a batch, see {@link #takeAdviceChain(SimpleMessageListenerContainer)}. The {@link DeduplicationAdvice advices
+ * that skip duplicates} also leave them out of the batches, and record the messages of the successful ones.
+ *
+ * The container must use {@link AcknowledgeMode#MANUAL}, see {@link #configure(SimpleMessageListenerContainer)}.
+ */
+public class BatchingMessageListenerAdapter implements ChannelAwareMessageListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchingMessageListenerAdapter.class);
+
+	private final BatchMessageListener listener;
+	private final int batchSize;
+	private final long batchTimeoutMillis;
+	private final Map<Channel, Batch> batches = new ConcurrentHashMap<>();
+	private final List<Advice> adviceChain = new ArrayList<>();
+	private final List<DeduplicationAdvice> deduplications = new CopyOnWriteArrayList<>();
+
+	private MessageHandler singleMessageHandler;
+
+	public BatchingMessageListenerAdapter(BatchMessageListener listener, int batchSize, long batchTimeoutMillis) {
+		this.listener = listener;
+		this.batchSize = batchSize;
+		this.batchTimeoutMillis = batchTimeoutMillis;
+	}
+
+	/**
+	 * Sets this adapter as the listener of the container with manual acks and enough prefetch to fill a batch. Takes
+	 * over the advice chain set on the container so far.
+	 */
+	public SimpleMessageListenerContainer configure(SimpleMessageListenerContainer container) {
+		container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+		container.setPrefetchCount(batchSize);
+		container.setMessageListener(this);
+		takeAdviceChain(container);
+		return container;
+	}
+
+	/**
+	 * Moves the advices of the container to the handling of single messages, after the ones already taken, and clears
+	 * its advice chain. Must be called again when advices are added to the container after
+	 * {@link #configure(SimpleMessageListenerContainer)} and before it is initialized.
+	 */
+	public synchronized void takeAdviceChain(SimpleMessageListenerContainer container) {
+		Advice[] chain = AdviceChains.get(container);
+		if (chain.length > 0) {
+			Collections.addAll(adviceChain, chain);
+			for (Advice advice : chain) {
+				if (advice instanceof DeduplicationAdvice) {
+					deduplications.add((DeduplicationAdvice) advice);
+				}
+			}
+			container.setAdviceChain(new Advice[0]);
+			singleMessageHandler = null;
+		}
+	}
+
+	@Override
+	public void onMessage(Message message, Channel channel) throws Exception {
+		Batch batch = batches.computeIfAbsent(channel, Batch::new);
+		synchronized (batch) {
+			batch.add(message);
+			if (batch.size() >= batchSize) {
+				flush(batch);
+			}
+		}
+	}
+
+	/**
+	 * Flushes the batches whose first message has waited longer than the batch timeout. Must be called periodically.
+	 */
+	public void flushExpired() {
+		long now = System.currentTimeMillis();
+		for (Batch batch : batches.values()) {
+			synchronized (batch) {
+				if (!batch.channel.isOpen()) {
+					// Unacked messages of a closed channel are redelivered by the broker
+					batches.remove(batch.channel);
+				} else if (batch.size() > 0 && now - batch.startTime >= batchTimeoutMillis) {
+					flush(batch);
+				}
+			}
+		}
+	}
+
+	public long getBatchTimeoutMillis() {
+		return batchTimeoutMillis;
+	}
+
+	private void flush(Batch batch) {
+		List<Message> messages = batch.drain();
+		try {
+			try {
+				List<Message> unhandled = messages;
+				for (DeduplicationAdvice deduplication : deduplications) {
+					unhandled = deduplication.skipDuplicates(unhandled);
+				}
+				if (!unhandled.isEmpty()) {
+					listener.onMessages(Collections.unmodifiableList(unhandled));
+				}
+				for (DeduplicationAdvice deduplication : deduplications) {
+					deduplication.handled(unhandled);
+				}
+				// Also acknowledges the duplicates
+				batch.channel.basicAck(deliveryTag(messages.get(messages.size() - 1)), true);
+			} catch (Exception e) {
+				LOG.warn("Batch of {} messages failed, handling them one by one: {}", messages.size(), e.getMessage());
+				for (Message message : messages) {
+					handleSingle(batch.channel, message);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to acknowledge batch of {} messages", messages.size(), e);
+		}
+	}
+
+	private void handleSingle(Channel channel, Message message) throws IOException {
+		try {
+			singleMessageHandler().handle(channel, message);
+			channel.basicAck(deliveryTag(message), false);
+		} catch (Exception e) {
+			boolean requeue = !isRejectAndDontRequeue(e);
+			LOG.warn("Rejecting message {} (requeue: {})", deliveryTag(message), requeue, e);
+			channel.basicReject(deliveryTag(message), requeue);
+		}
+	}
+
+	private synchronized MessageHandler singleMessageHandler() {
+		if (singleMessageHandler == null) {
+			singleMessageHandler = createSingleMessageHandler();
+		}
+		return singleMessageHandler;
+	}
+
+	private MessageHandler createSingleMessageHandler() {
+		MessageHandler handler = (channel, message) -> listener.onMessages(Collections.singletonList(message));
+		ProxyFactory factory = new ProxyFactory();
+		for (Advice advice : adviceChain) {
+			factory.addAdvice(advice);
+		}
+		factory.addInterface(MessageHandler.class);
+		factory.setTarget(handler);
+		return (MessageHandler) factory.getProxy(getClass().getClassLoader());
+	}
+
+	private static boolean isRejectAndDontRequeue(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof AmqpRejectAndDontRequeueException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long deliveryTag(Message message) {
+		return message.getMessageProperties().getDeliveryTag();
+	}
+
+	/**
+	 * Same signature as the listener invocation of the container, which is what its advices (and the retry recoverers)
+	 * expect.
+	 */
+	private interface MessageHandler {
+		void handle(Channel channel, Message message) throws Exception;
+	}
+
+	private static class Batch {
+
+		private final Channel channel;
+		private List<Message> messages = new ArrayList<>();
+		private long startTime;
+
+		Batch(Channel channel) {
+			this.channel = channel;
+		}
+
+		void add(Message message) {
+			if (messages.isEmpty()) {
+				startTime = System.currentTimeMillis();
+			}
+			messages.add(message);
+		}
+
+		int size() {
+			return messages.size();
+		}
+
+		List<Message> drain() {
+			List<Message> drained = messages;
+			messages = new ArrayList<>();
+			return drained;
+		}
+	}
+
+}
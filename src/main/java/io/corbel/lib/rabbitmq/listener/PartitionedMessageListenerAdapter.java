@@ -0,0 +1,253 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.aopalliance.aop.Advice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.config.AdviceChains;
+
+/**
+ * Dispatches the messages of a single consumer to a fixed number of lanes, each one handled by its own thread. The
+ * lane of a message is chosen by the hash of its partition key, so messages with the same key are handled in the
+ * order they were received while messages with different keys are handled in parallel.
+ *
+ * Lanes complete messages out of order, so the delivery tags of each channel are tracked and acknowledged with a
+ * multiple ack up to the first one still being handled. Completed messages waiting behind a slow one are acknowledged
+ * one by one when they reach half the prefetch, so a slow lane does not stall the others.
+ *
+ * Each message is handled in its lane through the advice chain of the container, which the adapter takes over so the
+ * advices do not also run around the dispatch, see {@link #takeAdviceChain(SimpleMessageListenerContainer)}. A
+ * failing message is rejected, without requeue when the advices give up with an
+ * {@link AmqpRejectAndDontRequeueException}: a requeued message goes back to the end of the queue, so a stateless
+ * retry interceptor, which retries in the lane, is the way to keep the order on failures.
+ *
+ * The container must use a single consumer with {@link AcknowledgeMode#MANUAL}, see
+ * {@link #configure(SimpleMessageListenerContainer)}.
+ */
+public class PartitionedMessageListenerAdapter implements ChannelAwareMessageListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PartitionedMessageListenerAdapter.class);
+
+	private static final int PREFETCH_PER_LANE = 16;
+
+	private final MessageListener listener;
+	private final Function<Message, Object> partitionKey;
+	private final ExecutorService[] lanes;
+	private final int prefetch;
+	private final Map<Channel, AckTracker> trackers = new ConcurrentHashMap<>();
+	private final AtomicLong unkeyed = new AtomicLong();
+	private final List<Advice> adviceChain = new ArrayList<>();
+
+	private MessageHandler messageHandler;
+
+	public PartitionedMessageListenerAdapter(MessageListener listener, int lanes, Function<Message, Object> partitionKey) {
+		this.listener = listener;
+		this.partitionKey = partitionKey;
+		this.lanes = new ExecutorService[lanes];
+		this.prefetch = lanes * PREFETCH_PER_LANE;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rabbitmq-lane-");
+		threadFactory.setDaemon(true);
+		for (int i = 0; i < lanes; i++) {
+			this.lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+		}
+	}
+
+	/**
+	 * @return partition key read from a header of the message
+	 */
+	public static Function<Message, Object> headerKey(String headerName) {
+		return message -> message.getMessageProperties().getHeaders().get(headerName);
+	}
+
+	/**
+	 * @return partition key read from the routing key the message was published with
+	 */
+	public static Function<Message, Object> routingKey() {
+		return message -> message.getMessageProperties().getReceivedRoutingKey();
+	}
+
+	/**
+	 * Sets this adapter as the listener of the container, with a single consumer, so messages are received in the
+	 * order of the queue, manual acks, and enough prefetch to keep all the lanes busy. Takes over the advice chain set
+	 * on the container so far.
+	 */
+	public SimpleMessageListenerContainer configure(SimpleMessageListenerContainer container) {
+		container.setConcurrentConsumers(1);
+		container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+		container.setPrefetchCount(prefetch);
+		container.setMessageListener(this);
+		takeAdviceChain(container);
+		return container;
+	}
+
+	/**
+	 * Moves the advices of the container to the lanes, after the ones already taken, and clears its advice chain. Must
+	 * be called again when advices are added to the container after {@link #configure(SimpleMessageListenerContainer)}
+	 * and before it is initialized.
+	 */
+	public synchronized void takeAdviceChain(SimpleMessageListenerContainer container) {
+		Advice[] chain = AdviceChains.get(container);
+		if (chain.length > 0) {
+			Collections.addAll(adviceChain, chain);
+			container.setAdviceChain(new Advice[0]);
+			messageHandler = null;
+		}
+	}
+
+	@Override
+	public void onMessage(Message message, Channel channel) {
+		AckTracker tracker = trackers.computeIfAbsent(channel, AckTracker::new);
+		if (trackers.size() > 1) {
+			// Unacked messages of a closed channel are redelivered by the broker
+			trackers.values().removeIf(previous -> !previous.channel.isOpen());
+		}
+		tracker.add(deliveryTag(message));
+		lane(message).execute(() -> handle(tracker, message));
+	}
+
+	public void shutdown() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+	}
+
+	private ExecutorService lane(Message message) {
+		Object key = partitionKey.apply(message);
+		long hash = key != null ? key.hashCode() : unkeyed.getAndIncrement();
+		return lanes[(int) Math.floorMod(hash, (long) lanes.length)];
+	}
+
+	private void handle(AckTracker tracker, Message message) {
+		long deliveryTag = deliveryTag(message);
+		try {
+			try {
+				messageHandler().handle(tracker.channel, message);
+				tracker.complete(deliveryTag);
+			} catch (Exception e) {
+				boolean requeue = !isRejectAndDontRequeue(e);
+				LOG.warn("Rejecting message {} (requeue: {})", deliveryTag, requeue, e);
+				tracker.reject(deliveryTag, requeue);
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to acknowledge message {}", deliveryTag, e);
+		}
+	}
+
+	private synchronized MessageHandler messageHandler() {
+		if (messageHandler == null) {
+			MessageHandler handler = (channel, message) -> listener.onMessage(message);
+			ProxyFactory factory = new ProxyFactory();
+			for (Advice advice : adviceChain) {
+				factory.addAdvice(advice);
+			}
+			factory.addInterface(MessageHandler.class);
+			factory.setTarget(handler);
+			messageHandler = (MessageHandler) factory.getProxy(getClass().getClassLoader());
+		}
+		return messageHandler;
+	}
+
+	private static boolean isRejectAndDontRequeue(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof AmqpRejectAndDontRequeueException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long deliveryTag(Message message) {
+		return message.getMessageProperties().getDeliveryTag();
+	}
+
+	/**
+	 * Same signature as the listener invocation of the container, which is what its advices expect.
+	 */
+	private interface MessageHandler {
+		void handle(Channel channel, Message message) throws Exception;
+	}
+
+	private enum Delivery {
+		PENDING, COMPLETED, ACKED
+	}
+
+	private class AckTracker {
+
+		private final Channel channel;
+		private final TreeMap<Long, Delivery> deliveries = new TreeMap<>();
+		private int completed;
+
+		AckTracker(Channel channel) {
+			this.channel = channel;
+		}
+
+		synchronized void add(long deliveryTag) {
+			deliveries.put(deliveryTag, Delivery.PENDING);
+		}
+
+		synchronized void complete(long deliveryTag) throws IOException {
+			deliveries.put(deliveryTag, Delivery.COMPLETED);
+			completed++;
+			acknowledgeCompleted();
+		}
+
+		synchronized void reject(long deliveryTag, boolean requeue) throws IOException {
+			deliveries.remove(deliveryTag);
+			channel.basicReject(deliveryTag, requeue);
+			acknowledgeCompleted();
+		}
+
+		private void acknowledgeCompleted() throws IOException {
+			// Only a completed tag can close the multiple ack, the broker refuses a tag it already acked
+			long lastCompleted = -1;
+			Iterator<Map.Entry<Long, Delivery>> iterator = deliveries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Long, Delivery> delivery = iterator.next();
+				if (delivery.getValue() == Delivery.PENDING) {
+					break;
+				}
+				if (delivery.getValue() == Delivery.COMPLETED) {
+					lastCompleted = delivery.getKey();
+					completed--;
+				}
+				iterator.remove();
+			}
+			if (lastCompleted >= 0) {
+				channel.basicAck(lastCompleted, true);
+			}
+			if (completed >= prefetch / 2) {
+				for (Map.Entry<Long, Delivery> delivery : deliveries.entrySet()) {
+					if (delivery.getValue() == Delivery.COMPLETED) {
+						channel.basicAck(delivery.getKey(), false);
+						delivery.setValue(Delivery.ACKED);
+					}
+				}
+				completed = 0;
+			}
+		}
+	}
+
+}
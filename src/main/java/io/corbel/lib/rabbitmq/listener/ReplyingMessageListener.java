@@ -0,0 +1,50 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Server side of a request/reply exchange: replies to each request with the result of the handler, sent through the
+ * default exchange to the reply-to address of the request, with its correlation id. The reply is published on the
+ * channel the request was received from, which is what the direct reply-to of a
+ * {@link io.corbel.lib.rabbitmq.publisher.DirectReplyToClient} expects.
+ *
+ * A handler failure is handled by the container as any listener failure, and the client request times out.
+ */
+public class ReplyingMessageListener implements ChannelAwareMessageListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReplyingMessageListener.class);
+
+	private final RequestHandler handler;
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+
+	public ReplyingMessageListener(RequestHandler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void onMessage(Message request, Channel channel) throws Exception {
+		Message reply = handler.handle(request);
+		String replyTo = request.getMessageProperties().getReplyTo();
+		if (reply == null) {
+			return;
+		}
+		if (replyTo == null) {
+			LOG.warn("Discarding reply to request {} without reply-to address", request.getMessageProperties()
+					.getMessageId());
+			return;
+		}
+		MessageProperties replyProperties = reply.getMessageProperties();
+		replyProperties.setCorrelationId(request.getMessageProperties().getCorrelationId());
+		channel.basicPublish("", replyTo, false, messagePropertiesConverter.fromMessageProperties(replyProperties,
+				"UTF-8"), reply.getBody());
+	}
+
+}
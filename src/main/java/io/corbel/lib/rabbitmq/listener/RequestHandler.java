@@ -0,0 +1,13 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import org.springframework.amqp.core.Message;
+
+@FunctionalInterface
+public interface RequestHandler {
+
+	/**
+	 * @return the reply to the request, or null to not reply
+	 */
+	Message handle(Message request) throws Exception;
+
+}
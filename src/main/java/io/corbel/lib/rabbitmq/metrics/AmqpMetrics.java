@@ -0,0 +1,64 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+/**
+ * Names of the metrics reported to the {@link MetricsRegistry}
+ */
+public final class AmqpMetrics {
+
+	/** Time spent writing a message to the channel */
+	public static final String PUBLISH_LATENCY = "rabbitmq.publish.latency";
+	/** Time between a send and the broker confirm */
+	public static final String CONFIRM_LATENCY = "rabbitmq.publish.confirm.latency";
+	/** Time between a request of the direct reply-to client and its reply */
+	public static final String RPC_LATENCY = "rabbitmq.rpc.latency";
+	/** Requests of the direct reply-to client whose reply did not arrive before the timeout */
+	public static final String RPC_TIMEOUTS = "rabbitmq.rpc.timeouts";
+	/** Time spent appending a message to the outbox journal */
+	public static final String OUTBOX_APPEND_LATENCY = "rabbitmq.outbox.append.latency";
+	/** Messages of the outbox journal sent and confirmed by the broker */
+	public static final String OUTBOX_DRAINED = "rabbitmq.outbox.drained";
+	/** Channels checked out by the templates to publish or to run channel callbacks */
+	public static final String CHANNEL_CHECKOUTS = "rabbitmq.channel.checkouts";
+	/** Channels physically opened, that is, checkouts not served by the channel cache */
+	public static final String CHANNEL_CREATED = "rabbitmq.channel.created";
+	/** Time spent by the listener handling a message, retries included */
+	public static final String HANDLER_TIME = "rabbitmq.listener.handler.time";
+	/** Time between the timestamp of a message and its handling, only for messages with timestamp */
+	public static final String QUEUE_LAG = "rabbitmq.listener.lag";
+	/** Failed listener attempts handled by the retry interceptor */
+	public static final String RETRIES = "rabbitmq.listener.retries";
+	/** Messages rejected without requeue once retries are exhausted */
+	public static final String DEAD_LETTERED = "rabbitmq.listener.deadLettered";
+	/** Messages skipped because their key was already handled */
+	public static final String DEDUPLICATION_HITS = "rabbitmq.listener.deduplication.hits";
+	/** Messages with a key not handled before */
+	public static final String DEDUPLICATION_MISSES = "rabbitmq.listener.deduplication.misses";
+
+	private AmqpMetrics() {}
+
+	/** Bytes of the message bodies compressed with the given encoding, before compressing them */
+	public static String compressionUncompressedBytes(String encoding) {
+		return "rabbitmq.compression." + encoding + ".uncompressedBytes";
+	}
+
+	/** Bytes of the message bodies compressed with the given encoding, as sent to the broker */
+	public static String compressionCompressedBytes(String encoding) {
+		return "rabbitmq.compression." + encoding + ".compressedBytes";
+	}
+
+	/** Bytes of the received message bodies compressed with the given encoding, as received from the broker */
+	public static String decompressionCompressedBytes(String encoding) {
+		return "rabbitmq.decompression." + encoding + ".compressedBytes";
+	}
+
+	/** Time the consumers of the containers of the given scheduling class waited for a slot of the fair scheduler */
+	public static String schedulingWait(String schedulingClass) {
+		return "rabbitmq.scheduling." + schedulingClass + ".wait";
+	}
+
+	/** Bytes of the received message bodies compressed with the given encoding, after decompressing them */
+	public static String decompressionUncompressedBytes(String encoding) {
+		return "rabbitmq.decompression." + encoding + ".uncompressedBytes";
+	}
+
+}
@@ -0,0 +1,12 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+@FunctionalInterface
+public interface Counter {
+
+	void add(long amount);
+
+	default void increment() {
+		add(1);
+	}
+
+}
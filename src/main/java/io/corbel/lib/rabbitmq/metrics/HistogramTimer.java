@@ -0,0 +1,78 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, in the style of HdrHistogram: each power of two is split in
+ * {@value #SUB_BUCKETS} linear sub-buckets, so recorded values keep a relative precision of 1/{@value #SUB_BUCKETS}
+ * over the whole range with a fixed footprint.
+ */
+public class HistogramTimer implements Timer {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+
+	@Override
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		total.add(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanNanos() {
+		long samples = count.sum();
+		return samples > 0 ? (double) total.sum() / samples : 0;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound of the bucket holding the percentile, in nanoseconds
+	 */
+	public long getPercentileNanos(double percentile) {
+		long samples = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			samples += counts[i];
+		}
+		long target = (long) Math.ceil(samples * percentile / 100.0);
+		long accumulated = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			accumulated += counts[i];
+			if (accumulated >= target && accumulated > 0) {
+				return upperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+		int subBucket = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+
+	static long upperBound(int bucket) {
+		int magnitude = bucket / SUB_BUCKETS;
+		int subBucket = bucket % SUB_BUCKETS;
+		if (magnitude == 0) {
+			return subBucket;
+		}
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - 1)) - 1;
+	}
+
+}
@@ -0,0 +1,41 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.amqp.core.Message;
+
+/**
+ * Advice for the listener containers that records the handler time and, for messages with timestamp, the lag between
+ * publication and handling
+ */
+public class ListenerMetricsAdvice implements MethodInterceptor {
+
+	private final Timer handlerTime;
+	private final Timer queueLag;
+
+	public ListenerMetricsAdvice(MetricsRegistry metricsRegistry) {
+		this.handlerTime = metricsRegistry.timer(AmqpMetrics.HANDLER_TIME);
+		this.queueLag = metricsRegistry.timer(AmqpMetrics.QUEUE_LAG);
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		Object[] arguments = invocation.getArguments();
+		if (arguments.length > 1 && arguments[1] instanceof Message) {
+			Date timestamp = ((Message) arguments[1]).getMessageProperties().getTimestamp();
+			if (timestamp != null) {
+				queueLag.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - timestamp.getTime()));
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			return invocation.proceed();
+		} finally {
+			handlerTime.record(System.nanoTime() - start);
+		}
+	}
+
+}
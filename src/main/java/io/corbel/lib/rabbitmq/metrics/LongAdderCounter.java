@@ -0,0 +1,18 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class LongAdderCounter implements Counter {
+
+	private final LongAdder count = new LongAdder();
+
+	@Override
+	public void add(long amount) {
+		count.add(amount);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+}
@@ -0,0 +1,31 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+/**
+ * Adapter to the metrics system where the library reports its hot path metrics. Implementations must return the same
+ * instance for the same name, since callers look them up once and keep them.
+ *
+ * @see AmqpMetrics for the names of the reported metrics
+ */
+public interface MetricsRegistry {
+
+	MetricsRegistry NOOP = new MetricsRegistry() {
+
+		private final Counter counter = amount -> {};
+		private final Timer timer = nanos -> {};
+
+		@Override
+		public Counter counter(String name) {
+			return counter;
+		}
+
+		@Override
+		public Timer timer(String name) {
+			return timer;
+		}
+	};
+
+	Counter counter(String name);
+
+	Timer timer(String name);
+
+}
@@ -0,0 +1,21 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.listener.RetryListenerSupport;
+
+public class RetryMetricsListener extends RetryListenerSupport {
+
+	private final Counter retries;
+
+	public RetryMetricsListener(MetricsRegistry metricsRegistry) {
+		this.retries = metricsRegistry.counter(AmqpMetrics.RETRIES);
+	}
+
+	@Override
+	public <T, E extends Throwable> void onError(RetryContext context, RetryCallback<T, E> callback,
+			Throwable throwable) {
+		retries.increment();
+	}
+
+}
@@ -0,0 +1,33 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory {@link MetricsRegistry} backed by {@link LongAdderCounter} and {@link HistogramTimer}
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+	private final Map<String, LongAdderCounter> counters = new ConcurrentHashMap<>();
+	private final Map<String, HistogramTimer> timers = new ConcurrentHashMap<>();
+
+	@Override
+	public LongAdderCounter counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdderCounter());
+	}
+
+	@Override
+	public HistogramTimer timer(String name) {
+		return timers.computeIfAbsent(name, key -> new HistogramTimer());
+	}
+
+	public Map<String, LongAdderCounter> getCounters() {
+		return Collections.unmodifiableMap(counters);
+	}
+
+	public Map<String, HistogramTimer> getTimers() {
+		return Collections.unmodifiableMap(timers);
+	}
+
+}
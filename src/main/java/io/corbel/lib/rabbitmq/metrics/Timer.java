@@ -0,0 +1,8 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+@FunctionalInterface
+public interface Timer {
+
+	void record(long nanos);
+
+}
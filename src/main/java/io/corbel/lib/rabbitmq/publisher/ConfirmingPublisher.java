@@ -0,0 +1,219 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.RabbitExceptionTranslator;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.Timer;
+
+/**
+ * Publisher that uses RabbitMQ publisher confirms without blocking the caller until the broker answers. Every send
+ * returns a {@link CompletableFuture} which is completed when the broker acks (or nacks) the message.
+ *
+ * Outstanding messages are kept in a sorted map by delivery tag, so a multiple ack completes the whole range at once.
+ * The number of unconfirmed messages is bounded by {@code maxInFlight}: once the window is full, senders block until
+ * the broker confirms older messages.
+ *
+ * Confirms arrive on the connection thread, which must never block, so the returned futures are completed on the
+ * callback executor. Dependent stages may then send again even when the window is full.
+ */
+public class ConfirmingPublisher implements DisposableBean {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConfirmingPublisher.class);
+
+	private final ConnectionFactory connectionFactory;
+	private final MessageConverter messageConverter;
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+	private final Semaphore window;
+	private final Timer confirmLatency;
+	private final Executor callbackExecutor;
+
+	private volatile ConfirmChannel confirmChannel;
+
+	public ConfirmingPublisher(ConnectionFactory connectionFactory, MessageConverter messageConverter, int maxInFlight) {
+		this(connectionFactory, messageConverter, maxInFlight, MetricsRegistry.NOOP);
+	}
+
+	public ConfirmingPublisher(ConnectionFactory connectionFactory, MessageConverter messageConverter,
+			int maxInFlight, MetricsRegistry metricsRegistry) {
+		this(connectionFactory, messageConverter, maxInFlight, metricsRegistry, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param callbackExecutor executor that completes the futures returned by the sends
+	 */
+	public ConfirmingPublisher(ConnectionFactory connectionFactory, MessageConverter messageConverter,
+			int maxInFlight, MetricsRegistry metricsRegistry, Executor callbackExecutor) {
+		this.connectionFactory = connectionFactory;
+		this.messageConverter = messageConverter != null ? messageConverter : new SimpleMessageConverter();
+		this.window = new Semaphore(maxInFlight);
+		this.confirmLatency = metricsRegistry.timer(AmqpMetrics.CONFIRM_LATENCY);
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	public CompletableFuture<Void> convertAndSend(String exchange, String routingKey, Object object) {
+		return send(exchange, routingKey, messageConverter.toMessage(object, new MessageProperties()));
+	}
+
+	/**
+	 * Blocks while the window of unconfirmed messages is full.
+	 *
+	 * @return future completed on the callback executor when the broker confirms the message
+	 */
+	public CompletableFuture<Void> send(String exchange, String routingKey, Message message) {
+		acquireWindow();
+		long start = System.nanoTime();
+		CompletableFuture<Void> confirm = new CompletableFuture<>();
+		// Frees the window on the thread that gets the confirm, whatever the callbacks of the caller do
+		confirm.whenComplete((result, error) -> {
+			window.release();
+			confirmLatency.record(System.nanoTime() - start);
+		});
+		try {
+			publish(exchange, routingKey, message, confirm);
+		} catch (Exception e) {
+			confirm.completeExceptionally(RabbitExceptionTranslator.convertRabbitAccessException(e));
+		}
+		return confirm.whenCompleteAsync((result, error) -> {}, callbackExecutor);
+	}
+
+	/**
+	 * @return number of messages sent and still waiting for a confirm from the broker
+	 */
+	public int getInFlight() {
+		ConfirmChannel current = confirmChannel;
+		return current != null ? current.outstanding.size() : 0;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (confirmChannel != null) {
+			confirmChannel.close();
+			confirmChannel = null;
+		}
+	}
+
+	private void acquireWindow() {
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmqpException("Interrupted waiting for publisher confirms window", e);
+		}
+	}
+
+	private synchronized void publish(String exchange, String routingKey, Message message,
+			CompletableFuture<Void> future) throws IOException {
+		ConfirmChannel current = openChannel();
+		long deliveryTag = current.channel.getNextPublishSeqNo();
+		// Register before publishing so that a channel shutdown always sees the pending future
+		current.outstanding.put(deliveryTag, future);
+		try {
+			current.channel.basicPublish(exchange, routingKey, false, messagePropertiesConverter
+					.fromMessageProperties(message.getMessageProperties(), "UTF-8"), message.getBody());
+		} catch (IOException | RuntimeException e) {
+			current.outstanding.remove(deliveryTag);
+			throw e;
+		}
+	}
+
+	private ConfirmChannel openChannel() throws IOException {
+		if (confirmChannel == null || !confirmChannel.channel.isOpen()) {
+			confirmChannel = new ConfirmChannel(connectionFactory.createConnection().createChannel(false));
+		}
+		return confirmChannel;
+	}
+
+	private static class ConfirmChannel implements ConfirmListener {
+
+		private final Channel channel;
+		private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+
+		ConfirmChannel(Channel channel) throws IOException {
+			this.channel = channel;
+			channel.confirmSelect();
+			channel.addConfirmListener(this);
+			channel.addShutdownListener(this::shutdownCompleted);
+		}
+
+		@Override
+		public void handleAck(long deliveryTag, boolean multiple) {
+			complete(deliveryTag, multiple, null);
+		}
+
+		@Override
+		public void handleNack(long deliveryTag, boolean multiple) {
+			complete(deliveryTag, multiple, new AmqpException("Message nacked by broker"));
+		}
+
+		private void complete(long deliveryTag, boolean multiple, AmqpException error) {
+			if (multiple) {
+				Map<Long, CompletableFuture<Void>> confirmed = outstanding.headMap(deliveryTag, true);
+				confirmed.values().forEach(future -> complete(future, error));
+				confirmed.clear();
+			} else {
+				CompletableFuture<Void> future = outstanding.remove(deliveryTag);
+				if (future != null) {
+					complete(future, error);
+				}
+			}
+		}
+
+		private void complete(CompletableFuture<Void> future, AmqpException error) {
+			if (error == null) {
+				future.complete(null);
+			} else {
+				future.completeExceptionally(error);
+			}
+		}
+
+		private void shutdownCompleted(ShutdownSignalException cause) {
+			if (!outstanding.isEmpty()) {
+				LOG.warn("Publisher confirms channel closed with {} unconfirmed messages", outstanding.size());
+				failOutstanding(RabbitExceptionTranslator.convertRabbitAccessException(cause));
+			}
+		}
+
+		private void failOutstanding(RuntimeException cause) {
+			outstanding.values().forEach(future -> future.completeExceptionally(cause));
+			outstanding.clear();
+		}
+
+		void close() {
+			// The confirm listener is bound to the physical channel, so it must not go back to the channel cache
+			RabbitUtils.setPhysicalCloseRequired(true);
+			try {
+				RabbitUtils.closeChannel(channel);
+			} finally {
+				RabbitUtils.setPhysicalCloseRequired(false);
+			}
+			failOutstanding(new AmqpException("Publisher closed before messages were confirmed"));
+		}
+	}
+
+}
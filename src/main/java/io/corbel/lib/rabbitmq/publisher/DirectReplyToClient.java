@@ -0,0 +1,248 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.RabbitExceptionTranslator;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.Timer;
+
+/**
+ * Asynchronous request/reply client using the RabbitMQ direct reply-to pseudo queue, so no reply queue is declared.
+ *
+ * Requests are published on a single channel, which also consumes the replies, and any number of them may be waiting
+ * for their reply at the same time. Each one is kept in a correlation map by its correlation id until the reply
+ * arrives or its timeout expires. When the channel closes, the requests waiting on it fail, and the next request opens
+ * a new one.
+ *
+ * The returned futures are completed on the callback executor, never on the thread of the connection that delivers
+ * the replies, so a callback may wait for the reply of another request.
+ *
+ * Replies are sent by the servers to the reply-to address of the request, see
+ * {@link io.corbel.lib.rabbitmq.listener.ReplyingMessageListener}.
+ */
+public class DirectReplyToClient implements DisposableBean {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DirectReplyToClient.class);
+
+	public static final String DIRECT_REPLY_TO = Address.AMQ_RABBITMQ_REPLY_TO;
+
+	private static final String CHARSET = "UTF-8";
+
+	private final ConnectionFactory connectionFactory;
+	private final MessageConverter messageConverter;
+	private final long timeoutMillis;
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+	private final Map<String, PendingReply> pending = new ConcurrentHashMap<>();
+	private final AtomicLong correlationIds = new AtomicLong();
+	private final ScheduledThreadPoolExecutor timeoutScheduler;
+	private final Executor callbackExecutor;
+	private final Timer latency;
+	private final Counter timeouts;
+
+	private volatile ReplyChannel replyChannel;
+
+	public DirectReplyToClient(ConnectionFactory connectionFactory, MessageConverter messageConverter,
+			long timeoutMillis) {
+		this(connectionFactory, messageConverter, timeoutMillis, MetricsRegistry.NOOP);
+	}
+
+	public DirectReplyToClient(ConnectionFactory connectionFactory, MessageConverter messageConverter,
+			long timeoutMillis, MetricsRegistry metricsRegistry) {
+		this(connectionFactory, messageConverter, timeoutMillis, metricsRegistry, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param callbackExecutor executor that completes the futures returned by the requests
+	 */
+	public DirectReplyToClient(ConnectionFactory connectionFactory, MessageConverter messageConverter,
+			long timeoutMillis, MetricsRegistry metricsRegistry, Executor callbackExecutor) {
+		this.connectionFactory = connectionFactory;
+		this.messageConverter = messageConverter != null ? messageConverter : new SimpleMessageConverter();
+		this.timeoutMillis = timeoutMillis;
+		this.latency = metricsRegistry.timer(AmqpMetrics.RPC_LATENCY);
+		this.timeouts = metricsRegistry.counter(AmqpMetrics.RPC_TIMEOUTS);
+		this.callbackExecutor = callbackExecutor;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rabbitmq-rpc-timeout-");
+		threadFactory.setDaemon(true);
+		this.timeoutScheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+		// The timeout of a request is cancelled when its reply arrives, it must not stay queued until it expires
+		this.timeoutScheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @return the reply converted with the message converter
+	 */
+	public CompletableFuture<Object> convertSendAndReceive(String exchange, String routingKey, Object request) {
+		return sendAndReceive(exchange, routingKey, messageConverter.toMessage(request, new MessageProperties()))
+				.thenApply(messageConverter::fromMessage);
+	}
+
+	public CompletableFuture<Message> sendAndReceive(String exchange, String routingKey, Message request) {
+		return sendAndReceive(exchange, routingKey, request, timeoutMillis);
+	}
+
+	/**
+	 * @return future completed on the callback executor with the reply, or exceptionally when the timeout expires or
+	 *         the request can not be sent
+	 */
+	public CompletableFuture<Message> sendAndReceive(String exchange, String routingKey, Message request,
+			long timeoutMillis) {
+		String correlationId = Long.toString(correlationIds.incrementAndGet());
+		PendingReply reply = new PendingReply();
+		pending.put(correlationId, reply);
+		try {
+			reply.timeout = timeoutScheduler.schedule(() -> expire(correlationId), timeoutMillis,
+					TimeUnit.MILLISECONDS);
+			publish(exchange, routingKey, request, correlationId);
+		} catch (Exception e) {
+			pending.remove(correlationId);
+			reply.completeExceptionally(RabbitExceptionTranslator.convertRabbitAccessException(e));
+		}
+		return reply.future.whenCompleteAsync((result, error) -> {}, callbackExecutor);
+	}
+
+	/**
+	 * @return number of requests waiting for their reply
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		timeoutScheduler.shutdownNow();
+		if (replyChannel != null) {
+			replyChannel.close();
+			replyChannel = null;
+		}
+		failPending(new AmqpException("Client closed before the reply arrived"));
+	}
+
+	private synchronized void publish(String exchange, String routingKey, Message request, String correlationId)
+			throws IOException {
+		BasicProperties properties = messagePropertiesConverter.fromMessageProperties(request
+				.getMessageProperties(), CHARSET).builder().replyTo(DIRECT_REPLY_TO).correlationId(correlationId)
+				.build();
+		openChannel().channel.basicPublish(exchange, routingKey, false, properties, request.getBody());
+	}
+
+	private ReplyChannel openChannel() throws IOException {
+		if (replyChannel == null || !replyChannel.channel.isOpen()) {
+			replyChannel = new ReplyChannel(connectionFactory.createConnection().createChannel(false));
+		}
+		return replyChannel;
+	}
+
+	private void expire(String correlationId) {
+		PendingReply reply = pending.remove(correlationId);
+		if (reply != null) {
+			timeouts.increment();
+			reply.future.completeExceptionally(new AmqpException("Reply timed out"));
+		}
+	}
+
+	private void failPending(RuntimeException cause) {
+		pending.values().forEach(reply -> reply.completeExceptionally(cause));
+		pending.clear();
+	}
+
+	private static class PendingReply {
+
+		private final long start = System.nanoTime();
+		private final CompletableFuture<Message> future = new CompletableFuture<>();
+		private volatile ScheduledFuture<?> timeout;
+
+		void complete(Message message) {
+			cancelTimeout();
+			future.complete(message);
+		}
+
+		void completeExceptionally(Throwable cause) {
+			cancelTimeout();
+			future.completeExceptionally(cause);
+		}
+
+		private void cancelTimeout() {
+			ScheduledFuture<?> current = timeout;
+			if (current != null) {
+				current.cancel(false);
+			}
+		}
+	}
+
+	private class ReplyChannel extends DefaultConsumer {
+
+		private final Channel channel;
+
+		ReplyChannel(Channel channel) throws IOException {
+			super(channel);
+			this.channel = channel;
+			// The pseudo queue must be consumed, without acks, before publishing with it as reply-to
+			channel.basicConsume(DIRECT_REPLY_TO, true, this);
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+			PendingReply reply = properties.getCorrelationId() != null ? pending.remove(properties
+					.getCorrelationId()) : null;
+			if (reply == null) {
+				LOG.debug("Discarding reply {}, its request already timed out", properties.getCorrelationId());
+				return;
+			}
+			latency.record(System.nanoTime() - reply.start);
+			reply.complete(new Message(body, messagePropertiesConverter.toMessageProperties(properties,
+					envelope, CHARSET)));
+		}
+
+		@Override
+		public void handleShutdownSignal(String consumerTag, ShutdownSignalException cause) {
+			if (!pending.isEmpty()) {
+				LOG.warn("Direct reply-to channel closed with {} requests waiting for their reply", pending.size());
+				failPending(RabbitExceptionTranslator.convertRabbitAccessException(cause));
+			}
+		}
+
+		void close() {
+			// The consumer is bound to the physical channel, so it must not go back to the channel cache
+			RabbitUtils.setPhysicalCloseRequired(true);
+			try {
+				RabbitUtils.closeChannel(channel);
+			} finally {
+				RabbitUtils.setPhysicalCloseRequired(false);
+			}
+		}
+	}
+
+}
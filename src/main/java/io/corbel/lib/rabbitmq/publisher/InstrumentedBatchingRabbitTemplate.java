@@ -0,0 +1,92 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.amqp.rabbit.core.BatchingRabbitTemplate;
+import org.springframework.amqp.rabbit.core.ChannelCallback;
+import org.springframework.amqp.rabbit.core.support.BatchingStrategy;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.Timer;
+
+/**
+ * {@link BatchingRabbitTemplate} that reports the publish latency of each batch and channel checkouts to a
+ * {@link MetricsRegistry}
+ */
+public class InstrumentedBatchingRabbitTemplate extends BatchingRabbitTemplate implements DisposableBean {
+
+	private final Timer publishLatency;
+	private final Counter channelCheckouts;
+	private final ThreadPoolTaskScheduler ownScheduler;
+
+	/**
+	 * Creates a template that flushes the batches after the linger time with its own scheduler, which is not exposed
+	 * as a bean so it does not become the scheduler of the application. It is shut down with the template.
+	 */
+	public InstrumentedBatchingRabbitTemplate(BatchingStrategy batchingStrategy, MetricsRegistry metricsRegistry) {
+		this(batchingStrategy, createScheduler(), true, metricsRegistry);
+	}
+
+	public InstrumentedBatchingRabbitTemplate(BatchingStrategy batchingStrategy, TaskScheduler scheduler,
+			MetricsRegistry metricsRegistry) {
+		this(batchingStrategy, scheduler, false, metricsRegistry);
+	}
+
+	private InstrumentedBatchingRabbitTemplate(BatchingStrategy batchingStrategy, TaskScheduler scheduler,
+			boolean ownScheduler, MetricsRegistry metricsRegistry) {
+		super(batchingStrategy, scheduler);
+		this.publishLatency = metricsRegistry.timer(AmqpMetrics.PUBLISH_LATENCY);
+		this.channelCheckouts = metricsRegistry.counter(AmqpMetrics.CHANNEL_CHECKOUTS);
+		this.ownScheduler = ownScheduler ? (ThreadPoolTaskScheduler) scheduler : null;
+	}
+
+	/**
+	 * Threads are only started when a batch is actually scheduled
+	 */
+	private static ThreadPoolTaskScheduler createScheduler() {
+		ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+		scheduler.setThreadNamePrefix("rabbitmq-publisher-batch-");
+		scheduler.initialize();
+		return scheduler;
+	}
+
+	/**
+	 * Sends the pending batch and shuts down the own scheduler
+	 */
+	@Override
+	public void destroy() {
+		try {
+			flush();
+		} finally {
+			if (ownScheduler != null) {
+				ownScheduler.shutdown();
+			}
+		}
+	}
+
+	@Override
+	public <T> T execute(ChannelCallback<T> action) {
+		channelCheckouts.increment();
+		return super.execute(action);
+	}
+
+	@Override
+	protected void doSend(Channel channel, String exchange, String routingKey, Message message,
+			CorrelationData correlationData) throws Exception {
+		channelCheckouts.increment();
+		long start = System.nanoTime();
+		try {
+			super.doSend(channel, exchange, routingKey, message, correlationData);
+		} finally {
+			publishLatency.record(System.nanoTime() - start);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.ChannelCallback;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.Timer;
+
+/**
+ * {@link RabbitTemplate} that reports the publish latency and channel checkouts to a {@link MetricsRegistry}
+ */
+public class InstrumentedRabbitTemplate extends RabbitTemplate {
+
+	private final Timer publishLatency;
+	private final Counter channelCheckouts;
+
+	public InstrumentedRabbitTemplate(ConnectionFactory connectionFactory, MetricsRegistry metricsRegistry) {
+		super(connectionFactory);
+		this.publishLatency = metricsRegistry.timer(AmqpMetrics.PUBLISH_LATENCY);
+		this.channelCheckouts = metricsRegistry.counter(AmqpMetrics.CHANNEL_CHECKOUTS);
+	}
+
+	@Override
+	public <T> T execute(ChannelCallback<T> action) {
+		channelCheckouts.increment();
+		return super.execute(action);
+	}
+
+	@Override
+	protected void doSend(Channel channel, String exchange, String routingKey, Message message,
+			CorrelationData correlationData) throws Exception {
+		channelCheckouts.increment();
+		long start = System.nanoTime();
+		try {
+			super.doSend(channel, exchange, routingKey, message, correlationData);
+		} finally {
+			publishLatency.record(System.nanoTime() - start);
+		}
+	}
+
+}
@@ -0,0 +1,307 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpIOException;
+
+/**
+ * Append-only journal of records stored in memory-mapped segment files of a directory.
+ *
+ * Records are addressed by their position, a byte offset over all the segments: each segment file is named after the
+ * position of its first byte, and the next segment starts where the previous one ends. A record is a length prefix
+ * followed by its bytes, and the length is written last, so a record cut by a crash reads as the end of the journal.
+ *
+ * There is a single reader, which {@link #commit(long) commits} the position up to which records were consumed. The
+ * committed position survives restarts, and the segments entirely before it are deleted. Appends may run concurrently
+ * with the reader, which only sees the records whose append completed. A directory is used by a single journal at a
+ * time, which holds a lock on it until it is {@link #close() closed}.
+ */
+public class OutboxJournal {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OutboxJournal.class);
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String LOCK_FILE = "lock";
+	private static final int LENGTH_BYTES = 4;
+	private static final int END_OF_SEGMENT = -1;
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final long maxBytes;
+	private final boolean force;
+	private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private final MappedByteBuffer checkpoint;
+	private final FileChannel lock;
+
+	private volatile long writePosition;
+	private volatile long committedPosition;
+	private boolean closed;
+
+	/**
+	 * @param segmentBytes size of each segment file, which bounds the size of a record
+	 * @param maxBytes maximum size of all the segment files, appends fail once it is reached
+	 * @param force flush every append and commit to the storage device, so they survive an operating system crash and
+	 *        not only a process crash, at the cost of a disk write per call
+	 * @throws AmqpException when the directory is used by another journal, of this or another process
+	 */
+	public OutboxJournal(Path directory, int segmentBytes, long maxBytes, boolean force) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.force = force;
+		try {
+			Files.createDirectories(directory);
+			lock = lock(directory);
+			checkpoint = map(directory.resolve(CHECKPOINT_FILE), Long.BYTES);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+					// A segment left empty by a crash while it was created gets the configured size
+					long size = Files.size(file) > 0 ? Files.size(file) : segmentBytes;
+					segments.put(base, new Segment(base, file, map(file, size)));
+				}
+			}
+		} catch (IOException e) {
+			throw new AmqpIOException(e);
+		}
+		committedPosition = segments.isEmpty() ? checkpoint.getLong(0) : Math.max(checkpoint.getLong(0), segments
+				.firstKey());
+		reclaim();
+		writePosition = recoverWritePosition();
+		LOG.info("Opened outbox journal {} with {} bytes pending", directory, getPendingBytes());
+	}
+
+	/**
+	 * @throws AmqpException when the journal is full or closed
+	 */
+	public synchronized void append(byte[] record) {
+		if (closed) {
+			throw new AmqpException("Outbox journal " + directory + " is closed");
+		}
+		int length = LENGTH_BYTES + record.length;
+		if (record.length == 0 || length > segmentBytes) {
+			throw new IllegalArgumentException("Record of " + record.length + " bytes does not fit in a segment of "
+					+ segmentBytes + " bytes");
+		}
+		Segment segment = segments.lastEntry().getValue();
+		int offset = (int) (writePosition - segment.base);
+		if (segment.capacity() - offset < length) {
+			segment = roll(segment, offset);
+			offset = 0;
+		}
+		ByteBuffer buffer = segment.writeBuffer;
+		buffer.position(offset + LENGTH_BYTES);
+		buffer.put(record);
+		buffer.putInt(offset, record.length);
+		if (force) {
+			segment.writeBuffer.force();
+		}
+		writePosition = segment.base + offset + length;
+	}
+
+	/**
+	 * Reads the records appended after the given position
+	 *
+	 * @param maxRecords maximum number of records added to the list
+	 * @return the position after the last record read
+	 */
+	public long read(long position, int maxRecords, List<byte[]> records) {
+		long limit = writePosition;
+		int count = 0;
+		while (position < limit && count < maxRecords) {
+			Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+			if (entry == null) {
+				throw new IllegalArgumentException("Position " + position + " was already reclaimed");
+			}
+			Segment segment = entry.getValue();
+			int offset = (int) (position - segment.base);
+			int length = segment.capacity() - offset < LENGTH_BYTES ? END_OF_SEGMENT : segment.readBuffer
+					.getInt(offset);
+			// Zero when the marker of a segment rolled by a crashed writer was not written
+			if (length <= 0) {
+				position = segment.base + segment.capacity();
+			} else {
+				byte[] record = new byte[length];
+				ByteBuffer buffer = segment.readBuffer;
+				buffer.position(offset + LENGTH_BYTES);
+				buffer.get(record);
+				records.add(record);
+				position += LENGTH_BYTES + length;
+				count++;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Records that everything before the position was consumed, and deletes the segments no longer needed
+	 */
+	public void commit(long position) {
+		checkpoint.putLong(0, position);
+		if (force) {
+			checkpoint.force();
+		}
+		committedPosition = position;
+		reclaim();
+	}
+
+	/**
+	 * Rejects the next appends and releases the directory for other journals
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			lock.close();
+		} catch (IOException e) {
+			LOG.warn("Unable to release the lock of outbox journal {}", directory, e);
+		}
+	}
+
+	public long getCommittedPosition() {
+		return committedPosition;
+	}
+
+	public long getWritePosition() {
+		return writePosition;
+	}
+
+	/**
+	 * @return bytes of the segments appended but not committed yet
+	 */
+	public long getPendingBytes() {
+		return writePosition - committedPosition;
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	private Segment roll(Segment current, int offset) {
+		if ((long) (segments.size() + 1) * segmentBytes > maxBytes) {
+			throw new AmqpException("Outbox journal " + directory + " is full, " + getPendingBytes()
+					+ " bytes pending");
+		}
+		Segment next = createSegment(current.base + current.capacity());
+		// The reader skips to the next segment when it finds the marker or there is no room for it
+		if (current.capacity() - offset >= LENGTH_BYTES) {
+			current.writeBuffer.putInt(offset, END_OF_SEGMENT);
+		}
+		return next;
+	}
+
+	private Segment createSegment(long base) {
+		Path file = directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+		try {
+			Segment segment = new Segment(base, file, map(file, segmentBytes));
+			segments.put(base, segment);
+			return segment;
+		} catch (IOException e) {
+			throw new AmqpIOException(e);
+		}
+	}
+
+	private long recoverWritePosition() {
+		if (segments.isEmpty()) {
+			return createSegment(committedPosition).base;
+		}
+		Segment segment = segments.lastEntry().getValue();
+		int offset = 0;
+		while (segment.capacity() - offset >= LENGTH_BYTES) {
+			int length = segment.writeBuffer.getInt(offset);
+			if (length <= 0 || offset + LENGTH_BYTES + length > segment.capacity()) {
+				break;
+			}
+			offset += LENGTH_BYTES + length;
+		}
+		return segment.base + offset;
+	}
+
+	/**
+	 * The last segment is kept even when fully consumed, since it is the one the writer appends to
+	 */
+	private void reclaim() {
+		if (segments.isEmpty()) {
+			return;
+		}
+		for (Segment segment : segments.headMap(segments.lastKey()).values()) {
+			if (segment.base + segment.capacity() > committedPosition) {
+				break;
+			}
+			segments.remove(segment.base);
+			try {
+				Files.deleteIfExists(segment.file);
+			} catch (IOException e) {
+				LOG.warn("Unable to delete outbox segment {}", segment.file, e);
+			}
+		}
+	}
+
+	private static FileChannel lock(Path directory) throws IOException {
+		FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		FileLock fileLock;
+		try {
+			fileLock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by another journal of this process
+			fileLock = null;
+		}
+		if (fileLock == null) {
+			channel.close();
+			throw new AmqpException("Outbox journal " + directory + " is in use by another publisher");
+		}
+		return channel;
+	}
+
+	private static MappedByteBuffer map(Path file, long size) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw");
+				FileChannel channel = randomAccessFile.getChannel()) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+		}
+	}
+
+	private static class Segment {
+
+		private final long base;
+		private final Path file;
+		private final MappedByteBuffer writeBuffer;
+		/** View of the reader, so the writer and the reader do not share the buffer position */
+		private final ByteBuffer readBuffer;
+
+		Segment(long base, Path file, MappedByteBuffer buffer) {
+			this.base = base;
+			this.file = file;
+			this.writeBuffer = buffer;
+			this.readBuffer = buffer.duplicate();
+		}
+
+		int capacity() {
+			return writeBuffer.capacity();
+		}
+	}
+
+}
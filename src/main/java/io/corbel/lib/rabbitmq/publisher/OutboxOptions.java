@@ -0,0 +1,60 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+public class OutboxOptions {
+
+	private int segmentBytes = 64 * 1024 * 1024;
+	private long maxBytes = 1024L * 1024 * 1024;
+	private boolean force = false;
+	private int batchSize = 256;
+	private long confirmTimeoutMillis = 5000;
+	private long retryMillis = 1000;
+
+	public int getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	public void setSegmentBytes(int segmentBytes) {
+		this.segmentBytes = segmentBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isForce() {
+		return force;
+	}
+
+	public void setForce(boolean force) {
+		this.force = force;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getConfirmTimeoutMillis() {
+		return confirmTimeoutMillis;
+	}
+
+	public void setConfirmTimeoutMillis(long confirmTimeoutMillis) {
+		this.confirmTimeoutMillis = confirmTimeoutMillis;
+	}
+
+	public long getRetryMillis() {
+		return retryMillis;
+	}
+
+	public void setRetryMillis(long retryMillis) {
+		this.retryMillis = retryMillis;
+	}
+
+}
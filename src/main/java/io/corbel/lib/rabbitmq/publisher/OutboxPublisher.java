@@ -0,0 +1,216 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.Counter;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+import io.corbel.lib.rabbitmq.metrics.Timer;
+
+/**
+ * Publisher that appends the messages to a local {@link OutboxJournal} and returns, so senders do not block or fail
+ * while the broker is unreachable. A background thread sends the journal to the broker in order, in batches confirmed
+ * with publisher confirms, and only then commits them. A batch that fails is sent again once the connection is back,
+ * so messages are delivered at least once and may be duplicated after a failure.
+ *
+ * Sends only fail when the journal is full, or once the publisher is destroyed. The journal is closed when the
+ * background thread stops, so it is left open if a send to the broker outlasts the destroy.
+ */
+public class OutboxPublisher implements InitializingBean, DisposableBean {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OutboxPublisher.class);
+
+	private final ConnectionFactory connectionFactory;
+	private final MessageConverter messageConverter;
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+	private final OutboxJournal journal;
+	private final OutboxOptions options;
+	private final Timer appendLatency;
+	private final Counter drained;
+	private final Thread drainer;
+
+	private volatile boolean running;
+	private volatile boolean destroyed;
+	private boolean closed;
+	private Channel channel;
+
+	public OutboxPublisher(ConnectionFactory connectionFactory, MessageConverter messageConverter, Path directory,
+			OutboxOptions options) {
+		this(connectionFactory, messageConverter, directory, options, MetricsRegistry.NOOP);
+	}
+
+	public OutboxPublisher(ConnectionFactory connectionFactory, MessageConverter messageConverter, Path directory,
+			OutboxOptions options, MetricsRegistry metricsRegistry) {
+		this.connectionFactory = connectionFactory;
+		this.messageConverter = messageConverter != null ? messageConverter : new SimpleMessageConverter();
+		this.options = options;
+		this.journal = new OutboxJournal(directory, options.getSegmentBytes(), options.getMaxBytes(), options
+				.isForce());
+		this.appendLatency = metricsRegistry.timer(AmqpMetrics.OUTBOX_APPEND_LATENCY);
+		this.drained = metricsRegistry.counter(AmqpMetrics.OUTBOX_DRAINED);
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rabbitmq-outbox-");
+		threadFactory.setDaemon(true);
+		this.drainer = threadFactory.newThread(this::drain);
+	}
+
+	public void convertAndSend(String exchange, String routingKey, Object object) {
+		send(exchange, routingKey, messageConverter.toMessage(object, new MessageProperties()));
+	}
+
+	/**
+	 * @throws AmqpException when the journal is full or the publisher was destroyed
+	 */
+	public void send(String exchange, String routingKey, Message message) {
+		if (destroyed) {
+			throw new AmqpException("Outbox publisher was destroyed");
+		}
+		long start = System.nanoTime();
+		journal.append(new OutboxRecord(exchange, routingKey, message).encode());
+		appendLatency.record(System.nanoTime() - start);
+		LockSupport.unpark(drainer);
+	}
+
+	/**
+	 * @return bytes of the journal not yet confirmed by the broker
+	 */
+	public long getPendingBytes() {
+		return journal.getPendingBytes();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		running = true;
+		drainer.start();
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		destroyed = true;
+		running = false;
+		LockSupport.unpark(drainer);
+		drainer.join(options.getConfirmTimeoutMillis() + options.getRetryMillis());
+		if (drainer.isAlive()) {
+			LOG.warn("Outbox publisher destroyed while sending to the broker, the journal is closed once it is done");
+		} else {
+			close();
+		}
+	}
+
+	private void drain() {
+		try {
+			long position = journal.getCommittedPosition();
+			List<byte[]> records = new ArrayList<>(options.getBatchSize());
+			while (running) {
+				long next = journal.read(position, options.getBatchSize(), records);
+				if (records.isEmpty()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(options.getRetryMillis()));
+					continue;
+				}
+				try {
+					publish(records);
+					journal.commit(next);
+					drained.add(records.size());
+					position = next;
+				} catch (Exception e) {
+					LOG.warn("Unable to send {} messages of the outbox, retrying in {} ms: {}", records.size(),
+							options.getRetryMillis(), e.toString());
+					closeChannel();
+					backOff();
+				}
+				records.clear();
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the channel and the journal once the drainer stopped, or before it started
+	 */
+	private synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		closeChannel();
+		journal.close();
+		if (journal.getPendingBytes() > 0) {
+			LOG.info("Outbox publisher stopped with {} bytes pending, they will be sent on the next start", journal
+					.getPendingBytes());
+		}
+	}
+
+	/**
+	 * Waits the whole retry interval, even when new sends wake the drainer up
+	 */
+	private void backOff() {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.getRetryMillis());
+		for (long remaining = deadline - System.nanoTime(); running && remaining > 0; remaining = deadline - System
+				.nanoTime()) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private void publish(List<byte[]> records) throws IOException, InterruptedException, TimeoutException {
+		Channel current = openChannel();
+		for (byte[] bytes : records) {
+			OutboxRecord record;
+			try {
+				record = OutboxRecord.decode(bytes);
+			} catch (AmqpException e) {
+				// Retrying would block the outbox forever
+				LOG.error("Discarding a record of the outbox that can not be read", e);
+				continue;
+			}
+			Message message = record.getMessage();
+			current.basicPublish(record.getExchange(), record.getRoutingKey(), false, messagePropertiesConverter
+					.fromMessageProperties(message.getMessageProperties(), "UTF-8"), message.getBody());
+		}
+		current.waitForConfirmsOrDie(options.getConfirmTimeoutMillis());
+	}
+
+	private synchronized Channel openChannel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = connectionFactory.createConnection().createChannel(false);
+			channel.confirmSelect();
+		}
+		return channel;
+	}
+
+	private synchronized void closeChannel() {
+		if (channel != null) {
+			// Channels in confirm mode must not go back to the channel cache
+			RabbitUtils.setPhysicalCloseRequired(true);
+			try {
+				RabbitUtils.closeChannel(channel);
+			} finally {
+				RabbitUtils.setPhysicalCloseRequired(false);
+			}
+			channel = null;
+		}
+	}
+
+}
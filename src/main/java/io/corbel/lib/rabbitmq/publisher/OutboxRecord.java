@@ -0,0 +1,269 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpIOException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * Message of the outbox with its destination, as stored in the {@link OutboxJournal}.
+ *
+ * A record starts with the version of its format, followed by the exchange, the routing key, the properties of the
+ * message, its headers and its body. Header values of the types AMQP tables support are kept, any other is stored as
+ * its string, as the message properties converter does when sending. A journal written by a newer version of the
+ * format is not read.
+ */
+class OutboxRecord {
+
+	static final byte VERSION = 1;
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte BYTES = 2;
+	private static final byte BOOLEAN = 3;
+	private static final byte BYTE = 4;
+	private static final byte SHORT = 5;
+	private static final byte INTEGER = 6;
+	private static final byte LONG = 7;
+	private static final byte FLOAT = 8;
+	private static final byte DOUBLE = 9;
+	private static final byte DECIMAL = 10;
+	private static final byte DATE = 11;
+	private static final byte LIST = 12;
+	private static final byte MAP = 13;
+
+	private final String exchange;
+	private final String routingKey;
+	private final Message message;
+
+	OutboxRecord(String exchange, String routingKey, Message message) {
+		this.exchange = exchange;
+		this.routingKey = routingKey;
+		this.message = message;
+	}
+
+	String getExchange() {
+		return exchange;
+	}
+
+	String getRoutingKey() {
+		return routingKey;
+	}
+
+	Message getMessage() {
+		return message;
+	}
+
+	byte[] encode() {
+		byte[] body = message.getBody();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(VERSION);
+			out.writeUTF(exchange);
+			out.writeUTF(routingKey);
+			MessageProperties properties = message.getMessageProperties();
+			writeString(out, properties.getContentType());
+			writeString(out, properties.getContentEncoding());
+			writeBytes(out, properties.getCorrelationId());
+			writeString(out, properties.getReplyTo());
+			writeString(out, properties.getExpiration());
+			writeString(out, properties.getMessageId());
+			writeString(out, properties.getType());
+			writeString(out, properties.getUserId());
+			writeString(out, properties.getAppId());
+			writeString(out, properties.getClusterId());
+			MessageDeliveryMode deliveryMode = properties.getDeliveryMode();
+			out.writeByte(deliveryMode != null ? MessageDeliveryMode.toInt(deliveryMode) : 0);
+			writeValue(out, properties.getPriority());
+			writeValue(out, properties.getTimestamp());
+			writeValue(out, properties.getHeaders());
+			out.writeInt(body.length);
+			out.write(body);
+		} catch (IOException e) {
+			throw new AmqpIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws AmqpException when the record was written by another version of the format or can not be read
+	 */
+	static OutboxRecord decode(byte[] record) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		try {
+			byte version = in.readByte();
+			if (version != VERSION) {
+				throw new AmqpException("Unsupported outbox record version " + version);
+			}
+			String exchange = in.readUTF();
+			String routingKey = in.readUTF();
+			MessageProperties properties = new MessageProperties();
+			properties.setContentType(readString(in));
+			properties.setContentEncoding(readString(in));
+			properties.setCorrelationId(readBytes(in));
+			properties.setReplyTo(readString(in));
+			properties.setExpiration(readString(in));
+			properties.setMessageId(readString(in));
+			properties.setType(readString(in));
+			properties.setUserId(readString(in));
+			properties.setAppId(readString(in));
+			properties.setClusterId(readString(in));
+			byte deliveryMode = in.readByte();
+			properties.setDeliveryMode(deliveryMode != 0 ? MessageDeliveryMode.fromInt(deliveryMode) : null);
+			properties.setPriority((Integer) readValue(in));
+			properties.setTimestamp((Date) readValue(in));
+			@SuppressWarnings("unchecked")
+			Map<String, Object> headers = (Map<String, Object>) readValue(in);
+			headers.forEach(properties::setHeader);
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new OutboxRecord(exchange, routingKey, new Message(body, properties));
+		} catch (IOException | ClassCastException e) {
+			throw new AmqpException("Unreadable outbox record", e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof byte[]) {
+			out.writeByte(BYTES);
+			writeBytes(out, (byte[]) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof BigDecimal) {
+			out.writeByte(DECIMAL);
+			writeString(out, value.toString());
+		} else if (value instanceof Date) {
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof List) {
+			out.writeByte(LIST);
+			List<?> list = (List<?>) value;
+			out.writeInt(list.size());
+			for (Object element : list) {
+				writeValue(out, element);
+			}
+		} else if (value instanceof Map) {
+			out.writeByte(MAP);
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeString(out, entry.getKey().toString());
+				writeValue(out, entry.getValue());
+			}
+		} else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case BYTES:
+				return readBytes(in);
+			case BOOLEAN:
+				return in.readBoolean();
+			case BYTE:
+				return in.readByte();
+			case SHORT:
+				return in.readShort();
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case DECIMAL:
+				return new BigDecimal(readString(in));
+			case DATE:
+				return new Date(in.readLong());
+			case LIST:
+				int size = in.readInt();
+				List<Object> list = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(readValue(in));
+				}
+				return list;
+			case MAP:
+				int entries = in.readInt();
+				Map<String, Object> map = new LinkedHashMap<>();
+				for (int i = 0; i < entries; i++) {
+					map.put(readString(in), readValue(in));
+				}
+				return map;
+			default:
+				throw new IOException("Unknown header value type " + type);
+		}
+	}
+
+}
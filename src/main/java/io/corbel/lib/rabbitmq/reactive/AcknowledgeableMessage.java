@@ -0,0 +1,42 @@
+package io.corbel.lib.rabbitmq.reactive;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * Message emitted by a {@link QueuePublisher}, which the subscriber acknowledges once it is done with it when the
+ * publisher uses manual acknowledgements.
+ */
+public class AcknowledgeableMessage extends Message {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient QueueSubscription subscription;
+	private final AtomicBoolean settled = new AtomicBoolean();
+
+	AcknowledgeableMessage(byte[] body, MessageProperties messageProperties, QueueSubscription subscription) {
+		super(body, messageProperties);
+		this.subscription = subscription;
+	}
+
+	public void ack() {
+		subscription.ack(this);
+	}
+
+	/**
+	 * @param requeue put the message back in the queue instead of discarding or dead lettering it
+	 */
+	public void nack(boolean requeue) {
+		subscription.nack(this, requeue);
+	}
+
+	/**
+	 * @return true the first time the message is acknowledged or rejected
+	 */
+	boolean settle() {
+		return settled.compareAndSet(false, true);
+	}
+
+}
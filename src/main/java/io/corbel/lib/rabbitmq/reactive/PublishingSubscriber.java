@@ -0,0 +1,128 @@
+package io.corbel.lib.rabbitmq.reactive;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.amqp.core.Message;
+
+import io.corbel.lib.rabbitmq.publisher.ConfirmingPublisher;
+
+/**
+ * Reactive Streams {@link Subscriber} that publishes the messages it receives through a {@link ConfirmingPublisher},
+ * with backpressure: it requests maxInFlight messages and then one more each time the broker confirms one, so the
+ * upstream never gets ahead of the broker. Confirms are counted and requested by a single thread at a time, since the
+ * calls to the subscription must not be concurrent (Reactive Streams rule 2.7).
+ *
+ * {@link #getCompletion()} completes once the upstream completes and all its messages are confirmed, or completes
+ * exceptionally when the upstream fails or a message is not confirmed, in which case the subscription is cancelled.
+ */
+public class PublishingSubscriber implements Subscriber<Message> {
+
+	private final ConfirmingPublisher publisher;
+	private final String exchange;
+	private final Function<Message, String> routingKey;
+	private final int maxInFlight;
+	private final Executor executor;
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong confirmed = new AtomicLong();
+	private final AtomicInteger signals = new AtomicInteger();
+
+	private volatile Subscription subscription;
+	private volatile boolean upstreamDone;
+	private volatile boolean failed;
+	private boolean cancelled;
+
+	public PublishingSubscriber(ConfirmingPublisher publisher, String exchange, Function<Message, String> routingKey,
+			int maxInFlight) {
+		this(publisher, exchange, routingKey, maxInFlight, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param executor where further messages are requested from once a confirm arrives, since confirms arrive on the
+	 *        connection thread, which must not wait for the broker as a {@link QueuePublisher} upstream may do
+	 */
+	public PublishingSubscriber(ConfirmingPublisher publisher, String exchange, Function<Message, String> routingKey,
+			int maxInFlight, Executor executor) {
+		this.publisher = publisher;
+		this.exchange = exchange;
+		this.routingKey = routingKey;
+		this.maxInFlight = maxInFlight;
+		this.executor = executor;
+	}
+
+	@Override
+	public void onSubscribe(Subscription subscription) {
+		if (this.subscription != null) {
+			// Reactive Streams rule 2.5: a subscriber is only subscribed once
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(maxInFlight);
+	}
+
+	@Override
+	public void onNext(Message message) {
+		inFlight.incrementAndGet();
+		publisher.send(exchange, routingKey.apply(message), message).whenCompleteAsync((result, error) -> {
+			if (error != null) {
+				if (completion.completeExceptionally(error)) {
+					failed = true;
+				}
+			} else if (inFlight.decrementAndGet() == 0 && upstreamDone) {
+				completion.complete(null);
+			} else {
+				confirmed.incrementAndGet();
+			}
+			drain();
+		}, executor);
+	}
+
+	@Override
+	public void onError(Throwable error) {
+		completion.completeExceptionally(error);
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		if (inFlight.get() == 0) {
+			completion.complete(null);
+		}
+	}
+
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	/**
+	 * Requests the confirmed messages, or cancels after a failed confirm. The thread that finds the loop running only
+	 * leaves a signal, which the running thread handles before it exits.
+	 */
+	private void drain() {
+		if (signals.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			long requests = confirmed.getAndSet(0);
+			if (failed) {
+				if (!cancelled) {
+					cancelled = true;
+					subscription.cancel();
+				}
+			} else if (requests > 0 && !upstreamDone && !completion.isDone()) {
+				subscription.request(requests);
+			}
+			missed = signals.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+}
@@ -0,0 +1,96 @@
+package io.corbel.lib.rabbitmq.reactive;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+/**
+ * Reactive Streams {@link Publisher} of the messages of a queue, with backpressure: the broker only delivers as many
+ * messages as the subscriber requested, plus the ones it has not acknowledged yet, up to the maximum prefetch.
+ *
+ * Each subscriber consumes the queue with its own channel, so several subscribers compete for the messages as the
+ * consumers of a listener container do. With {@link AcknowledgeMode#AUTO} each message is acknowledged once onNext
+ * returns, with {@link AcknowledgeMode#MANUAL} the subscriber acknowledges them through
+ * {@link AcknowledgeableMessage}. Messages not acknowledged when the subscription ends are redelivered.
+ */
+public class QueuePublisher implements Publisher<AcknowledgeableMessage> {
+
+	public static final int DEFAULT_MAX_PREFETCH = 256;
+
+	private final ConnectionFactory connectionFactory;
+	private final String queueName;
+	private final AcknowledgeMode acknowledgeMode;
+	private final int maxPrefetch;
+	private final MessagePostProcessor afterReceivePostProcessor;
+	private final Set<QueueSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	public QueuePublisher(ConnectionFactory connectionFactory, String queueName, AcknowledgeMode acknowledgeMode,
+			int maxPrefetch) {
+		this(connectionFactory, queueName, acknowledgeMode, maxPrefetch, null);
+	}
+
+	/**
+	 * @param afterReceivePostProcessor applied to each message before emitting it, e.g. to decompress it
+	 */
+	public QueuePublisher(ConnectionFactory connectionFactory, String queueName, AcknowledgeMode acknowledgeMode,
+			int maxPrefetch, MessagePostProcessor afterReceivePostProcessor) {
+		if (acknowledgeMode == AcknowledgeMode.NONE) {
+			throw new IllegalArgumentException("Without acknowledgements the broker ignores the prefetch, use AUTO");
+		}
+		this.connectionFactory = connectionFactory;
+		this.queueName = queueName;
+		this.acknowledgeMode = acknowledgeMode;
+		this.maxPrefetch = maxPrefetch;
+		this.afterReceivePostProcessor = afterReceivePostProcessor;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super AcknowledgeableMessage> subscriber) {
+		Objects.requireNonNull(subscriber, "Reactive Streams rule 1.9: subscriber must not be null");
+		QueueSubscription subscription = new QueueSubscription(this, subscriber);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Stops the consumption of all the subscriptions and completes their subscribers
+	 */
+	public void shutdown() {
+		subscriptions.forEach(QueueSubscription::shutdown);
+	}
+
+	public int getSubscriptionCount() {
+		return subscriptions.size();
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public AcknowledgeMode getAcknowledgeMode() {
+		return acknowledgeMode;
+	}
+
+	public int getMaxPrefetch() {
+		return maxPrefetch;
+	}
+
+	ConnectionFactory getConnectionFactory() {
+		return connectionFactory;
+	}
+
+	MessagePostProcessor getAfterReceivePostProcessor() {
+		return afterReceivePostProcessor;
+	}
+
+	void remove(QueueSubscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+}
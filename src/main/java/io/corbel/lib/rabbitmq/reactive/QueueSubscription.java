@@ -0,0 +1,299 @@
+package io.corbel.lib.rabbitmq.reactive;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.RabbitExceptionTranslator;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Subscription of a {@link QueuePublisher}, with its own channel and consumer.
+ *
+ * The channel is opened on the first request, and its prefetch is raised as the demand grows, to the messages
+ * requested plus the ones emitted and not acknowledged yet, up to the maximum prefetch. Since the broker stops
+ * delivering once the prefetch is reached, at most that many messages are buffered while the subscriber does not
+ * request more.
+ *
+ * Messages are emitted on the thread that delivers them or on the thread that requests them, serialized by a work in
+ * progress counter, so no thread is dedicated to the subscription. A failure is signalled right away, even without
+ * demand, and the messages buffered are dropped: they were never acknowledged, so the broker requeues them.
+ */
+class QueueSubscription implements Subscription {
+
+	private static final Logger LOG = LoggerFactory.getLogger(QueueSubscription.class);
+
+	private final QueuePublisher publisher;
+	private final Subscriber<? super AcknowledgeableMessage> subscriber;
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+	private final Queue<AcknowledgeableMessage> buffer = new ConcurrentLinkedQueue<>();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	private final AtomicInteger unacked = new AtomicInteger();
+
+	private volatile boolean cancelled;
+	private volatile boolean done;
+	private volatile boolean shutdown;
+	private volatile Throwable error;
+	private Channel channel;
+	private String consumerTag;
+	private int prefetch;
+
+	QueueSubscription(QueuePublisher publisher, Subscriber<? super AcknowledgeableMessage> subscriber) {
+		this.publisher = publisher;
+		this.subscriber = subscriber;
+	}
+
+	@Override
+	public void request(long n) {
+		if (n <= 0) {
+			fail(new IllegalArgumentException("Reactive Streams rule 3.9: request must be positive, was " + n));
+			return;
+		}
+		long current;
+		do {
+			current = demand.get();
+		} while (current != Long.MAX_VALUE && !demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE
+				: current + n));
+		try {
+			updateCredit();
+		} catch (IOException | RuntimeException e) {
+			fail(RabbitExceptionTranslator.convertRabbitAccessException(e));
+		}
+		drain();
+	}
+
+	/**
+	 * Stops the consumption. Messages emitted and not acknowledged yet can still be acknowledged, the channel is
+	 * closed once they are.
+	 */
+	@Override
+	public void cancel() {
+		cancelled = true;
+		stopConsuming();
+		drain();
+	}
+
+	void complete() {
+		done = true;
+		stopConsuming();
+		drain();
+	}
+
+	/**
+	 * Completes the subscriber without waiting for it to request the buffered messages, which are requeued
+	 */
+	void shutdown() {
+		shutdown = true;
+		complete();
+	}
+
+	void ack(AcknowledgeableMessage message) {
+		settle(message, false, false);
+	}
+
+	void nack(AcknowledgeableMessage message, boolean requeue) {
+		settle(message, true, requeue);
+	}
+
+	private synchronized void updateCredit() throws IOException {
+		if (cancelled || done) {
+			return;
+		}
+		int credit = (int) Math.min(publisher.getMaxPrefetch(), unacked.get() + Math.min(demand.get(),
+				Integer.MAX_VALUE));
+		if (channel == null) {
+			prefetch = credit;
+			channel = publisher.getConnectionFactory().createConnection().createChannel(false);
+			channel.basicQos(prefetch);
+			consumerTag = channel.basicConsume(publisher.getQueueName(), false, new QueueConsumer(channel));
+		} else if (credit > prefetch) {
+			prefetch = credit;
+			channel.basicQos(prefetch);
+		}
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			if (!cancelled && done && error != null) {
+				// Reactive Streams rule 1.4: onError does not need demand
+				terminate();
+			} else if (!cancelled) {
+				long requested = demand.get();
+				long emitted = 0;
+				AcknowledgeableMessage message;
+				while (emitted != requested && !cancelled && (message = buffer.poll()) != null) {
+					emit(message);
+					emitted++;
+				}
+				if (emitted > 0 && requested != Long.MAX_VALUE) {
+					demand.addAndGet(-emitted);
+				}
+				if (done && !cancelled && (buffer.isEmpty() || shutdown)) {
+					terminate();
+				}
+			}
+			if (cancelled) {
+				// Including the messages delivered before the broker handled the cancellation of the consumer
+				requeueBuffered();
+				closeIfSettled();
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void terminate() {
+		cancelled = true;
+		if (error != null) {
+			subscriber.onError(error);
+		} else {
+			subscriber.onComplete();
+		}
+	}
+
+	private void emit(AcknowledgeableMessage message) {
+		try {
+			subscriber.onNext(message);
+		} catch (RuntimeException e) {
+			// Reactive Streams rule 2.13: onNext must not throw, the subscription is considered cancelled
+			LOG.error("Subscriber of queue {} failed handling a message, cancelling", publisher.getQueueName(), e);
+			nack(message, true);
+			cancel();
+			return;
+		}
+		if (publisher.getAcknowledgeMode() == AcknowledgeMode.AUTO) {
+			ack(message);
+		}
+	}
+
+	private void fail(Throwable cause) {
+		if (error == null) {
+			error = cause;
+		}
+		done = true;
+		stopConsuming();
+		drain();
+	}
+
+	private void settle(AcknowledgeableMessage message, boolean reject, boolean requeue) {
+		if (!message.settle()) {
+			return;
+		}
+		long deliveryTag = message.getMessageProperties().getDeliveryTag();
+		try {
+			Channel current = currentChannel();
+			if (current != null && current.isOpen()) {
+				if (reject) {
+					current.basicReject(deliveryTag, requeue);
+				} else {
+					current.basicAck(deliveryTag, false);
+				}
+			}
+		} catch (IOException e) {
+			throw RabbitExceptionTranslator.convertRabbitAccessException(e);
+		} finally {
+			unacked.decrementAndGet();
+			closeIfSettled();
+		}
+	}
+
+	/**
+	 * Buffered messages were never emitted, so they go back to the queue
+	 */
+	private void requeueBuffered() {
+		AcknowledgeableMessage message;
+		while ((message = buffer.poll()) != null) {
+			nack(message, true);
+		}
+	}
+
+	private synchronized void stopConsuming() {
+		if (channel != null && consumerTag != null && channel.isOpen()) {
+			try {
+				channel.basicCancel(consumerTag);
+			} catch (IOException | RuntimeException e) {
+				LOG.debug("Unable to cancel consumer of queue {}", publisher.getQueueName(), e);
+			}
+		}
+		consumerTag = null;
+	}
+
+	private synchronized void closeIfSettled() {
+		if (!cancelled || !buffer.isEmpty() || unacked.get() > 0) {
+			return;
+		}
+		if (channel != null) {
+			// The consumer is bound to the physical channel, so it must not go back to the channel cache
+			RabbitUtils.setPhysicalCloseRequired(true);
+			try {
+				RabbitUtils.closeChannel(channel);
+			} finally {
+				RabbitUtils.setPhysicalCloseRequired(false);
+			}
+			channel = null;
+		}
+		publisher.remove(this);
+	}
+
+	private synchronized Channel currentChannel() {
+		return channel;
+	}
+
+	private class QueueConsumer extends DefaultConsumer {
+
+		QueueConsumer(Channel channel) {
+			super(channel);
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+			MessageProperties messageProperties = messagePropertiesConverter.toMessageProperties(properties, envelope,
+					"UTF-8");
+			MessagePostProcessor postProcessor = publisher.getAfterReceivePostProcessor();
+			if (postProcessor != null) {
+				Message processed = postProcessor.postProcessMessage(new Message(body, messageProperties));
+				body = processed.getBody();
+				messageProperties = processed.getMessageProperties();
+			}
+			unacked.incrementAndGet();
+			buffer.offer(new AcknowledgeableMessage(body, messageProperties, QueueSubscription.this));
+			drain();
+		}
+
+		@Override
+		public void handleCancel(String consumerTag) {
+			// Cancelled by the broker, e.g. when the queue is deleted
+			complete();
+		}
+
+		@Override
+		public void handleShutdownSignal(String consumerTag, ShutdownSignalException cause) {
+			if (!cancelled && !done) {
+				fail(RabbitExceptionTranslator.convertRabbitAccessException(cause));
+			}
+		}
+	}
+
+}
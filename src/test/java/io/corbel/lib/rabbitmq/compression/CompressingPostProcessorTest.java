@@ -0,0 +1,84 @@
+package io.corbel.lib.rabbitmq.compression;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.postprocessor.GUnzipPostProcessor;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.SimpleMetricsRegistry;
+
+public class CompressingPostProcessorTest {
+
+	private static final int THRESHOLD = 100;
+
+	private final SimpleMetricsRegistry metricsRegistry = new SimpleMetricsRegistry();
+	private final CompressingPostProcessor compressor = new CompressingPostProcessor(Compression.GZIP, THRESHOLD,
+			metricsRegistry);
+	private final DecompressingPostProcessor decompressor = new DecompressingPostProcessor(metricsRegistry);
+
+	@Test
+	public void testRoundTrip() {
+		byte[] body = body(1000);
+		Message compressed = compressor.postProcessMessage(message(body));
+
+		assertThat(compressed.getMessageProperties().getContentEncoding()).isEqualTo("gzip:UTF-8");
+		assertThat(compressed.getBody().length).isLessThan(body.length);
+		Message decompressed = decompressor.postProcessMessage(compressed);
+		assertThat(decompressed.getBody()).isEqualTo(body);
+		assertThat(decompressed.getMessageProperties().getContentEncoding()).isEqualTo("UTF-8");
+		assertThat(metricsRegistry.counter(AmqpMetrics.compressionUncompressedBytes("gzip")).getCount())
+				.isEqualTo(1000);
+		assertThat(metricsRegistry.counter(AmqpMetrics.decompressionUncompressedBytes("gzip")).getCount())
+				.isEqualTo(1000);
+	}
+
+	@Test(expected = AmqpRejectAndDontRequeueException.class)
+	public void testOversizedDecompressionIsRejected() {
+		Message compressed = compressor.postProcessMessage(message(body(1000)));
+
+		new DecompressingPostProcessor(metricsRegistry, 999).postProcessMessage(compressed);
+	}
+
+	@Test
+	public void testSmallMessagesAreNotCompressed() {
+		Message message = message(body(THRESHOLD - 1));
+
+		assertThat(compressor.postProcessMessage(message)).isSameAs(message);
+		assertThat(message.getMessageProperties().getContentEncoding()).isEqualTo("UTF-8");
+	}
+
+	@Test
+	public void testUncompressedMessagesAreNotDecompressed() {
+		Message message = message(body(THRESHOLD));
+
+		assertThat(decompressor.postProcessMessage(message)).isSameAs(message);
+	}
+
+	@Test
+	public void testCompatibleWithSpringDecompression() {
+		byte[] body = body(1000);
+
+		Message decompressed = new GUnzipPostProcessor().postProcessMessage(compressor.postProcessMessage(message(body)));
+
+		assertThat(decompressed.getBody()).isEqualTo(body);
+	}
+
+	private Message message(byte[] body) {
+		MessageProperties properties = new MessageProperties();
+		properties.setContentEncoding("UTF-8");
+		return new Message(body, properties);
+	}
+
+	private byte[] body(int size) {
+		byte[] body = new byte[size];
+		Arrays.fill(body, (byte) 'a');
+		return body;
+	}
+
+}
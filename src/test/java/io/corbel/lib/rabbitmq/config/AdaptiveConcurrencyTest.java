@@ -0,0 +1,108 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+
+public class AdaptiveConcurrencyTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private SimpleMessageListenerContainer container;
+	private DirectFieldAccessor containerFields;
+	private AdaptiveConcurrencyOptions options;
+
+	@Before
+	public void setup() {
+		container = new SimpleMessageListenerContainer();
+		container.setQueueNames("test");
+		containerFields = new DirectFieldAccessor(container);
+		// Running without consumers, so the new settings are only recorded
+		containerFields.setPropertyValue("running", true);
+		options = new AdaptiveConcurrencyOptions();
+		options.setMinConsumers(1);
+		options.setMaxConsumers(3);
+	}
+
+	@Test
+	public void testBusyConsumersGrow() {
+		AdaptiveConcurrency adaptiveConcurrency = new AdaptiveConcurrency(container, options);
+		long now = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			adaptiveConcurrency.record(95 * MILLISECOND, false);
+		}
+
+		adaptiveConcurrency.adjust(now + SECOND);
+
+		assertThat(adaptiveConcurrency.getConsumers()).isEqualTo(2);
+		assertThat(containerFields.getPropertyValue("concurrentConsumers")).isEqualTo(2);
+		// A second of work at 95ms per message
+		assertThat(adaptiveConcurrency.getPrefetch()).isEqualTo(11);
+		assertThat(containerFields.getPropertyValue("prefetchCount")).isEqualTo(11);
+	}
+
+	@Test
+	public void testIdleConsumersShrink() {
+		AdaptiveConcurrency adaptiveConcurrency = new AdaptiveConcurrency(container, options);
+		long now = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			adaptiveConcurrency.record(95 * MILLISECOND, false);
+		}
+		adaptiveConcurrency.adjust(now + SECOND);
+
+		adaptiveConcurrency.adjust(now + 2 * SECOND);
+
+		assertThat(adaptiveConcurrency.getConsumers()).isEqualTo(1);
+		assertThat(containerFields.getPropertyValue("concurrentConsumers")).isEqualTo(1);
+	}
+
+	@Test
+	public void testRedeliveriesHalvePrefetch() {
+		AdaptiveConcurrency adaptiveConcurrency = new AdaptiveConcurrency(container, options);
+		long now = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			adaptiveConcurrency.record(MILLISECOND, false);
+		}
+		adaptiveConcurrency.adjust(now + SECOND);
+		assertThat(adaptiveConcurrency.getPrefetch()).isEqualTo(options.getMaxPrefetch());
+
+		for (int i = 0; i < 10; i++) {
+			adaptiveConcurrency.record(MILLISECOND, true);
+		}
+		adaptiveConcurrency.adjust(now + 2 * SECOND);
+
+		assertThat(adaptiveConcurrency.getPrefetch()).isEqualTo(options.getMaxPrefetch() / 2);
+		assertThat(containerFields.getPropertyValue("prefetchCount")).isEqualTo(options.getMaxPrefetch() / 2);
+	}
+
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void testAdjustmentsCancelledWhenContainerStops() {
+		ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+		ScheduledFuture future = mock(ScheduledFuture.class);
+		when(scheduler.scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), eq(TimeUnit.MILLISECONDS)))
+				.thenReturn(future);
+		AdaptiveConcurrency adaptiveConcurrency = new AdaptiveConcurrency(container, options, scheduler);
+		adaptiveConcurrency.schedule();
+		containerFields.setPropertyValue("running", false);
+
+		adaptiveConcurrency.adjust();
+
+		verify(future).cancel(false);
+	}
+
+}
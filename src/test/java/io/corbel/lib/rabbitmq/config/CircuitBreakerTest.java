@@ -0,0 +1,169 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+
+import io.corbel.lib.rabbitmq.config.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+	private SimpleMessageListenerContainer container;
+	private DirectFieldAccessor containerFields;
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> future;
+	private CircuitBreakerListener listener;
+	private CircuitBreaker circuitBreaker;
+
+	@Before
+	public void setup() {
+		container = spy(new SimpleMessageListenerContainer(mock(ConnectionFactory.class)));
+		container.setConcurrentConsumers(4);
+		doNothing().when(container).start();
+		doNothing().when(container).stop();
+		containerFields = new DirectFieldAccessor(container);
+		// Running without consumers, so the new settings are only recorded
+		containerFields.setPropertyValue("running", true);
+		scheduler = mock(ScheduledExecutorService.class);
+		future = mock(ScheduledFuture.class);
+		doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+		listener = mock(CircuitBreakerListener.class);
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setWindowSize(4);
+		options.setFailureRateThreshold(0.5);
+		options.setOpenMillis(1000);
+		options.setProbeCalls(2);
+		circuitBreaker = new CircuitBreaker(container, options, scheduler, listener);
+	}
+
+	@Test
+	public void testOpensWhenFailureRateReachesThreshold() throws Throwable {
+		call(true);
+		call(false);
+		call(true);
+		assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+
+		call(false);
+
+		assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+		verify(listener).onStateChange(container, State.CLOSED, State.OPEN);
+		verify(scheduler).schedule(any(Runnable.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testStaysClosedBelowThreshold() throws Throwable {
+		for (int i = 0; i < 8; i++) {
+			call(i % 4 == 0);
+		}
+
+		assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+		verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+	}
+
+	@Test
+	public void testCallsWhileOpenAreIgnored() throws Throwable {
+		for (int i = 0; i < 8; i++) {
+			call(true);
+		}
+
+		verify(listener, times(1)).onStateChange(container, State.CLOSED, State.OPEN);
+	}
+
+	@Test
+	public void testSuccessfulProbeClosesAndRestoresConsumers() throws Throwable {
+		open();
+		List<Runnable> tasks = scheduledTasks(2);
+		tasks.get(0).run();
+		verify(container).stop();
+		containerFields.setPropertyValue("running", false);
+
+		tasks.get(1).run();
+
+		assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+		assertThat(containerFields.getPropertyValue("concurrentConsumers")).isEqualTo(1);
+		verify(container).start();
+
+		containerFields.setPropertyValue("running", true);
+		call(false);
+		call(false);
+
+		assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+		verify(listener).onStateChange(container, State.HALF_OPEN, State.CLOSED);
+		scheduledTasks(3).get(2).run();
+		assertThat(containerFields.getPropertyValue("concurrentConsumers")).isEqualTo(4);
+	}
+
+	@Test
+	public void testContainerStoppedExternallyIsNotStarted() throws Throwable {
+		containerFields.setPropertyValue("running", false);
+		open();
+		List<Runnable> tasks = scheduledTasks(2);
+		tasks.get(0).run();
+
+		tasks.get(1).run();
+
+		assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+		verify(container, never()).start();
+	}
+
+	@Test
+	public void testShutdownCancelsPendingTasks() throws Throwable {
+		open();
+		List<Runnable> tasks = scheduledTasks(2);
+
+		circuitBreaker.shutdown();
+
+		verify(future, times(2)).cancel(false);
+		tasks.get(0).run();
+		tasks.get(1).run();
+		verify(container, never()).start();
+	}
+
+	private void open() throws Throwable {
+		for (int i = 0; i < 4; i++) {
+			call(true);
+		}
+		assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+	}
+
+	private List<Runnable> scheduledTasks(int count) {
+		ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+		verify(scheduler, times(count)).schedule(tasks.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		return tasks.getAllValues();
+	}
+
+	private void call(boolean fail) throws Throwable {
+		MethodInvocation invocation = mock(MethodInvocation.class);
+		if (fail) {
+			when(invocation.proceed()).thenThrow(new IllegalStateException("failed"));
+		}
+		try {
+			circuitBreaker.invoke(invocation);
+		} catch (IllegalStateException e) {
+			// expected for failed calls
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+public class ConsumerExecutorsTest {
+
+	@Test
+	public void testFullPoolNamesMaxThreadsProperty() throws InterruptedException {
+		ExecutorService executor = ConsumerExecutors.boundedPool(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.execute(() -> {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			executor.execute(() -> {});
+			fail("Expected the second consumer to be rejected");
+		} catch (RejectedExecutionException e) {
+			assertThat(e.getMessage()).contains("rabbitmq.consumer.maxThreads");
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.metrics.AmqpMetrics;
+import io.corbel.lib.rabbitmq.metrics.SimpleMetricsRegistry;
+
+public class DeduplicationAdviceTest {
+
+	private static final String MESSAGE_ID = "test-message-id";
+
+	private SimpleMessageListenerContainer container;
+	private SimpleMetricsRegistry metricsRegistry;
+	private DeduplicationAdvice advice;
+	private Channel channel;
+	private Message message;
+	private MethodInvocation invocation;
+
+	@Before
+	public void setup() throws Throwable {
+		container = new SimpleMessageListenerContainer(mock(ConnectionFactory.class));
+		metricsRegistry = new SimpleMetricsRegistry();
+		advice = new DeduplicationAdvice(container, DeduplicationAdvice.messageId(), new DeduplicationCache(100, 60000),
+				metricsRegistry);
+		channel = mock(Channel.class);
+		MessageProperties properties = new MessageProperties();
+		properties.setMessageId(MESSAGE_ID);
+		properties.setDeliveryTag(7L);
+		message = new Message(new byte[] { 1 }, properties);
+		invocation = mock(MethodInvocation.class);
+		when(invocation.getArguments()).thenReturn(new Object[] { channel, message });
+	}
+
+	@Test
+	public void testDuplicateIsSkipped() throws Throwable {
+		advice.invoke(invocation);
+		advice.invoke(invocation);
+
+		verify(invocation, times(1)).proceed();
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+		assertThat(metricsRegistry.getCounters().get(AmqpMetrics.DEDUPLICATION_HITS).getCount()).isEqualTo(1L);
+		assertThat(metricsRegistry.getCounters().get(AmqpMetrics.DEDUPLICATION_MISSES).getCount()).isEqualTo(1L);
+	}
+
+	@Test
+	public void testFailedMessageIsNotRemembered() throws Throwable {
+		when(invocation.proceed()).thenThrow(new IllegalStateException("failed")).thenReturn(null);
+		try {
+			advice.invoke(invocation);
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		advice.invoke(invocation);
+
+		verify(invocation, times(2)).proceed();
+	}
+
+	@Test
+	public void testDuplicateIsAcknowledgedInManualMode() throws Throwable {
+		container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+		advice.invoke(invocation);
+		advice.invoke(invocation);
+
+		verify(channel).basicAck(7L, false);
+	}
+
+}
@@ -0,0 +1,38 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class DeduplicationCacheTest {
+
+	private long now;
+
+	@Test
+	public void testKeysExpire() {
+		DeduplicationCache cache = new DeduplicationCache(10, 1000, () -> now);
+		cache.add("a");
+		now = 500;
+		cache.add("b");
+		now = 1200;
+
+		assertThat(cache.contains("a")).isFalse();
+		assertThat(cache.contains("b")).isTrue();
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testOldestKeysAreEvictedAtCapacity() {
+		DeduplicationCache cache = new DeduplicationCache(10, 1000, () -> now);
+		for (int i = 0; i < 15; i++) {
+			cache.add("key-" + i);
+		}
+
+		assertThat(cache.size()).isEqualTo(10);
+		assertThat(cache.contains("key-4")).isFalse();
+		for (int i = 5; i < 15; i++) {
+			assertThat(cache.contains("key-" + i)).isTrue();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+public class DelayedRetryAdviceTest {
+
+	private static final String RETRY_EXCHANGE = "test.queue.retry";
+
+	private DelayedRetryAdvice advice;
+	private Channel channel;
+	private Message message;
+	private MethodInvocation invocation;
+
+	@Before
+	public void setup() throws Throwable {
+		advice = new DelayedRetryAdvice(RETRY_EXCHANGE, Arrays.asList(100L, 1000L), MetricsRegistry.NOOP);
+		channel = mock(Channel.class);
+		message = new Message(new byte[] { 1 }, new MessageProperties());
+		invocation = mock(MethodInvocation.class);
+		when(invocation.getArguments()).thenReturn(new Object[] { channel, message });
+		when(invocation.proceed()).thenThrow(new IllegalStateException("failed"));
+	}
+
+	@Test
+	public void testRetryDelays() {
+		BackoffOptions backoffOptions = new BackoffOptions();
+		backoffOptions.setInitialInterval(100);
+		backoffOptions.setMultiplier(2);
+		backoffOptions.setMaxInterval(300);
+
+		assertThat(DelayedRetryAdvice.retryDelays(4, backoffOptions)).containsExactly(100L, 200L, 300L);
+		assertThat(DelayedRetryAdvice.retryDelays(1, backoffOptions)).isEmpty();
+	}
+
+	@Test
+	public void testFailedMessageIsRepublishedToNextDelay() throws Throwable {
+		message.getMessageProperties().setHeader(DelayedRetryAdvice.RETRY_ATTEMPT_HEADER, 1);
+
+		assertThat(advice.invoke(invocation)).isNull();
+
+		ArgumentCaptor<BasicProperties> propertiesCaptor = ArgumentCaptor.forClass(BasicProperties.class);
+		verify(channel).basicPublish(eq(RETRY_EXCHANGE), eq("1000"), eq(false), propertiesCaptor.capture(),
+				eq(message.getBody()));
+		assertThat(propertiesCaptor.getValue().getHeaders().get(DelayedRetryAdvice.RETRY_ATTEMPT_HEADER))
+				.isEqualTo(2);
+	}
+
+	@Test(expected = AmqpRejectAndDontRequeueException.class)
+	public void testExhaustedRetriesAreRejected() throws Throwable {
+		message.getMessageProperties().setHeader(DelayedRetryAdvice.RETRY_ATTEMPT_HEADER, 2);
+		try {
+			advice.invoke(invocation);
+		} finally {
+			verify(channel, never()).basicPublish(anyString(), anyString(), anyBoolean(), any(BasicProperties.class),
+					any(byte[].class));
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package io.corbel.lib.rabbitmq.config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.corbel.lib.rabbitmq.config.FairScheduler.SchedulingClass;
+
+public class FairSchedulerTest {
+
+	private static final long COST = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final FairScheduler scheduler = new FairScheduler(1);
+	private final List<String> grants = Collections.synchronizedList(new ArrayList<>());
+	private final List<Thread> threads = new ArrayList<>();
+
+	@Test
+	public void testSlotsAreSharedByWeight() throws InterruptedException {
+		SchedulingClass holder = scheduler.register("holder", 1, 0);
+		scheduler.acquire(holder);
+		waitFor(scheduler.register("a", 3, 0), 8);
+		waitFor(scheduler.register("b", 1, 0), 12);
+
+		scheduler.release(holder, 0);
+		joinAll();
+
+		assertThat(String.join("", grants.subList(0, 8))).isEqualTo("aaabaaab");
+		assertThat(scheduler.getFreeSlots()).isEqualTo(1);
+	}
+
+	@Test
+	public void testHigherPriorityIsServedFirst() throws InterruptedException {
+		SchedulingClass holder = scheduler.register("holder", 1, 0);
+		scheduler.acquire(holder);
+		waitFor(scheduler.register("low", 10, 0), 2);
+		waitFor(scheduler.register("high", 1, 1), 3);
+
+		scheduler.release(holder, 0);
+		joinAll();
+
+		assertThat(grants).containsExactly("high", "low", "low");
+	}
+
+	@Test
+	public void testHistoryBeforeContentionIsNotCharged() throws InterruptedException {
+		SchedulingClass a = scheduler.register("a", 1, 0);
+		for (int i = 0; i < 10; i++) {
+			scheduler.acquire(a);
+			scheduler.release(a, 100 * COST);
+		}
+		SchedulingClass holder = scheduler.register("holder", 1, 0);
+		scheduler.acquire(holder);
+		waitFor(a, 4);
+		waitFor(scheduler.register("b", 1, 0), 8);
+
+		scheduler.release(holder, 0);
+		joinAll();
+
+		assertThat(String.join("", grants)).isEqualTo("abababab");
+	}
+
+	@Test
+	public void testNoWaitWithFreeSlots() {
+		SchedulingClass schedulingClass = scheduler.register("a", 1, 0);
+		scheduler.acquire(schedulingClass);
+		assertThat(scheduler.getFreeSlots()).isEqualTo(0);
+		scheduler.release(schedulingClass, COST);
+		assertThat(scheduler.getFreeSlots()).isEqualTo(1);
+	}
+
+	/**
+	 * Starts threads of the class acquiring a slot, one at a time so they arrive in order, until there are waiting
+	 */
+	private void waitFor(SchedulingClass schedulingClass, int waiting) throws InterruptedException {
+		while (threads.size() < waiting) {
+			Thread thread = new Thread(() -> {
+				scheduler.acquire(schedulingClass);
+				grants.add(schedulingClass.getName());
+				scheduler.release(schedulingClass, COST);
+			});
+			threads.add(thread);
+			thread.start();
+			while (scheduler.getWaiting() < threads.size()) {
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private void joinAll() throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+	}
+
+}
@@ -1,23 +1,45 @@
 package io.corbel.lib.rabbitmq.config;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.aopalliance.intercept.MethodInterceptor;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.Binding.DestinationType;
 import org.springframework.amqp.core.Exchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.Connection;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.compression.DecompressingPostProcessor;
+import io.corbel.lib.rabbitmq.listener.PartitionedMessageListenerAdapter;
 
 public class RabbitMQConfigurerTest {
 
@@ -139,4 +161,202 @@ public class RabbitMQConfigurerTest {
 		assertThat(bindingCaptor.getValue().getRoutingKey()).isEqualTo(ROUTING_PATTERN_TEST);
 	}
 
+	@Test
+	public void testListenerContainersShareConsumerExecutor() {
+		SimpleMessageListenerContainer container1 = configurer.listenerContainer(QUEUE_TEST);
+		SimpleMessageListenerContainer container2 = configurer.listenerContainer(container -> container, QUEUE_TEST);
+		assertThat(new DirectFieldAccessor(container1).getPropertyValue("taskExecutor")).isSameAs(
+				configurer.consumerExecutor());
+		assertThat(new DirectFieldAccessor(container2).getPropertyValue("taskExecutor")).isSameAs(
+				configurer.consumerExecutor());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testDecompressorKeepsPostProcessorsOfModifiers() {
+		MessagePostProcessor postProcessor = message -> message;
+		SimpleMessageListenerContainer container = configurer.listenerContainer(listenerContainer -> {
+			listenerContainer.setAfterReceivePostProcessors(postProcessor);
+			return listenerContainer;
+		}, QUEUE_TEST);
+
+		List<MessagePostProcessor> postProcessors = new ArrayList<>((Collection<MessagePostProcessor>)
+				new DirectFieldAccessor(container).getPropertyValue("afterReceivePostProcessors"));
+		assertThat(postProcessors).hasSize(2);
+		assertThat(postProcessors.get(0)).isInstanceOf(DecompressingPostProcessor.class);
+		assertThat(postProcessors.get(1)).isSameAs(postProcessor);
+	}
+
+	@Test
+	public void testPartitionedListenerRunsAdvicesOncePerMessage() throws Exception {
+		AtomicInteger before = new AtomicInteger();
+		AtomicInteger after = new AtomicInteger();
+		SimpleMessageListenerContainer container = configurer.listenerContainer(listenerContainer -> {
+			AdviceChains.append(listenerContainer, countingAdvice(before));
+			configurer.partitionedListener(message -> {}, 2, PartitionedMessageListenerAdapter.routingKey()).apply(
+					listenerContainer);
+			return AdviceChains.append(listenerContainer, countingAdvice(after));
+		}, QUEUE_TEST);
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		MessageProperties properties = new MessageProperties();
+		properties.setDeliveryTag(1);
+
+		container.afterPropertiesSet();
+
+		invokeListener(container, channel, new Message(new byte[0], properties));
+
+		verify(channel, timeout(1000)).basicAck(1L, true);
+		assertThat(before.get()).isEqualTo(1);
+		assertThat(after.get()).isEqualTo(1);
+		assertThat(AdviceChains.get(container)).isEmpty();
+		configurer.destroy();
+	}
+
+	@Test
+	public void testDestroyShutsDownConsumerExecutor() {
+		configurer.destroy();
+		assertThat(((ExecutorService) configurer.consumerExecutor()).isShutdown()).isTrue();
+	}
+
+	@Test
+	public void testAdaptiveConcurrency() {
+		AdaptiveConcurrencyOptions options = new AdaptiveConcurrencyOptions();
+		options.setMinConsumers(2);
+		options.setMinPrefetch(5);
+		SimpleMessageListenerContainer container = configurer.listenerContainer(
+				configurer.adaptiveConcurrency(options), QUEUE_TEST);
+		DirectFieldAccessor accessor = new DirectFieldAccessor(container);
+		assertThat(accessor.getPropertyValue("concurrentConsumers")).isEqualTo(2);
+		assertThat(accessor.getPropertyValue("prefetchCount")).isEqualTo(5);
+		assertThat(AdviceChains.get(container)[0]).isInstanceOf(AdaptiveConcurrency.class);
+	}
+
+	@Test
+	public void testIdenticalDeclarationsAreSentOnce() {
+		configurer.queue(QUEUE_TEST);
+		configurer.queue(QUEUE_TEST);
+		configurer.queue(QUEUE_TEST, configurer.setTimeToLive(1000));
+		verify(rabbitAdminMock, times(2)).declareQueue(any(Queue.class));
+		assertThat(configurer.getDeclarations().size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testDeferredDeclarations() throws Exception {
+		Connection connection = mock(Connection.class);
+		Channel channel = mock(Channel.class);
+		when(connectionFactory.createConnection()).thenReturn(connection);
+		when(connection.createChannel(false)).thenReturn(channel);
+		configurer.setDeferDeclarations(true);
+
+		configurer.bind(EXCHANGE_TEST, configurer.queue(QUEUE_TEST), Optional.of(ROUTING_PATTERN_TEST),
+				Optional.empty());
+		configurer.topicExchange(EXCHANGE_TEST);
+		verify(rabbitAdminMock, never()).declareQueue(any(Queue.class));
+
+		configurer.afterSingletonsInstantiated();
+		verify(channel).exchangeDeclareNoWait(eq(EXCHANGE_TEST), eq("topic"), eq(true), eq(false), eq(false),
+				any(Map.class));
+		verify(channel).queueDeclareNoWait(eq(QUEUE_TEST), eq(true), eq(false), eq(false), any(Map.class));
+		verify(channel).queueBindNoWait(eq(QUEUE_TEST), eq(EXCHANGE_TEST), eq(ROUTING_PATTERN_TEST), any(Map.class));
+		verify(channel).basicQos(0);
+		assertThat(configurer.getDeclarations().getLastDeclarationCount()).isEqualTo(3);
+	}
+
+	@Test
+	public void testDelayedRetryTopology() {
+		BackoffOptions backoffOptions = new BackoffOptions();
+		backoffOptions.setInitialInterval(1000);
+		backoffOptions.setMultiplier(10);
+		backoffOptions.setMaxInterval(10000);
+		ArgumentCaptor<Queue> queueCaptor = ArgumentCaptor.forClass(Queue.class);
+
+		SimpleMessageListenerContainer container = configurer.listenerContainer(configurer.setDelayedRetry(
+				QUEUE_TEST, 4, backoffOptions), QUEUE_TEST);
+
+		verify(rabbitAdminMock, times(2)).declareQueue(queueCaptor.capture());
+		Queue firstRetry = queueCaptor.getAllValues().get(0);
+		assertThat(firstRetry.getName()).isEqualTo(QUEUE_TEST + ".retry.1000");
+		assertThat(firstRetry.getArguments().get("x-message-ttl")).isEqualTo(1000);
+		assertThat(firstRetry.getArguments().get("x-dead-letter-exchange")).isEqualTo(QUEUE_TEST + ".retry.requeue");
+		assertThat(queueCaptor.getAllValues().get(1).getName()).isEqualTo(QUEUE_TEST + ".retry.10000");
+		verify(rabbitAdminMock, times(3)).declareBinding(any(Binding.class));
+		assertThat(AdviceChains.get(container)[0]).isInstanceOf(DelayedRetryAdvice.class);
+	}
+
+	@Test
+	public void testShardedQueue() {
+		ArgumentCaptor<Exchange> exchangeCaptor = ArgumentCaptor.forClass(Exchange.class);
+		ArgumentCaptor<Binding> bindingCaptor = ArgumentCaptor.forClass(Binding.class);
+
+		ShardedQueue shardedQueue = configurer.shardedQueue(QUEUE_TEST, 3);
+
+		verify(rabbitAdminMock).declareExchange(exchangeCaptor.capture());
+		assertThat(exchangeCaptor.getValue().getType()).isEqualTo(ShardedQueue.CONSISTENT_HASH_EXCHANGE_TYPE);
+		verify(rabbitAdminMock, times(3)).declareQueue(any(Queue.class));
+		verify(rabbitAdminMock, times(3)).declareBinding(bindingCaptor.capture());
+		assertThat(bindingCaptor.getValue().getRoutingKey()).isEqualTo("1");
+		assertThat(shardedQueue.getShardQueueNames()).containsExactly(QUEUE_TEST + ".shard.0",
+				QUEUE_TEST + ".shard.1", QUEUE_TEST + ".shard.2");
+		assertThat(shardedQueue.getShardQueueNames(1, 2)).containsExactly(QUEUE_TEST + ".shard.1");
+
+		List<SimpleMessageListenerContainer> containers = configurer.shardListenerContainers(shardedQueue, null);
+		assertThat(containers).hasSize(3);
+		assertThat(new DirectFieldAccessor(containers.get(0)).getPropertyValue("exclusive")).isEqualTo(true);
+	}
+
+	@Test
+	public void testBoundedQueueArguments() {
+		configurer.queue(QUEUE_TEST, configurer.setQueueType(QueueType.QUORUM), configurer.setMaxLength(1000),
+				configurer.setMaxLengthBytes(1048576L), configurer.setOverflow(OverflowPolicy.REJECT_PUBLISH),
+				configurer.setSingleActiveConsumer());
+		ArgumentCaptor<Queue> queueCaptor = ArgumentCaptor.forClass(Queue.class);
+		verify(rabbitAdminMock).declareQueue(queueCaptor.capture());
+		Map<String, Object> arguments = queueCaptor.getValue().getArguments();
+		assertThat(arguments.get("x-queue-type")).isEqualTo("quorum");
+		assertThat(arguments.get("x-max-length")).isEqualTo(1000);
+		assertThat(arguments.get("x-max-length-bytes")).isEqualTo(1048576L);
+		assertThat(arguments.get("x-overflow")).isEqualTo("reject-publish");
+		assertThat(arguments.get("x-single-active-consumer")).isEqualTo(true);
+	}
+
+	@Test
+	public void testLazyMode() {
+		configurer.queue(QUEUE_TEST, configurer.setLazyMode());
+		ArgumentCaptor<Queue> queueCaptor = ArgumentCaptor.forClass(Queue.class);
+		verify(rabbitAdminMock).declareQueue(queueCaptor.capture());
+		assertThat(queueCaptor.getValue().getArguments().get("x-queue-mode")).isEqualTo("lazy");
+	}
+
+	@Test
+	public void testMaxPriority() {
+		configurer.queue(QUEUE_TEST, configurer.setMaxPriority(10));
+		ArgumentCaptor<Queue> queueCaptor = ArgumentCaptor.forClass(Queue.class);
+		verify(rabbitAdminMock).declareQueue(queueCaptor.capture());
+		assertThat(queueCaptor.getValue().getArguments().get("x-max-priority")).isEqualTo(10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaxPriorityOutOfRange() {
+		configurer.setMaxPriority(256);
+	}
+
+	/**
+	 * Runs the message through the advice chain of the container, as its consumers do
+	 */
+	private void invokeListener(SimpleMessageListenerContainer container, Channel channel, Message message)
+			throws Exception {
+		Method invokeListener = SimpleMessageListenerContainer.class.getDeclaredMethod("invokeListener",
+				Channel.class, Message.class);
+		invokeListener.setAccessible(true);
+		invokeListener.invoke(container, channel, message);
+	}
+
+	private MethodInterceptor countingAdvice(AtomicInteger invocations) {
+		return invocation -> {
+			invocations.incrementAndGet();
+			return invocation.proceed();
+		};
+	}
+
 }
@@ -0,0 +1,55 @@
+package io.corbel.lib.rabbitmq.connection;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.Connection;
+
+public class ClusterAddressesTest {
+
+	private static final String ADDRESSES = "node1:5672, node2:5672,node3:5673";
+
+	private CachingConnectionFactory connectionFactory;
+
+	@Before
+	public void setup() {
+		connectionFactory = mock(CachingConnectionFactory.class);
+	}
+
+	@Test
+	public void testAppliesAddresses() {
+		ClusterAddresses addresses = new ClusterAddresses(connectionFactory, ADDRESSES, false);
+
+		assertThat(addresses.getAddresses()).containsExactly("node1:5672", "node2:5672", "node3:5673");
+		verify(connectionFactory).setAddresses("node1:5672,node2:5672,node3:5673");
+	}
+
+	@Test
+	public void testRotatesOnEachConnection() {
+		ClusterAddresses addresses = new ClusterAddresses(connectionFactory, ADDRESSES, false);
+
+		addresses.onCreate(mock(Connection.class));
+		verify(connectionFactory).setAddresses("node2:5672,node3:5673,node1:5672");
+
+		addresses.onCreate(mock(Connection.class));
+		addresses.onCreate(mock(Connection.class));
+		assertThat(addresses.getAddresses()).containsExactly("node1:5672", "node2:5672", "node3:5673");
+	}
+
+	@Test
+	public void testShuffleKeepsAllAddresses() {
+		ClusterAddresses addresses = new ClusterAddresses(connectionFactory, ADDRESSES, true);
+
+		assertThat(addresses.getAddresses()).containsOnly("node1:5672", "node2:5672", "node3:5673");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyAddresses() {
+		new ClusterAddresses(connectionFactory, " , ", false);
+	}
+
+}
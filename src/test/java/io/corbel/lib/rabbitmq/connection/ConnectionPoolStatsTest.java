@@ -0,0 +1,60 @@
+package io.corbel.lib.rabbitmq.connection;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+public class ConnectionPoolStatsTest {
+
+	private CachingConnectionFactory connectionFactory;
+	private ConnectionPoolStats stats;
+
+	@Before
+	public void setup() throws Exception {
+		ConnectionFactory rabbitConnectionFactory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(rabbitConnectionFactory.newConnection(any(ExecutorService.class))).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		when(connection.createChannel()).thenAnswer(invocation -> openChannel());
+		when(connection.createChannel(anyInt())).thenAnswer(invocation -> openChannel());
+
+		connectionFactory = new CachingConnectionFactory(rabbitConnectionFactory);
+		connectionFactory.setChannelCheckoutTimeout(100);
+		stats = new ConnectionPoolStats("test", connectionFactory);
+	}
+
+	@Test
+	public void testChannelCheckoutAndReturn() throws Exception {
+		Channel channel = connectionFactory.createConnection().createChannel(false);
+
+		assertThat(stats.getOpenConnections()).isEqualTo(1);
+		assertThat(stats.getCheckedOutChannels()).isEqualTo(1);
+		assertThat(stats.getIdleChannels()).isEqualTo(0);
+
+		channel.close();
+
+		assertThat(stats.getCheckedOutChannels()).isEqualTo(0);
+		assertThat(stats.getIdleChannels()).isEqualTo(1);
+		assertThat(stats.getChannelsCreated()).isEqualTo(1);
+		assertThat(stats.getConnectionsCreated()).isEqualTo(1);
+	}
+
+	private Channel openChannel() {
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		return channel;
+	}
+
+}
@@ -0,0 +1,118 @@
+package io.corbel.lib.rabbitmq.converter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+public class JacksonMessageConverterTest {
+
+	private final JacksonMessageConverter converter = new JacksonMessageConverter();
+
+	@Before
+	public void setup() {
+		converter.setTrustedPackages("io.corbel.lib.rabbitmq");
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Message message = converter.toMessage(new TestEvent("id", 3), new MessageProperties());
+
+		assertThat(message.getMessageProperties().getContentType()).isEqualTo(MessageProperties.CONTENT_TYPE_JSON);
+		assertThat(message.getMessageProperties().getContentLength()).isEqualTo(message.getBody().length);
+		TestEvent event = (TestEvent) converter.fromMessage(message);
+		assertThat(event.getId()).isEqualTo("id");
+		assertThat(event.getCount()).isEqualTo(3);
+	}
+
+	@Test
+	public void testReusedBufferDoesNotLeakBetweenMessages() {
+		converter.toMessage(new TestEvent("a much longer identifier", 1), new MessageProperties());
+		Message message = converter.toMessage(new TestEvent("id", 2), new MessageProperties());
+
+		assertThat(new String(message.getBody())).isEqualTo("{\"id\":\"id\",\"count\":2}");
+	}
+
+	@Test
+	public void testCompatibleWithJackson2JsonMessageConverter() {
+		Message message = new Jackson2JsonMessageConverter().toMessage(new TestEvent("id", 1), new MessageProperties());
+
+		assertThat(((TestEvent) converter.fromMessage(message)).getId()).isEqualTo("id");
+	}
+
+	@Test(expected = MessageConversionException.class)
+	public void testUntrustedTypeIsRejected() {
+		Message message = converter.toMessage(new TestEvent("id", 1), new MessageProperties());
+		converter.setTrustedPackages("com.example");
+
+		converter.fromMessage(message);
+	}
+
+	@Test
+	public void testTypeMapping() {
+		converter.setTrustedPackages();
+		converter.setTypeMappings(Collections.singletonMap("event", TestEvent.class));
+		Message message = converter.toMessage(new TestEvent("id", 1), new MessageProperties());
+
+		assertThat(message.getMessageProperties().getHeaders().get(JacksonMessageConverter.TYPE_ID_HEADER))
+				.isEqualTo("event");
+		assertThat(((TestEvent) converter.fromMessage(message)).getId()).isEqualTo("id");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWithoutTypeId() {
+		MessageProperties properties = new MessageProperties();
+		properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+
+		Object result = converter.fromMessage(new Message("{\"id\":\"id\"}".getBytes(), properties));
+
+		assertThat((Map<String, Object>) result).isEqualTo(Collections.singletonMap("id", "id"));
+	}
+
+	@Test
+	public void testOtherContentTypeReturnsBody() {
+		MessageProperties properties = new MessageProperties();
+		properties.setContentType(MessageProperties.CONTENT_TYPE_BYTES);
+		byte[] body = new byte[] { 1, 2 };
+
+		assertThat(converter.fromMessage(new Message(body, properties))).isSameAs(body);
+	}
+
+	public static class TestEvent {
+
+		private String id;
+		private int count;
+
+		public TestEvent() {}
+
+		public TestEvent(String id, int count) {
+			this.id = id;
+			this.count = count;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public void setId(String id) {
+			this.id = id;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public void setCount(int count) {
+			this.count = count;
+		}
+	}
+
+}
@@ -2,6 +2,9 @@ package io.corbel.lib.rabbitmq.ioc;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory.CacheMode;
+import org.springframework.amqp.rabbit.core.BatchingRabbitTemplate;
 import org.springframework.core.env.Environment;
 
 import java.util.Optional;
@@ -51,4 +54,61 @@ public class AbstractRabbitMQConfigurationTest {
         Assert.assertEquals("TEST_HOST", conf.getRabbitHost());
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPlainTemplateWithoutBatchSize(){
+        Environment envMock = mock(Environment.class);
+        when(envMock.getProperty("rabbitmq.port", Integer.class)).thenReturn(5672);
+
+        AbstractRabbitMQConfiguration conf = new AbstractRabbitMQConfiguration() {
+            @Override
+            protected Environment getEnvironment() {
+                return envMock;
+            }
+        };
+
+        Assert.assertFalse(conf.amqpTemplate() instanceof BatchingRabbitTemplate);
+    }
+
+    @Test
+    public void testBatchingTemplateWithBatchSize(){
+        Environment envMock = mock(Environment.class);
+        when(envMock.getProperty("rabbitmq.port", Integer.class)).thenReturn(5672);
+        when(envMock.getProperty("rabbitmq.publisher.batchSize", Integer.class)).thenReturn(100);
+
+        AbstractRabbitMQConfiguration conf = new AbstractRabbitMQConfiguration() {
+            @Override
+            protected Environment getEnvironment() {
+                return envMock;
+            }
+        };
+
+        Assert.assertTrue(conf.amqpTemplate() instanceof BatchingRabbitTemplate);
+    }
+
+    @Test
+    public void testDedicatedPoolSettingsOverrideSharedOnes(){
+        Environment envMock = mock(Environment.class);
+        when(envMock.getProperty("rabbitmq.port", Integer.class)).thenReturn(5672);
+        when(envMock.getProperty("rabbitmq.cache.channel.size", Integer.class)).thenReturn(10);
+        when(envMock.getProperty("rabbitmq.publisher.cache.channel.size", Integer.class)).thenReturn(50);
+        when(envMock.getProperty("rabbitmq.consumer.cache.mode", CacheMode.class)).thenReturn(CacheMode.CONNECTION);
+        when(envMock.getProperty("rabbitmq.consumer.cache.connection.size", Integer.class)).thenReturn(4);
+
+        AbstractRabbitMQConfiguration conf = new AbstractRabbitMQConfiguration() {
+            @Override
+            protected Environment getEnvironment() {
+                return envMock;
+            }
+        };
+
+        CachingConnectionFactory publisher = conf.publisherConnectionFactory();
+        CachingConnectionFactory consumer = conf.consumerConnectionFactory();
+        Assert.assertEquals(50, publisher.getChannelCacheSize());
+        Assert.assertEquals(CacheMode.CHANNEL, publisher.getCacheMode());
+        Assert.assertEquals(10, consumer.getChannelCacheSize());
+        Assert.assertEquals(CacheMode.CONNECTION, consumer.getCacheMode());
+        Assert.assertEquals(4, consumer.getConnectionCacheSize());
+        Assert.assertNotSame(publisher, consumer);
+    }
+}
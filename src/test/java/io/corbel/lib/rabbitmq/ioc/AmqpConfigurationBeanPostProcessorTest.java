@@ -0,0 +1,71 @@
+package io.corbel.lib.rabbitmq.ioc;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import io.corbel.lib.rabbitmq.config.AmqpConfiguration;
+import io.corbel.lib.rabbitmq.config.AmqpConfigurer;
+
+public class AmqpConfigurationBeanPostProcessorTest {
+
+	private final AmqpConfigurer configurer = mock(AmqpConfigurer.class);
+
+	@Test
+	public void testSynchronousConfiguration() {
+		AmqpConfiguration configuration = mock(AmqpConfiguration.class);
+		AmqpConfigurationBeanPostProcessor postProcessor = new AmqpConfigurationBeanPostProcessor(configurer);
+
+		postProcessor.postProcessAfterInitialization(configuration, "configuration");
+
+		verify(configuration).configure(configurer);
+		assertThat(postProcessor.getReadiness().isDone()).isTrue();
+	}
+
+	@Test
+	public void testParallelConfigurationAfterRefresh() throws Exception {
+		AmqpConfiguration configuration1 = mock(AmqpConfiguration.class);
+		AmqpConfiguration configuration2 = mock(AmqpConfiguration.class);
+		AmqpConfigurationBeanPostProcessor postProcessor = new AmqpConfigurationBeanPostProcessor(configurer, 2);
+
+		postProcessor.postProcessAfterInitialization(configuration1, "configuration1");
+		postProcessor.postProcessAfterInitialization(configuration2, "configuration2");
+		verify(configuration1, never()).configure(configurer);
+		assertThat(postProcessor.getReadiness().isDone()).isFalse();
+
+		postProcessor.onApplicationEvent(mock(ContextRefreshedEvent.class));
+		postProcessor.getReadiness().get(5, TimeUnit.SECONDS);
+
+		verify(configuration1).configure(configurer);
+		verify(configuration2).configure(configurer);
+	}
+
+	@Test
+	public void testParallelConfigurationFailureFailsRefresh() {
+		AmqpConfiguration configuration1 = mock(AmqpConfiguration.class);
+		AmqpConfiguration configuration2 = mock(AmqpConfiguration.class);
+		IllegalStateException failure = new IllegalStateException("Broker unreachable");
+		doThrow(failure).when(configuration2).configure(configurer);
+		AmqpConfigurationBeanPostProcessor postProcessor = new AmqpConfigurationBeanPostProcessor(configurer, 2);
+		postProcessor.postProcessAfterInitialization(configuration1, "configuration1");
+		postProcessor.postProcessAfterInitialization(configuration2, "configuration2");
+
+		try {
+			postProcessor.onApplicationEvent(mock(ContextRefreshedEvent.class));
+			fail("Expected the refresh to fail");
+		} catch (BeanInitializationException e) {
+			assertThat(e.getCause()).isSameAs(failure);
+		}
+		assertThat(postProcessor.getReadiness().isCompletedExceptionally()).isTrue();
+	}
+
+}
@@ -0,0 +1,127 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import com.rabbitmq.client.Channel;
+
+import io.corbel.lib.rabbitmq.config.AdviceChains;
+import io.corbel.lib.rabbitmq.config.DeduplicationAdvice;
+import io.corbel.lib.rabbitmq.config.DeduplicationCache;
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+public class BatchingMessageListenerAdapterTest {
+
+	private Channel channel;
+	private List<List<Message>> batches;
+
+	@Before
+	public void setup() {
+		channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		batches = new ArrayList<>();
+	}
+
+	@Test
+	public void testBatchIsAcknowledgedAtOnce() throws Exception {
+		BatchingMessageListenerAdapter adapter = new BatchingMessageListenerAdapter(batches::add, 3, 1000);
+
+		adapter.onMessage(message(1), channel);
+		adapter.onMessage(message(2), channel);
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+		adapter.onMessage(message(3), channel);
+
+		assertThat(batches).hasSize(1);
+		assertThat(batches.get(0)).hasSize(3);
+		verify(channel).basicAck(3, true);
+	}
+
+	@Test
+	public void testExpiredBatchIsFlushed() throws Exception {
+		BatchingMessageListenerAdapter adapter = new BatchingMessageListenerAdapter(batches::add, 10, 0);
+
+		adapter.onMessage(message(1), channel);
+		adapter.flushExpired();
+
+		assertThat(batches).hasSize(1);
+		verify(channel).basicAck(1, true);
+	}
+
+	@Test
+	public void testFailedBatchIsHandledOneByOne() throws Exception {
+		BatchingMessageListenerAdapter adapter = new BatchingMessageListenerAdapter(messages -> {
+			for (Message message : messages) {
+				if (message.getMessageProperties().getDeliveryTag() == 2) {
+					throw new AmqpRejectAndDontRequeueException("invalid message");
+				}
+			}
+		}, 2, 1000);
+
+		adapter.onMessage(message(1), channel);
+		adapter.onMessage(message(2), channel);
+
+		verify(channel).basicAck(1, false);
+		verify(channel).basicReject(2, false);
+	}
+
+	@Test
+	public void testDeduplicationKeepsMessagesOfFailedBatches() throws Exception {
+		List<String> handled = new ArrayList<>();
+		BatchingMessageListenerAdapter adapter = new BatchingMessageListenerAdapter(messages -> {
+			if (messages.size() > 1 && messages.stream().anyMatch(message -> message.getMessageProperties()
+					.getDeliveryTag() == 2)) {
+				throw new IllegalStateException("batch failed");
+			}
+			handled.addAll(messages.stream().map(message -> message.getMessageProperties().getMessageId()).collect(
+					Collectors.toList()));
+		}, 2, 1000);
+		SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(mock(ConnectionFactory.class));
+		AdviceChains.append(container, new DeduplicationAdvice(container, DeduplicationAdvice.messageId(),
+				new DeduplicationCache(100, 60000), MetricsRegistry.NOOP));
+		adapter.configure(container);
+
+		adapter.onMessage(message(1, "a"), channel);
+		adapter.onMessage(message(2, "b"), channel);
+
+		assertThat(handled).containsExactly("a", "b");
+		verify(channel).basicAck(1, false);
+		verify(channel).basicAck(2, false);
+
+		// Redelivery of a handled message along with a new one
+		adapter.onMessage(message(3, "a"), channel);
+		adapter.onMessage(message(4, "c"), channel);
+
+		assertThat(handled).containsExactly("a", "b", "c");
+		verify(channel).basicAck(4, true);
+		verify(channel, never()).basicAck(3, false);
+	}
+
+	private Message message(long deliveryTag) {
+		return message(deliveryTag, null);
+	}
+
+	private Message message(long deliveryTag, String messageId) {
+		MessageProperties properties = new MessageProperties();
+		properties.setDeliveryTag(deliveryTag);
+		properties.setMessageId(messageId);
+		return new Message(new byte[0], properties);
+	}
+
+}
@@ -0,0 +1,138 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+
+import com.rabbitmq.client.Channel;
+
+public class PartitionedMessageListenerAdapterTest {
+
+	private static final String KEY_HEADER = "aggregateId";
+
+	private final List<String> handled = new CopyOnWriteArrayList<>();
+	private final CountDownLatch slowMessage = new CountDownLatch(1);
+	private PartitionedMessageListenerAdapter adapter;
+	private Channel channel;
+
+	@Before
+	public void setup() {
+		channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		adapter = new PartitionedMessageListenerAdapter(message -> {
+			String body = new String(message.getBody());
+			if (body.equals("a1")) {
+				await(slowMessage);
+			}
+			handled.add(body);
+		}, 2, PartitionedMessageListenerAdapter.headerKey(KEY_HEADER));
+	}
+
+	@After
+	public void tearDown() {
+		adapter.shutdown();
+	}
+
+	@Test
+	public void testConfigure() {
+		SimpleMessageListenerContainer container = adapter.configure(new SimpleMessageListenerContainer(
+				mock(ConnectionFactory.class)));
+		DirectFieldAccessor accessor = new DirectFieldAccessor(container);
+		assertThat(accessor.getPropertyValue("concurrentConsumers")).isEqualTo(1);
+		assertThat(container.getAcknowledgeMode()).isEqualTo(AcknowledgeMode.MANUAL);
+		assertThat(accessor.getPropertyValue("messageListener")).isSameAs(adapter);
+	}
+
+	@Test
+	public void testSameKeyInOrderAndAcksAfterOutOfOrderCompletion() throws Exception {
+		adapter.onMessage(message(1, "a", "a1"), channel);
+		adapter.onMessage(message(2, "b", "b1"), channel);
+		adapter.onMessage(message(3, "a", "a2"), channel);
+
+		waitUntilHandled(1);
+		assertThat(handled).containsExactly("b1");
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+		slowMessage.countDown();
+
+		awaitAck(3L, true);
+		assertThat(handled).containsExactly("b1", "a1", "a2");
+		verify(channel, never()).basicAck(2L, false);
+	}
+
+	@Test
+	public void testHeadCompletedAfterOneByOneAcks() throws Exception {
+		adapter.onMessage(message(1, "a", "a1"), channel);
+		// Half the prefetch of 2 lanes completes behind the slow message
+		for (int tag = 2; tag <= 17; tag++) {
+			adapter.onMessage(message(tag, "b", "b" + tag), channel);
+		}
+		waitUntilHandled(16);
+		awaitAck(17L, false);
+
+		slowMessage.countDown();
+
+		awaitAck(1L, true);
+		verify(channel, never()).basicAck(17L, true);
+	}
+
+	private Message message(long deliveryTag, String key, String body) {
+		MessageProperties properties = new MessageProperties();
+		properties.setDeliveryTag(deliveryTag);
+		properties.setHeader(KEY_HEADER, key);
+		return new Message(body.getBytes(), properties);
+	}
+
+	/**
+	 * Verifying with a timeout fails at once in this version of Mockito when the channel got other acks
+	 */
+	private void awaitAck(long deliveryTag, boolean multiple) throws Exception {
+		long deadline = System.currentTimeMillis() + 1000;
+		while (true) {
+			try {
+				verify(channel).basicAck(deliveryTag, multiple);
+				return;
+			} catch (AssertionError e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private void waitUntilHandled(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 1000;
+		while (handled.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
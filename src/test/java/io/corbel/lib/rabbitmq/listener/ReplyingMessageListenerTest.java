@@ -0,0 +1,37 @@
+package io.corbel.lib.rabbitmq.listener;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+public class ReplyingMessageListenerTest {
+
+	private static final String REPLY_TO = "amq.rabbitmq.reply-to.test";
+
+	@Test
+	public void testReplyIsSentToReplyToWithCorrelationId() throws Exception {
+		Channel channel = mock(Channel.class);
+		ReplyingMessageListener listener = new ReplyingMessageListener(request -> new Message("reply".getBytes(),
+				new MessageProperties()));
+		MessageProperties requestProperties = new MessageProperties();
+		requestProperties.setReplyTo(REPLY_TO);
+		requestProperties.setCorrelationId("42".getBytes());
+
+		listener.onMessage(new Message("request".getBytes(), requestProperties), channel);
+
+		ArgumentCaptor<BasicProperties> propertiesCaptor = ArgumentCaptor.forClass(BasicProperties.class);
+		verify(channel).basicPublish(eq(""), eq(REPLY_TO), eq(false), propertiesCaptor.capture(), eq("reply"
+				.getBytes()));
+		assertThat(propertiesCaptor.getValue().getCorrelationId()).isEqualTo("42");
+	}
+
+}
@@ -0,0 +1,37 @@
+package io.corbel.lib.rabbitmq.metrics;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class HistogramTimerTest {
+
+	@Test
+	public void testSmallValuesAreExact() {
+		for (long value = 0; value < 16; value++) {
+			assertThat(HistogramTimer.upperBound(HistogramTimer.bucket(value))).isEqualTo(value);
+		}
+	}
+
+	@Test
+	public void testRelativePrecision() {
+		for (long value = 16; value < 1_000_000_000_000L; value = value * 3 + 1) {
+			long upperBound = HistogramTimer.upperBound(HistogramTimer.bucket(value));
+			assertThat(upperBound).isGreaterThanOrEqualTo(value);
+			assertThat((double) (upperBound - value) / value).isLessThanOrEqualTo(0.125);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		HistogramTimer timer = new HistogramTimer();
+		for (long value = 1; value <= 1000; value++) {
+			timer.record(value * 1000);
+		}
+		assertThat(timer.getCount()).isEqualTo(1000);
+		assertThat(timer.getMeanNanos()).isEqualTo(500500.0);
+		assertThat(timer.getPercentileNanos(50)).isGreaterThanOrEqualTo(500_000).isLessThan(570_000);
+		assertThat(timer.getPercentileNanos(99)).isGreaterThanOrEqualTo(990_000).isLessThan(1_120_000);
+	}
+
+}
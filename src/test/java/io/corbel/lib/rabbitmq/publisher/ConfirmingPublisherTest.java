@@ -0,0 +1,100 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+public class ConfirmingPublisherTest {
+
+	private static final String EXCHANGE_TEST = "test.exchange";
+	private static final String ROUTING_KEY_TEST = "test.routing.key";
+
+	private ConnectionFactory connectionFactory;
+	private Channel channel;
+	private ConfirmingPublisher publisher;
+
+	@Before
+	public void setup() {
+		connectionFactory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		channel = mock(Channel.class);
+		when(connectionFactory.createConnection()).thenReturn(connection);
+		when(connection.createChannel(false)).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+
+		publisher = new ConfirmingPublisher(connectionFactory, null, 10, MetricsRegistry.NOOP, Runnable::run);
+	}
+
+	@Test
+	public void testConfirmFreesWindowBeforeCallbacksRun() throws Exception {
+		List<Runnable> callbacks = new ArrayList<>();
+		publisher = new ConfirmingPublisher(connectionFactory, null, 1, MetricsRegistry.NOOP, callbacks::add);
+		CompletableFuture<Void> first = publisher.convertAndSend(EXCHANGE_TEST, ROUTING_KEY_TEST, "one");
+
+		confirmListener().handleAck(1L, false);
+
+		assertThat(first.isDone()).isFalse();
+		// Would block if the window was only freed by the callbacks
+		CompletableFuture<Void> second = publisher.convertAndSend(EXCHANGE_TEST, ROUTING_KEY_TEST, "two");
+		callbacks.forEach(Runnable::run);
+		assertThat(first.isDone()).isTrue();
+		assertThat(second.isDone()).isFalse();
+	}
+
+	@Test
+	public void testMultipleAckCompletesRange() throws Exception {
+		CompletableFuture<Void> first = publisher.convertAndSend(EXCHANGE_TEST, ROUTING_KEY_TEST, "one");
+		CompletableFuture<Void> second = publisher.convertAndSend(EXCHANGE_TEST, ROUTING_KEY_TEST, "two");
+		CompletableFuture<Void> third = publisher.convertAndSend(EXCHANGE_TEST, ROUTING_KEY_TEST, "three");
+		assertThat(publisher.getInFlight()).isEqualTo(3);
+		verify(channel, times(3)).basicPublish(eq(EXCHANGE_TEST), eq(ROUTING_KEY_TEST), anyBoolean(),
+				any(BasicProperties.class), any(byte[].class));
+
+		confirmListener().handleAck(2L, true);
+
+		assertThat(first.isDone()).isTrue();
+		assertThat(second.isDone()).isTrue();
+		assertThat(third.isDone()).isFalse();
+		assertThat(publisher.getInFlight()).isEqualTo(1);
+		verify(channel).confirmSelect();
+	}
+
+	@Test
+	public void testNackCompletesExceptionally() throws Exception {
+		CompletableFuture<Void> future = publisher.convertAndSend(EXCHANGE_TEST, ROUTING_KEY_TEST, "one");
+
+		confirmListener().handleNack(1L, false);
+
+		assertThat(future.isCompletedExceptionally()).isTrue();
+		assertThat(publisher.getInFlight()).isEqualTo(0);
+	}
+
+	private ConfirmListener confirmListener() throws Exception {
+		ArgumentCaptor<ConfirmListener> listenerCaptor = ArgumentCaptor.forClass(ConfirmListener.class);
+		verify(channel).addConfirmListener(listenerCaptor.capture());
+		return listenerCaptor.getValue();
+	}
+
+}
@@ -0,0 +1,114 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import io.corbel.lib.rabbitmq.metrics.MetricsRegistry;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+public class DirectReplyToClientTest {
+
+	private static final String EXCHANGE_TEST = "test.exchange";
+	private static final String ROUTING_KEY_TEST = "test.routing.key";
+
+	private Channel channel;
+	private DirectReplyToClient client;
+
+	@Before
+	public void setup() {
+		ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		channel = mock(Channel.class);
+		when(connectionFactory.createConnection()).thenReturn(connection);
+		when(connection.createChannel(false)).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+
+		client = new DirectReplyToClient(connectionFactory, null, 60000, MetricsRegistry.NOOP, command -> new Thread(
+				command, "callback").start());
+	}
+
+	@After
+	public void tearDown() {
+		client.destroy();
+	}
+
+	@Test
+	public void testRepliesCompleteTheirRequest() throws Exception {
+		CompletableFuture<Message> first = client.sendAndReceive(EXCHANGE_TEST, ROUTING_KEY_TEST, request());
+		CompletableFuture<Message> second = client.sendAndReceive(EXCHANGE_TEST, ROUTING_KEY_TEST, request());
+		ArgumentCaptor<BasicProperties> propertiesCaptor = ArgumentCaptor.forClass(BasicProperties.class);
+		verify(channel, times(2)).basicPublish(eq(EXCHANGE_TEST), eq(ROUTING_KEY_TEST), eq(false),
+				propertiesCaptor.capture(), any(byte[].class));
+		BasicProperties secondProperties = propertiesCaptor.getAllValues().get(1);
+		assertThat(secondProperties.getReplyTo()).isEqualTo(DirectReplyToClient.DIRECT_REPLY_TO);
+		assertThat(client.getPending()).isEqualTo(2);
+
+		consumer().handleDelivery("consumer-tag", new Envelope(1L, false, "", "reply"), new BasicProperties.Builder()
+				.correlationId(secondProperties.getCorrelationId()).build(), "reply".getBytes());
+
+		assertThat(first.isDone()).isFalse();
+		assertThat(new String(second.get().getBody())).isEqualTo("reply");
+		assertThat(client.getPending()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRepliesAreCompletedOnTheCallbackExecutor() throws Exception {
+		CompletableFuture<String> callbackThread = client.sendAndReceive(EXCHANGE_TEST, ROUTING_KEY_TEST, request())
+				.thenApply(reply -> Thread.currentThread().getName());
+		ArgumentCaptor<BasicProperties> propertiesCaptor = ArgumentCaptor.forClass(BasicProperties.class);
+		verify(channel).basicPublish(eq(EXCHANGE_TEST), eq(ROUTING_KEY_TEST), eq(false), propertiesCaptor.capture(),
+				any(byte[].class));
+
+		consumer().handleDelivery("consumer-tag", new Envelope(1L, false, "", "reply"), new BasicProperties.Builder()
+				.correlationId(propertiesCaptor.getValue().getCorrelationId()).build(), "reply".getBytes());
+
+		assertThat(callbackThread.get(1, TimeUnit.SECONDS)).isEqualTo("callback");
+	}
+
+	@Test
+	public void testRequestFailsWhenItsTimeoutExpires() throws Exception {
+		CompletableFuture<Message> reply = client.sendAndReceive(EXCHANGE_TEST, ROUTING_KEY_TEST, request(), 10);
+
+		try {
+			reply.get(1, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).hasMessage("Reply timed out");
+		}
+
+		assertThat(reply.isCompletedExceptionally()).isTrue();
+		assertThat(client.getPending()).isEqualTo(0);
+	}
+
+	private Message request() {
+		return new Message("request".getBytes(), new MessageProperties());
+	}
+
+	private Consumer consumer() throws Exception {
+		ArgumentCaptor<Consumer> consumerCaptor = ArgumentCaptor.forClass(Consumer.class);
+		verify(channel).basicConsume(eq(DirectReplyToClient.DIRECT_REPLY_TO), eq(true), consumerCaptor.capture());
+		return consumerCaptor.getValue();
+	}
+
+}
@@ -0,0 +1,108 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.AmqpException;
+
+public class OutboxJournalTest {
+
+	private static final int SEGMENT_BYTES = 64;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private OutboxJournal journal;
+
+	@Before
+	public void setup() throws IOException {
+		directory = folder.newFolder().toPath();
+		journal = new OutboxJournal(directory, SEGMENT_BYTES, 1024, false);
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+	}
+
+	@Test
+	public void testReadAcrossSegments() {
+		for (int i = 0; i < 10; i++) {
+			journal.append(record(i));
+		}
+		assertThat(journal.getSegmentCount()).isGreaterThan(1);
+
+		List<byte[]> records = new ArrayList<>();
+		long position = journal.read(journal.getCommittedPosition(), 100, records);
+
+		assertThat(records).hasSize(10);
+		assertThat(new String(records.get(9))).isEqualTo(new String(record(9)));
+		assertThat(position).isEqualTo(journal.getWritePosition());
+	}
+
+	@Test
+	public void testCommitReclaimsSegments() {
+		for (int i = 0; i < 10; i++) {
+			journal.append(record(i));
+		}
+		int segments = journal.getSegmentCount();
+
+		List<byte[]> records = new ArrayList<>();
+		journal.commit(journal.read(journal.getCommittedPosition(), 4, records));
+
+		assertThat(journal.getSegmentCount()).isLessThan(segments);
+		assertThat(journal.getPendingBytes()).isGreaterThan(0);
+	}
+
+	@Test
+	public void testReopenResumesFromCommittedPosition() {
+		for (int i = 0; i < 10; i++) {
+			journal.append(record(i));
+		}
+		List<byte[]> records = new ArrayList<>();
+		journal.commit(journal.read(journal.getCommittedPosition(), 4, records));
+		journal.close();
+
+		journal = new OutboxJournal(directory, SEGMENT_BYTES, 1024, false);
+		records.clear();
+		long position = journal.read(journal.getCommittedPosition(), 100, records);
+		journal.append(record(10));
+		journal.read(position, 100, records);
+
+		assertThat(records).hasSize(7);
+		assertThat(new String(records.get(0))).isEqualTo(new String(record(4)));
+		assertThat(new String(records.get(6))).isEqualTo(new String(record(10)));
+	}
+
+	@Test(expected = AmqpException.class)
+	public void testFullJournal() {
+		OutboxJournal small = new OutboxJournal(directory.resolve("small"), SEGMENT_BYTES, 2 * SEGMENT_BYTES, false);
+		try {
+			for (int i = 0; i < 100; i++) {
+				small.append(record(i));
+			}
+		} finally {
+			small.close();
+		}
+	}
+
+	@Test(expected = AmqpException.class)
+	public void testDirectoryInUseFails() {
+		new OutboxJournal(directory, SEGMENT_BYTES, 1024, false);
+	}
+
+	private byte[] record(int i) {
+		return ("record-" + i + "-0123456789").getBytes();
+	}
+
+}
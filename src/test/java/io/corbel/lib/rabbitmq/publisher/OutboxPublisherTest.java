@@ -0,0 +1,151 @@
+package io.corbel.lib.rabbitmq.publisher;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.ConnectException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.AmqpConnectException;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+public class OutboxPublisherTest {
+
+	private static final String EXCHANGE_TEST = "test.exchange";
+	private static final String ROUTING_KEY_TEST = "test.routing.key";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Channel channel;
+	private Path directory;
+	private OutboxOptions options;
+	private OutboxPublisher publisher;
+
+	@Before
+	public void setup() throws Exception {
+		ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		channel = mock(Channel.class);
+		when(connectionFactory.createConnection()).thenThrow(new AmqpConnectException(new ConnectException()))
+				.thenReturn(connection);
+		when(connection.createChannel(false)).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+
+		options = new OutboxOptions();
+		options.setSegmentBytes(4096);
+		options.setMaxBytes(1024 * 1024);
+		options.setRetryMillis(10);
+		directory = folder.newFolder().toPath();
+		publisher = new OutboxPublisher(connectionFactory, null, directory, options);
+		publisher.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		publisher.destroy();
+	}
+
+	@Test
+	public void testSendIsDrainedOnceBrokerIsReachable() throws Exception {
+		MessageProperties properties = new MessageProperties();
+		properties.setHeader("test", "value");
+		properties.setHeader("count", 3L);
+		properties.setHeader("tags", Arrays.asList("a", Collections.singletonMap("b", true)));
+		properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+		properties.setMessageId("message-id");
+		properties.setCorrelationId("correlation-id".getBytes());
+		properties.setPriority(5);
+		properties.setTimestamp(new Date(1000));
+		publisher.send(EXCHANGE_TEST, ROUTING_KEY_TEST, new Message("body".getBytes(), properties));
+
+		ArgumentCaptor<BasicProperties> propertiesCaptor = ArgumentCaptor.forClass(BasicProperties.class);
+		ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+		verify(channel, timeout(1000)).basicPublish(eq(EXCHANGE_TEST), eq(ROUTING_KEY_TEST), eq(false),
+				propertiesCaptor.capture(), bodyCaptor.capture());
+		verify(channel, timeout(1000)).waitForConfirmsOrDie(anyLong());
+		verify(channel).confirmSelect();
+
+		assertThat(new String(bodyCaptor.getValue())).isEqualTo("body");
+		BasicProperties sent = propertiesCaptor.getValue();
+		assertThat(sent.getHeaders().get("test").toString()).isEqualTo("value");
+		assertThat(sent.getHeaders().get("count")).isEqualTo(3L);
+		assertThat(sent.getHeaders().get("tags").toString()).isEqualTo("[a, {b=true}]");
+		assertThat(sent.getContentType()).isEqualTo(MessageProperties.CONTENT_TYPE_JSON);
+		assertThat(sent.getMessageId()).isEqualTo("message-id");
+		assertThat(sent.getCorrelationId()).isEqualTo("correlation-id");
+		assertThat(sent.getPriority()).isEqualTo(5);
+		assertThat(sent.getTimestamp()).isEqualTo(new Date(1000));
+		assertThat(sent.getDeliveryMode()).isEqualTo(2);
+	}
+
+	@Test(expected = AmqpException.class)
+	public void testSendFailsOnceDestroyed() throws Exception {
+		publisher.destroy();
+
+		publisher.send(EXCHANGE_TEST, ROUTING_KEY_TEST, new Message("body".getBytes(), new MessageProperties()));
+	}
+
+	@Test
+	public void testJournalIsClosedOnceDrainerStops() throws Exception {
+		options.setConfirmTimeoutMillis(10);
+		CountDownLatch confirming = new CountDownLatch(1);
+		CountDownLatch confirmed = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			confirming.countDown();
+			confirmed.await();
+			return null;
+		}).when(channel).waitForConfirmsOrDie(anyLong());
+		publisher.send(EXCHANGE_TEST, ROUTING_KEY_TEST, new Message("body".getBytes(), new MessageProperties()));
+		assertThat(confirming.await(1, TimeUnit.SECONDS)).isTrue();
+
+		publisher.destroy();
+		try {
+			new OutboxJournal(directory, 4096, 1024 * 1024, false).close();
+			throw new AssertionError("The journal was closed while the drainer was sending");
+		} catch (AmqpException e) {
+			assertThat(e.getMessage()).contains("in use");
+		}
+
+		confirmed.countDown();
+		long deadline = System.currentTimeMillis() + 1000;
+		while (true) {
+			try {
+				OutboxJournal journal = new OutboxJournal(directory, 4096, 1024 * 1024, false);
+				assertThat(journal.getPendingBytes()).isEqualTo(0);
+				journal.close();
+				return;
+			} catch (AmqpException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package io.corbel.lib.rabbitmq.reactive;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import io.corbel.lib.rabbitmq.publisher.ConfirmingPublisher;
+
+public class PublishingSubscriberTest {
+
+	private static final String EXCHANGE_TEST = "test.exchange";
+	private static final String ROUTING_KEY_TEST = "test.routing.key";
+
+	@Test
+	public void testRequestsOneMorePerConfirm() {
+		ConfirmingPublisher publisher = mock(ConfirmingPublisher.class);
+		CompletableFuture<Void> confirm = new CompletableFuture<>();
+		when(publisher.send(eq(EXCHANGE_TEST), eq(ROUTING_KEY_TEST), any(Message.class))).thenReturn(confirm);
+		Subscription subscription = mock(Subscription.class);
+		PublishingSubscriber subscriber = new PublishingSubscriber(publisher, EXCHANGE_TEST,
+				message -> ROUTING_KEY_TEST, 10, Runnable::run);
+
+		subscriber.onSubscribe(subscription);
+		subscriber.onNext(new Message(new byte[] { 1 }, new MessageProperties()));
+		verify(subscription).request(10);
+
+		confirm.complete(null);
+		verify(subscription).request(1);
+
+		subscriber.onComplete();
+		assertThat(subscriber.getCompletion().isDone()).isTrue();
+	}
+
+	@Test
+	public void testConfirmsAreNotRequestedConcurrently() throws Exception {
+		ConfirmingPublisher publisher = mock(ConfirmingPublisher.class);
+		List<CompletableFuture<Void>> confirms = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			confirms.add(new CompletableFuture<>());
+		}
+		AtomicInteger sent = new AtomicInteger();
+		when(publisher.send(eq(EXCHANGE_TEST), eq(ROUTING_KEY_TEST), any(Message.class))).thenAnswer(
+				invocation -> confirms.get(sent.getAndIncrement()));
+		Subscription subscription = mock(Subscription.class);
+		AtomicInteger callers = new AtomicInteger();
+		AtomicBoolean overlapped = new AtomicBoolean();
+		AtomicLong requested = new AtomicLong();
+		doAnswer(invocation -> {
+			if (callers.incrementAndGet() > 1) {
+				overlapped.set(true);
+			}
+			Thread.sleep(1);
+			requested.addAndGet((Long) invocation.getArguments()[0]);
+			callers.decrementAndGet();
+			return null;
+		}).when(subscription).request(anyLong());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		PublishingSubscriber subscriber = new PublishingSubscriber(publisher, EXCHANGE_TEST,
+				message -> ROUTING_KEY_TEST, confirms.size(), executor);
+		subscriber.onSubscribe(subscription);
+		requested.set(0);
+		for (int i = 0; i < confirms.size(); i++) {
+			subscriber.onNext(new Message(new byte[] { 1 }, new MessageProperties()));
+		}
+
+		confirms.forEach(confirm -> confirm.complete(null));
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+
+		assertThat(overlapped.get()).isFalse();
+		assertThat(requested.get()).isEqualTo(confirms.size());
+	}
+
+}
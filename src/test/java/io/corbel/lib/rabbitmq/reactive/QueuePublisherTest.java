@@ -0,0 +1,148 @@
+package io.corbel.lib.rabbitmq.reactive;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class QueuePublisherTest {
+
+	private static final String QUEUE_TEST = "test.queue";
+
+	private ConnectionFactory connectionFactory;
+	private Channel channel;
+	private List<Message> received;
+	private Throwable failure;
+	private Subscription subscription;
+
+	@Before
+	public void setup() throws Exception {
+		connectionFactory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		channel = mock(Channel.class);
+		when(connectionFactory.createConnection()).thenReturn(connection);
+		when(connection.createChannel(false)).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+		when(channel.basicConsume(eq(QUEUE_TEST), eq(false), any(Consumer.class))).thenReturn("consumer-tag");
+		received = new ArrayList<>();
+	}
+
+	@Test
+	public void testDemandBoundsEmissionAndPrefetch() throws Exception {
+		subscribe(new QueuePublisher(connectionFactory, QUEUE_TEST, AcknowledgeMode.AUTO, 8));
+
+		subscription.request(2);
+		Consumer consumer = consumer();
+		for (long deliveryTag = 1; deliveryTag <= 5; deliveryTag++) {
+			deliver(consumer, deliveryTag);
+		}
+
+		assertThat(received).hasSize(2);
+		verify(channel).basicQos(2);
+		verify(channel).basicAck(2L, false);
+		verify(channel, never()).basicAck(3L, false);
+
+		subscription.request(100);
+
+		assertThat(received).hasSize(5);
+		verify(channel).basicQos(8);
+		verify(channel).basicAck(5L, false);
+	}
+
+	@Test
+	public void testCancelRequeuesBufferedAndWaitsForManualAcks() throws Exception {
+		QueuePublisher publisher = new QueuePublisher(connectionFactory, QUEUE_TEST, AcknowledgeMode.MANUAL, 8);
+		subscribe(publisher);
+
+		subscription.request(1);
+		Consumer consumer = consumer();
+		deliver(consumer, 1);
+		deliver(consumer, 2);
+		subscription.cancel();
+
+		verify(channel).basicCancel("consumer-tag");
+		verify(channel).basicReject(2L, true);
+		verify(channel, never()).close();
+		assertThat(publisher.getSubscriptionCount()).isEqualTo(1);
+
+		((AcknowledgeableMessage) received.get(0)).ack();
+
+		verify(channel).basicAck(1L, false);
+		verify(channel).close();
+		assertThat(publisher.getSubscriptionCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testChannelFailureIsSignalledWithoutDemand() throws Exception {
+		subscribe(new QueuePublisher(connectionFactory, QUEUE_TEST, AcknowledgeMode.AUTO, 8));
+
+		subscription.request(1);
+		Consumer consumer = consumer();
+		deliver(consumer, 1);
+		deliver(consumer, 2);
+		deliver(consumer, 3);
+		when(channel.isOpen()).thenReturn(false);
+		consumer.handleShutdownSignal("consumer-tag", new ShutdownSignalException(false, false, null, channel));
+
+		assertThat(received).hasSize(1);
+		assertThat(failure).isNotNull();
+		verify(channel, never()).basicReject(2L, true);
+	}
+
+	private void subscribe(QueuePublisher publisher) {
+		publisher.subscribe(new Subscriber<Message>() {
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription = s;
+			}
+
+			@Override
+			public void onNext(Message message) {
+				received.add(message);
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				failure = error;
+			}
+
+			@Override
+			public void onComplete() {}
+		});
+	}
+
+	private Consumer consumer() throws Exception {
+		ArgumentCaptor<Consumer> consumerCaptor = ArgumentCaptor.forClass(Consumer.class);
+		verify(channel).basicConsume(eq(QUEUE_TEST), eq(false), consumerCaptor.capture());
+		return consumerCaptor.getValue();
+	}
+
+	private void deliver(Consumer consumer, long deliveryTag) throws Exception {
+		consumer.handleDelivery("consumer-tag", new Envelope(deliveryTag, false, "", QUEUE_TEST),
+				new BasicProperties(), new byte[] { 1 });
+	}
+
+}
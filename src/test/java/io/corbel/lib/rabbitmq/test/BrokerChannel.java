@@ -0,0 +1,384 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Method;
+
+import io.corbel.lib.rabbitmq.test.BrokerExchange.Binding;
+
+/**
+ * Channel of a {@link BrokerConnection}, handling the methods of the exchange, queue, basic and confirm classes.
+ * Everything runs holding the lock of the {@link EmbeddedBroker}.
+ */
+class BrokerChannel {
+
+	final BrokerConnection connection;
+	final int number;
+
+	private final EmbeddedBroker broker;
+	private final Map<Long, Unacked> unacked = new LinkedHashMap<>();
+	private final Map<String, BrokerConsumer> consumers = new LinkedHashMap<>();
+	private int prefetch;
+	private int globalPrefetch;
+	private boolean confirm;
+	private long publishSeqNo;
+	private long deliveryTag;
+	private boolean closing;
+	private String replyToConsumerTag;
+	private String replyToAddress;
+	private String lastQueue;
+
+	BrokerChannel(EmbeddedBroker broker, BrokerConnection connection, int number) {
+		this.broker = broker;
+		this.connection = connection;
+		this.number = number;
+	}
+
+	void handle(Method method, BasicProperties properties, byte[] body) {
+		if (method instanceof AMQP.Basic.Publish) {
+			publish((AMQP.Basic.Publish) method, properties, body);
+		} else if (method instanceof AMQP.Basic.Ack) {
+			AMQP.Basic.Ack ack = (AMQP.Basic.Ack) method;
+			settle(ack.getDeliveryTag(), ack.getMultiple(), false, false);
+		} else if (method instanceof AMQP.Basic.Nack) {
+			AMQP.Basic.Nack nack = (AMQP.Basic.Nack) method;
+			settle(nack.getDeliveryTag(), nack.getMultiple(), true, nack.getRequeue());
+		} else if (method instanceof AMQP.Basic.Reject) {
+			AMQP.Basic.Reject reject = (AMQP.Basic.Reject) method;
+			settle(reject.getDeliveryTag(), false, true, reject.getRequeue());
+		} else if (method instanceof AMQP.Basic.Consume) {
+			consume((AMQP.Basic.Consume) method);
+		} else if (method instanceof AMQP.Basic.Cancel) {
+			cancel((AMQP.Basic.Cancel) method);
+		} else if (method instanceof AMQP.Basic.Get) {
+			get((AMQP.Basic.Get) method);
+		} else if (method instanceof AMQP.Basic.Qos) {
+			qos((AMQP.Basic.Qos) method);
+		} else if (method instanceof AMQP.Basic.Recover) {
+			settle(0, true, true, true);
+			send(new AMQImpl.Basic.RecoverOk());
+		} else if (method instanceof AMQP.Queue.Declare) {
+			declareQueue((AMQP.Queue.Declare) method);
+		} else if (method instanceof AMQP.Queue.Bind) {
+			AMQP.Queue.Bind bind = (AMQP.Queue.Bind) method;
+			broker.bind(bind.getExchange(), new Binding(queueName(bind.getQueue()), true, bind.getRoutingKey(), bind
+					.getArguments()));
+			reply(bind.getNowait(), new AMQImpl.Queue.BindOk());
+		} else if (method instanceof AMQP.Queue.Unbind) {
+			AMQP.Queue.Unbind unbind = (AMQP.Queue.Unbind) method;
+			broker.unbind(unbind.getExchange(), new Binding(queueName(unbind.getQueue()), true, unbind
+					.getRoutingKey(), unbind.getArguments()));
+			send(new AMQImpl.Queue.UnbindOk());
+		} else if (method instanceof AMQP.Queue.Purge) {
+			AMQP.Queue.Purge purge = (AMQP.Queue.Purge) method;
+			int count = broker.getQueue(connection, queueName(purge.getQueue())).purge();
+			reply(purge.getNowait(), new AMQImpl.Queue.PurgeOk(count));
+		} else if (method instanceof AMQP.Queue.Delete) {
+			AMQP.Queue.Delete delete = (AMQP.Queue.Delete) method;
+			int count = broker.deleteQueue(connection, queueName(delete.getQueue()), delete.getIfUnused(), delete
+					.getIfEmpty());
+			reply(delete.getNowait(), new AMQImpl.Queue.DeleteOk(count));
+		} else if (method instanceof AMQP.Exchange.Declare) {
+			AMQP.Exchange.Declare declare = (AMQP.Exchange.Declare) method;
+			broker.declareExchange(declare.getExchange(), declare.getType(), declare.getPassive(), declare
+					.getArguments());
+			reply(declare.getNowait(), new AMQImpl.Exchange.DeclareOk());
+		} else if (method instanceof AMQP.Exchange.Delete) {
+			AMQP.Exchange.Delete delete = (AMQP.Exchange.Delete) method;
+			broker.deleteExchange(delete.getExchange(), delete.getIfUnused());
+			reply(delete.getNowait(), new AMQImpl.Exchange.DeleteOk());
+		} else if (method instanceof AMQP.Exchange.Bind) {
+			AMQP.Exchange.Bind bind = (AMQP.Exchange.Bind) method;
+			broker.bind(bind.getSource(), new Binding(bind.getDestination(), false, bind.getRoutingKey(), bind
+					.getArguments()));
+			reply(bind.getNowait(), new AMQImpl.Exchange.BindOk());
+		} else if (method instanceof AMQP.Exchange.Unbind) {
+			AMQP.Exchange.Unbind unbind = (AMQP.Exchange.Unbind) method;
+			broker.unbind(unbind.getSource(), new Binding(unbind.getDestination(), false, unbind.getRoutingKey(),
+					unbind.getArguments()));
+			reply(unbind.getNowait(), new AMQImpl.Exchange.UnbindOk());
+		} else if (method instanceof AMQP.Confirm.Select) {
+			confirm = true;
+			reply(((AMQP.Confirm.Select) method).getNowait(), new AMQImpl.Confirm.SelectOk());
+		} else if (method instanceof AMQP.Channel.Flow) {
+			send(new AMQImpl.Channel.FlowOk(((AMQP.Channel.Flow) method).getActive()));
+		} else if (method.protocolClassId() == AMQImpl.Tx.INDEX) {
+			throw new BrokerException(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - transactions are not supported");
+		} else {
+			throw new BrokerException(AMQP.COMMAND_INVALID, "COMMAND_INVALID - unexpected method "
+					+ method.protocolMethodName(), true);
+		}
+	}
+
+	/**
+	 * Stops the consumers and requeues the unacknowledged messages, when the channel or its connection close
+	 */
+	void close() {
+		closing = true;
+		for (BrokerConsumer consumer : consumers.values()) {
+			removeConsumer(consumer);
+		}
+		consumers.clear();
+		if (replyToAddress != null) {
+			broker.unregisterReplyTo(replyToAddress);
+			replyToAddress = null;
+			replyToConsumerTag = null;
+		}
+		settle(0, true, true, true);
+	}
+
+	boolean isClosing() {
+		return closing;
+	}
+
+	boolean hasCredit() {
+		return globalPrefetch == 0 || unacked.size() < globalPrefetch;
+	}
+
+	void deliver(BrokerConsumer consumer, BrokerQueue queue, BrokerQueue.Entry entry) {
+		long tag = ++deliveryTag;
+		if (!consumer.noAck) {
+			unacked.put(tag, new Unacked(queue, entry, consumer));
+			consumer.unacked++;
+		}
+		BrokerMessage message = entry.message;
+		connection.send(number, new AMQImpl.Basic.Deliver(consumer.tag, tag, entry.redelivered, message.exchange,
+				message.routingKey), message.properties, message.body);
+	}
+
+	/**
+	 * Delivers a reply published to the direct reply-to address of the channel
+	 */
+	void deliverReply(String address, BrokerMessage message) {
+		if (replyToConsumerTag != null) {
+			connection.send(number, new AMQImpl.Basic.Deliver(replyToConsumerTag, ++deliveryTag, false,
+					message.exchange, address), message.properties, message.body);
+		}
+	}
+
+	/**
+	 * Cancels a consumer because its queue was deleted, notifying the client
+	 */
+	void cancelConsumer(BrokerConsumer consumer) {
+		if (consumers.remove(consumer.tag) != null) {
+			send(new AMQImpl.Basic.Cancel(consumer.tag, true));
+		}
+	}
+
+	private void publish(AMQP.Basic.Publish publish, BasicProperties properties, byte[] body) {
+		long seqNo = confirm ? ++publishSeqNo : 0;
+		if (EmbeddedBroker.DIRECT_REPLY_TO.equals(properties.getReplyTo())) {
+			if (replyToAddress == null) {
+				throw new BrokerException(AMQP.PRECONDITION_FAILED,
+						"PRECONDITION_FAILED - fast reply consumer does not exist");
+			}
+			properties = properties.builder().replyTo(replyToAddress).build();
+		}
+		String exchange = publish.getExchange();
+		String routingKey = publish.getRoutingKey();
+		BrokerMessage message = new BrokerMessage(exchange, routingKey, properties, body);
+		boolean routed;
+		boolean accepted = true;
+		if (exchange.isEmpty() && routingKey.startsWith(EmbeddedBroker.DIRECT_REPLY_TO + ".")) {
+			routed = broker.reply(routingKey, message);
+		} else {
+			List<BrokerQueue> queues = broker.route(exchange, routingKey, properties.getHeaders());
+			routed = !queues.isEmpty();
+			long now = System.currentTimeMillis();
+			for (BrokerQueue queue : queues) {
+				accepted &= queue.enqueue(message, now);
+			}
+		}
+		if (!routed && publish.getMandatory()) {
+			connection.send(number, new AMQImpl.Basic.Return(AMQP.NO_ROUTE, "NO_ROUTE", exchange, routingKey),
+					properties, body);
+		}
+		if (confirm) {
+			send(accepted ? new AMQImpl.Basic.Ack(seqNo, false) : new AMQImpl.Basic.Nack(seqNo, false, false));
+		}
+	}
+
+	private void consume(AMQP.Basic.Consume consume) {
+		String tag = consume.getConsumerTag().isEmpty() ? broker.generateName("amq.ctag-") : consume
+				.getConsumerTag();
+		if (consumers.containsKey(tag) || tag.equals(replyToConsumerTag)) {
+			throw new BrokerException(AMQP.NOT_ALLOWED, "NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'",
+					true);
+		}
+		if (EmbeddedBroker.DIRECT_REPLY_TO.equals(consume.getQueue())) {
+			if (!consume.getNoAck()) {
+				throw new BrokerException(AMQP.PRECONDITION_FAILED,
+						"PRECONDITION_FAILED - reply consumer cannot acknowledge");
+			}
+			replyToConsumerTag = tag;
+			replyToAddress = broker.registerReplyTo(this);
+			reply(consume.getNowait(), new AMQImpl.Basic.ConsumeOk(tag));
+			return;
+		}
+		BrokerQueue queue = broker.getQueue(connection, queueName(consume.getQueue()));
+		if (consume.getExclusive() ? queue.getConsumerCount() > 0 : queue.hasExclusiveConsumer()) {
+			throw new BrokerException(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - queue '" + queue.name
+					+ "' in exclusive use");
+		}
+		BrokerConsumer consumer = new BrokerConsumer(tag, queue, this, consume.getNoAck(), consume.getExclusive(),
+				prefetch);
+		consumers.put(tag, consumer);
+		queue.addConsumer(consumer);
+		// The client must know the consumer before its first delivery
+		reply(consume.getNowait(), new AMQImpl.Basic.ConsumeOk(tag));
+		queue.dispatch(System.currentTimeMillis());
+	}
+
+	private void cancel(AMQP.Basic.Cancel cancel) {
+		String tag = cancel.getConsumerTag();
+		if (tag.equals(replyToConsumerTag)) {
+			broker.unregisterReplyTo(replyToAddress);
+			replyToAddress = null;
+			replyToConsumerTag = null;
+		} else {
+			BrokerConsumer consumer = consumers.remove(tag);
+			if (consumer != null) {
+				removeConsumer(consumer);
+			}
+		}
+		reply(cancel.getNowait(), new AMQImpl.Basic.CancelOk(tag));
+	}
+
+	private void get(AMQP.Basic.Get get) {
+		BrokerQueue queue = broker.getQueue(connection, queueName(get.getQueue()));
+		BrokerQueue.Entry entry = queue.poll(System.currentTimeMillis());
+		if (entry == null) {
+			send(new AMQImpl.Basic.GetEmpty(""));
+			return;
+		}
+		long tag = ++deliveryTag;
+		if (!get.getNoAck()) {
+			unacked.put(tag, new Unacked(queue, entry, null));
+		}
+		BrokerMessage message = entry.message;
+		connection.send(number, new AMQImpl.Basic.GetOk(tag, entry.redelivered, message.exchange,
+				message.routingKey, queue.getMessageCount()), message.properties, message.body);
+	}
+
+	private void qos(AMQP.Basic.Qos qos) {
+		if (qos.getGlobal()) {
+			globalPrefetch = qos.getPrefetchCount();
+		} else {
+			prefetch = qos.getPrefetchCount();
+		}
+		send(new AMQImpl.Basic.QosOk());
+		dispatch(Collections.emptySet());
+	}
+
+	private void declareQueue(AMQP.Queue.Declare declare) {
+		String name = declare.getQueue().isEmpty() ? broker.generateName("amq.gen-") : declare.getQueue();
+		BrokerQueue queue = declare.getPassive() ? broker.getQueue(connection, name) : broker.declareQueue(
+				connection, name, declare.getDurable(), declare.getExclusive(), declare.getAutoDelete(), declare
+						.getArguments());
+		lastQueue = name;
+		reply(declare.getNowait(), new AMQImpl.Queue.DeclareOk(name, queue.getMessageCount(), queue
+				.getConsumerCount()));
+	}
+
+	/**
+	 * Acknowledges or rejects the unacknowledged message with the tag, or all of them up to the tag when multiple,
+	 * where the tag 0 means all the messages
+	 */
+	private void settle(long tag, boolean multiple, boolean reject, boolean requeue) {
+		List<Unacked> settled = new ArrayList<>();
+		if (multiple) {
+			Iterator<Map.Entry<Long, Unacked>> iterator = unacked.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Long, Unacked> next = iterator.next();
+				if (tag != 0 && next.getKey() > tag) {
+					break;
+				}
+				settled.add(next.getValue());
+				iterator.remove();
+			}
+		} else {
+			Unacked single = unacked.remove(tag);
+			if (single == null) {
+				throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag "
+						+ tag);
+			}
+			settled.add(single);
+		}
+		Set<BrokerQueue> queues = new LinkedHashSet<>();
+		for (Unacked message : settled) {
+			if (message.consumer != null) {
+				message.consumer.unacked--;
+			}
+			queues.add(message.queue);
+		}
+		if (reject && requeue) {
+			// In reverse order, so they are back at the head of their queues in their original order
+			for (int i = settled.size() - 1; i >= 0; i--) {
+				settled.get(i).queue.requeue(settled.get(i).entry);
+			}
+		} else if (reject) {
+			settled.forEach(message -> broker.deadLetter(message.queue, message.entry, "rejected"));
+		}
+		dispatch(queues);
+	}
+
+	/**
+	 * Dispatches the given queues and the ones consumed by the channel, whose consumers may have got credit
+	 */
+	private void dispatch(Set<BrokerQueue> queues) {
+		Set<BrokerQueue> dispatched = new LinkedHashSet<>(queues);
+		consumers.values().forEach(consumer -> dispatched.add(consumer.queue));
+		long now = System.currentTimeMillis();
+		dispatched.forEach(queue -> queue.dispatch(now));
+	}
+
+	private void removeConsumer(BrokerConsumer consumer) {
+		if (consumer.queue.removeConsumer(consumer)) {
+			broker.deleteQueue(consumer.queue);
+		}
+	}
+
+	private String queueName(String name) {
+		if (!name.isEmpty()) {
+			return name;
+		}
+		if (lastQueue == null) {
+			throw new BrokerException(AMQP.NOT_FOUND, "NOT_FOUND - no previously declared queue");
+		}
+		return lastQueue;
+	}
+
+	private void reply(boolean nowait, Method method) {
+		if (!nowait) {
+			send(method);
+		}
+	}
+
+	private void send(Method method) {
+		connection.send(number, method);
+	}
+
+	private static class Unacked {
+
+		private final BrokerQueue queue;
+		private final BrokerQueue.Entry entry;
+		private final BrokerConsumer consumer;
+
+		Unacked(BrokerQueue queue, BrokerQueue.Entry entry, BrokerConsumer consumer) {
+			this.queue = queue;
+			this.entry = entry;
+			this.consumer = consumer;
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.impl.AMQCommand;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Frame;
+import com.rabbitmq.client.impl.LongStringHelper;
+import com.rabbitmq.client.impl.Method;
+
+/**
+ * Client connection of the {@link EmbeddedBroker}, with a thread reading its frames and another one writing them.
+ *
+ * Commands are assembled from their frames with the codec of the RabbitMQ client and handled holding the broker lock,
+ * while everything sent to the client, including deliveries caused by other connections, goes through a queue to the
+ * writer thread, which flushes once the queue is empty. A slow client therefore never blocks the broker.
+ */
+class BrokerConnection {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BrokerConnection.class);
+
+	private static final byte[] PROTOCOL_HEADER = { 'A', 'M', 'Q', 'P', 0, 0, 9, 1 };
+	private static final int CHANNEL_MAX = 2047;
+	private static final int FRAME_MAX = 128 * 1024;
+	private static final Outbound END = new Outbound(0, null, null, null);
+
+	private final EmbeddedBroker broker;
+	private final Socket socket;
+	private final BlockingQueue<Outbound> outbound = new LinkedBlockingQueue<>();
+	private final Map<Integer, BrokerChannel> channels = new HashMap<>();
+	private final Map<Integer, AMQCommand> assembling = new HashMap<>();
+	private volatile int frameMax = FRAME_MAX;
+	private volatile boolean closed;
+	private boolean closing;
+	private boolean disconnected;
+
+	BrokerConnection(EmbeddedBroker broker, Socket socket) {
+		this.broker = broker;
+		this.socket = socket;
+	}
+
+	void start(int id) {
+		Thread reader = new Thread(this::read, "embedded-broker-reader-" + id);
+		Thread writer = new Thread(this::write, "embedded-broker-writer-" + id);
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		writer.start();
+		reader.start();
+	}
+
+	void send(int channel, Method method) {
+		send(channel, method, null, null);
+	}
+
+	void send(int channel, Method method, BasicProperties properties, byte[] body) {
+		if (!closed) {
+			outbound.add(new Outbound(channel, method, properties, body));
+		}
+	}
+
+	/**
+	 * Closes the connection from the broker side, as when the broker stops
+	 */
+	void forceClose() {
+		synchronized (broker) {
+			send(0, new AMQImpl.Connection.Close(AMQP.CONNECTION_FORCED, "CONNECTION_FORCED - broker shutdown", 0, 0));
+		}
+		close();
+	}
+
+	private void read() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] header = new byte[PROTOCOL_HEADER.length];
+			in.readFully(header);
+			if (!Arrays.equals(header, PROTOCOL_HEADER)) {
+				// The protocol header the broker supports, before closing the socket
+				socket.getOutputStream().write(PROTOCOL_HEADER);
+				return;
+			}
+			send(0, new AMQImpl.Connection.Start(0, 9, serverProperties(), LongStringHelper.asLongString("PLAIN"),
+					LongStringHelper.asLongString("en_US")));
+			while (!closed) {
+				Frame frame = Frame.readFrom(in);
+				if (frame == null || frame.type == AMQP.FRAME_HEARTBEAT) {
+					continue;
+				}
+				AMQCommand command = assembling.computeIfAbsent(frame.channel, channel -> new AMQCommand());
+				if (command.handleFrame(frame)) {
+					assembling.remove(frame.channel);
+					handle(frame.channel, command);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (!closed) {
+				LOG.debug("Embedded broker connection failed", e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void handle(int channelNumber, AMQCommand command) {
+		Method method = command.getMethod();
+		synchronized (broker) {
+			try {
+				if (channelNumber == 0) {
+					handleConnection(method);
+				} else if (!closing) {
+					handleChannel(channelNumber, method, command);
+				}
+			} catch (BrokerException e) {
+				if (e.isConnectionError()) {
+					closing = true;
+					send(0, new AMQImpl.Connection.Close(e.getReplyCode(), e.getMessage(), method.protocolClassId(),
+							method.protocolMethodId()));
+				} else {
+					BrokerChannel channel = channels.get(channelNumber);
+					channel.close();
+					send(channelNumber, new AMQImpl.Channel.Close(e.getReplyCode(), e.getMessage(), method
+							.protocolClassId(), method.protocolMethodId()));
+				}
+			}
+		}
+	}
+
+	private void handleConnection(Method method) {
+		if (method instanceof AMQP.Connection.StartOk) {
+			authenticate((AMQP.Connection.StartOk) method);
+			send(0, new AMQImpl.Connection.Tune(CHANNEL_MAX, FRAME_MAX, 0));
+		} else if (method instanceof AMQP.Connection.TuneOk) {
+			int requested = ((AMQP.Connection.TuneOk) method).getFrameMax();
+			frameMax = requested == 0 ? FRAME_MAX : Math.min(requested, FRAME_MAX);
+		} else if (method instanceof AMQP.Connection.Open) {
+			send(0, new AMQImpl.Connection.OpenOk(""));
+		} else if (method instanceof AMQP.Connection.Close) {
+			send(0, new AMQImpl.Connection.CloseOk());
+			closed = true;
+		} else if (method instanceof AMQP.Connection.CloseOk) {
+			closed = true;
+		} else if (!closing) {
+			throw new BrokerException(AMQP.COMMAND_INVALID, "COMMAND_INVALID - unexpected method "
+					+ method.protocolMethodName(), true);
+		}
+	}
+
+	private void handleChannel(int number, Method method, AMQCommand command) {
+		BrokerChannel channel = channels.get(number);
+		if (method instanceof AMQP.Channel.Open) {
+			if (channel != null) {
+				throw new BrokerException(AMQP.CHANNEL_ERROR, "CHANNEL_ERROR - second 'channel.open' seen", true);
+			}
+			channels.put(number, new BrokerChannel(broker, this, number));
+			send(number, new AMQImpl.Channel.OpenOk(LongStringHelper.asLongString("")));
+		} else if (channel == null) {
+			throw new BrokerException(AMQP.CHANNEL_ERROR, "CHANNEL_ERROR - expected 'channel.open'", true);
+		} else if (method instanceof AMQP.Channel.Close) {
+			channel.close();
+			channels.remove(number);
+			send(number, new AMQImpl.Channel.CloseOk());
+		} else if (method instanceof AMQP.Channel.CloseOk) {
+			// The channel was already closed when the broker sent channel.close
+			channels.remove(number);
+		} else if (!channel.isClosing()) {
+			channel.handle(method, (BasicProperties) command.getContentHeader(), command.getContentBody());
+		}
+	}
+
+	private void authenticate(AMQP.Connection.StartOk startOk) {
+		if ("PLAIN".equals(startOk.getMechanism())) {
+			// PLAIN response: authorization identity, username and password separated by NUL
+			String[] response = new String(startOk.getResponse().getBytes(), StandardCharsets.UTF_8).split("\0", -1);
+			if (response.length == 3 && broker.getUsername().equals(response[1]) && broker.getPassword().equals(
+					response[2])) {
+				return;
+			}
+		}
+		throw new BrokerException(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - Login was refused using authentication "
+				+ "mechanism " + startOk.getMechanism(), true);
+	}
+
+	private void close() {
+		synchronized (broker) {
+			if (disconnected) {
+				return;
+			}
+			disconnected = true;
+			closed = true;
+			channels.values().forEach(BrokerChannel::close);
+			channels.clear();
+			broker.disconnected(this);
+		}
+		outbound.add(END);
+	}
+
+	private void write() {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+				64 * 1024))) {
+			while (true) {
+				Outbound next = outbound.take();
+				do {
+					if (next == END) {
+						out.flush();
+						return;
+					}
+					next.writeTo(out, frameMax);
+				} while ((next = outbound.poll()) != null);
+				out.flush();
+			}
+		} catch (IOException | InterruptedException e) {
+			LOG.debug("Embedded broker connection closed while writing", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOG.debug("Unable to close embedded broker socket", e);
+			}
+		}
+	}
+
+	private static Map<String, Object> serverProperties() {
+		Map<String, Object> capabilities = new HashMap<>();
+		for (String capability : Arrays.asList("publisher_confirms", "exchange_exchange_bindings", "basic.nack",
+				"consumer_cancel_notify", "per_consumer_qos", "direct_reply_to")) {
+			capabilities.put(capability, true);
+		}
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("product", longString("EmbeddedBroker"));
+		properties.put("platform", longString("Java"));
+		properties.put("capabilities", capabilities);
+		return properties;
+	}
+
+	private static LongString longString(String value) {
+		return LongStringHelper.asLongString(value);
+	}
+
+	private static class Outbound {
+
+		private final int channel;
+		private final Method method;
+		private final BasicProperties properties;
+		private final byte[] body;
+
+		Outbound(int channel, Method method, BasicProperties properties, byte[] body) {
+			this.channel = channel;
+			this.method = method;
+			this.properties = properties;
+			this.body = body;
+		}
+
+		void writeTo(DataOutputStream out, int frameMax) throws IOException {
+			method.toFrame(channel).writeTo(out);
+			if (properties != null) {
+				properties.toFrame(channel, body.length).writeTo(out);
+				int fragment = frameMax - AMQCommand.EMPTY_FRAME_SIZE;
+				for (int offset = 0; offset < body.length; offset += fragment) {
+					Frame.fromBodyFragment(channel, body, offset, Math.min(fragment, body.length - offset)).writeTo(
+							out);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package io.corbel.lib.rabbitmq.test;
+
+/**
+ * Consumer of a {@link BrokerQueue}, with its own prefetch as RabbitMQ applies it to consumers by default
+ */
+class BrokerConsumer {
+
+	final String tag;
+	final BrokerQueue queue;
+	final BrokerChannel channel;
+	final boolean noAck;
+	final boolean exclusive;
+	final int prefetch;
+	int unacked;
+
+	BrokerConsumer(String tag, BrokerQueue queue, BrokerChannel channel, boolean noAck, boolean exclusive,
+			int prefetch) {
+		this.tag = tag;
+		this.queue = queue;
+		this.channel = channel;
+		this.noAck = noAck;
+		this.exclusive = exclusive;
+		this.prefetch = prefetch;
+	}
+
+	boolean hasCredit() {
+		return noAck || ((prefetch == 0 || unacked < prefetch) && channel.hasCredit());
+	}
+
+}
@@ -0,0 +1,31 @@
+package io.corbel.lib.rabbitmq.test;
+
+/**
+ * Error closing the channel, or the whole connection, of the method that caused it, with an AMQP reply code
+ */
+class BrokerException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int replyCode;
+	private final boolean connectionError;
+
+	BrokerException(int replyCode, String replyText) {
+		this(replyCode, replyText, false);
+	}
+
+	BrokerException(int replyCode, String replyText, boolean connectionError) {
+		super(replyText);
+		this.replyCode = replyCode;
+		this.connectionError = connectionError;
+	}
+
+	int getReplyCode() {
+		return replyCode;
+	}
+
+	boolean isConnectionError() {
+		return connectionError;
+	}
+
+}
@@ -0,0 +1,183 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Exchange of the {@link EmbeddedBroker} with its bindings, which matches them as the RabbitMQ exchange type does
+ */
+class BrokerExchange {
+
+	static final Set<String> TYPES = new HashSet<>(Arrays.asList("direct", "fanout", "topic", "headers",
+			"x-consistent-hash"));
+
+	final String name;
+	final String type;
+	final Map<String, Object> arguments;
+	final List<Binding> bindings = new ArrayList<>();
+
+	BrokerExchange(String name, String type, Map<String, Object> arguments) {
+		this.name = name;
+		this.type = type;
+		this.arguments = arguments != null ? arguments : Collections.emptyMap();
+	}
+
+	void bind(Binding binding) {
+		if (!bindings.contains(binding)) {
+			bindings.add(binding);
+		}
+	}
+
+	void unbind(Binding binding) {
+		bindings.remove(binding);
+	}
+
+	void removeDestination(String destination, boolean queue) {
+		bindings.removeIf(binding -> binding.queue == queue && binding.destination.equals(destination));
+	}
+
+	String getAlternateExchange() {
+		Object alternateExchange = arguments.get("alternate-exchange");
+		return alternateExchange != null ? alternateExchange.toString() : null;
+	}
+
+	List<Binding> match(String routingKey, Map<String, Object> headers) {
+		List<Binding> matches = new ArrayList<>();
+		switch (type) {
+			case "fanout":
+				matches.addAll(bindings);
+				break;
+			case "topic":
+				String[] words = routingKey.split("\\.", -1);
+				for (Binding binding : bindings) {
+					if (topicMatches(binding.routingKey.split("\\.", -1), 0, words, 0)) {
+						matches.add(binding);
+					}
+				}
+				break;
+			case "headers":
+				for (Binding binding : bindings) {
+					if (headersMatch(binding.arguments, headers)) {
+						matches.add(binding);
+					}
+				}
+				break;
+			case "x-consistent-hash":
+				Binding selected = consistentHash(routingKey);
+				if (selected != null) {
+					matches.add(selected);
+				}
+				break;
+			default:
+				for (Binding binding : bindings) {
+					if (binding.routingKey.equals(routingKey)) {
+						matches.add(binding);
+					}
+				}
+		}
+		return matches;
+	}
+
+	private static boolean topicMatches(String[] pattern, int p, String[] words, int w) {
+		if (p == pattern.length) {
+			return w == words.length;
+		}
+		if (pattern[p].equals("#")) {
+			for (int i = w; i <= words.length; i++) {
+				if (topicMatches(pattern, p + 1, words, i)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return w < words.length && (pattern[p].equals("*") || pattern[p].equals(words[w]))
+				&& topicMatches(pattern, p + 1, words, w + 1);
+	}
+
+	private static boolean headersMatch(Map<String, Object> arguments, Map<String, Object> headers) {
+		boolean any = arguments != null && "any".equals(String.valueOf(arguments.get("x-match")));
+		int matched = 0;
+		int expected = 0;
+		if (arguments != null) {
+			for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+				if (argument.getKey().startsWith("x-")) {
+					continue;
+				}
+				expected++;
+				Object value = headers != null ? headers.get(argument.getKey()) : null;
+				if (value != null && (argument.getValue() == null || String.valueOf(argument.getValue()).equals(
+						String.valueOf(value)))) {
+					matched++;
+				}
+			}
+		}
+		return any ? matched > 0 : matched == expected;
+	}
+
+	/**
+	 * Picks one binding by the hash of the routing key, with the binding keys as weights
+	 */
+	private Binding consistentHash(String routingKey) {
+		int totalWeight = 0;
+		for (Binding binding : bindings) {
+			totalWeight += binding.weight();
+		}
+		if (totalWeight == 0) {
+			return null;
+		}
+		int hash = routingKey.hashCode();
+		int point = Math.floorMod(hash ^ (hash >>> 16), totalWeight);
+		for (Binding binding : bindings) {
+			point -= binding.weight();
+			if (point < 0) {
+				return binding;
+			}
+		}
+		return null;
+	}
+
+	static class Binding {
+
+		final String destination;
+		final boolean queue;
+		final String routingKey;
+		final Map<String, Object> arguments;
+
+		Binding(String destination, boolean queue, String routingKey, Map<String, Object> arguments) {
+			this.destination = destination;
+			this.queue = queue;
+			this.routingKey = routingKey != null ? routingKey : "";
+			this.arguments = arguments != null ? arguments : Collections.emptyMap();
+		}
+
+		int weight() {
+			try {
+				return Math.max(0, Integer.parseInt(routingKey));
+			} catch (NumberFormatException e) {
+				return 1;
+			}
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Binding)) {
+				return false;
+			}
+			Binding other = (Binding) obj;
+			return destination.equals(other.destination) && queue == other.queue && routingKey.equals(
+					other.routingKey) && arguments.equals(other.arguments);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(destination, queue, routingKey);
+		}
+	}
+
+}
@@ -0,0 +1,22 @@
+package io.corbel.lib.rabbitmq.test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Message published to the {@link EmbeddedBroker}, shared by all the queues it is routed to
+ */
+class BrokerMessage {
+
+	final String exchange;
+	final String routingKey;
+	final BasicProperties properties;
+	final byte[] body;
+
+	BrokerMessage(String exchange, String routingKey, BasicProperties properties, byte[] body) {
+		this.exchange = exchange;
+		this.routingKey = routingKey;
+		this.properties = properties;
+		this.body = body;
+	}
+
+}
@@ -0,0 +1,195 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of the {@link EmbeddedBroker}, delivering its ready messages round robin to the consumers with credit left.
+ *
+ * Messages expire from the head of the queue, as in RabbitMQ, and are dead lettered when they expire, are rejected
+ * without requeue or are dropped from the head because the queue is full.
+ */
+class BrokerQueue {
+
+	final String name;
+	final boolean durable;
+	final boolean autoDelete;
+	final BrokerConnection owner;
+	final Map<String, Object> arguments;
+
+	private final EmbeddedBroker broker;
+	private final Deque<Entry> ready = new ArrayDeque<>();
+	private final List<BrokerConsumer> consumers = new ArrayList<>();
+	private final long ttl;
+	private final long maxLength;
+	private final long maxLengthBytes;
+	private final boolean rejectPublish;
+	private long readyBytes;
+	private int nextConsumer;
+	private boolean deleted;
+
+	BrokerQueue(EmbeddedBroker broker, String name, boolean durable, boolean autoDelete, BrokerConnection owner,
+			Map<String, Object> arguments) {
+		this.broker = broker;
+		this.name = name;
+		this.durable = durable;
+		this.autoDelete = autoDelete;
+		this.owner = owner;
+		this.arguments = arguments != null ? arguments : Collections.emptyMap();
+		this.ttl = longArgument("x-message-ttl");
+		this.maxLength = longArgument("x-max-length");
+		this.maxLengthBytes = longArgument("x-max-length-bytes");
+		this.rejectPublish = "reject-publish".equals(String.valueOf(this.arguments.get("x-overflow")));
+	}
+
+	/**
+	 * @return false if the queue is full and rejects new messages
+	 */
+	boolean enqueue(BrokerMessage message, long now) {
+		if (rejectPublish && ((maxLength >= 0 && ready.size() >= maxLength) || (maxLengthBytes >= 0 && readyBytes
+				+ message.body.length > maxLengthBytes))) {
+			return false;
+		}
+		ready.add(new Entry(message, expiresAt(message, now)));
+		readyBytes += message.body.length;
+		while ((maxLength >= 0 && ready.size() > maxLength) || (maxLengthBytes >= 0 && readyBytes > maxLengthBytes)) {
+			broker.deadLetter(this, poll(), "maxlen");
+		}
+		dispatch(now);
+		return true;
+	}
+
+	/**
+	 * Puts back an unacknowledged message at the head of the queue, to be dispatched by the caller
+	 */
+	void requeue(Entry entry) {
+		if (!deleted) {
+			entry.redelivered = true;
+			ready.addFirst(entry);
+			readyBytes += entry.message.body.length;
+		}
+	}
+
+	Entry poll(long now) {
+		expire(now);
+		return poll();
+	}
+
+	void expire(long now) {
+		Entry head;
+		while ((head = ready.peek()) != null && head.expiresAt <= now) {
+			broker.deadLetter(this, poll(), "expired");
+		}
+	}
+
+	void dispatch(long now) {
+		while (!deleted && !ready.isEmpty()) {
+			BrokerConsumer consumer = nextConsumer();
+			Entry entry = consumer != null ? poll(now) : null;
+			if (entry == null) {
+				return;
+			}
+			consumer.channel.deliver(consumer, this, entry);
+		}
+	}
+
+	void addConsumer(BrokerConsumer consumer) {
+		consumers.add(consumer);
+	}
+
+	/**
+	 * @return true if it was the last consumer of an auto-delete queue, which must be deleted
+	 */
+	boolean removeConsumer(BrokerConsumer consumer) {
+		return consumers.remove(consumer) && consumers.isEmpty() && autoDelete;
+	}
+
+	boolean hasExclusiveConsumer() {
+		return consumers.stream().anyMatch(consumer -> consumer.exclusive);
+	}
+
+	List<BrokerConsumer> getConsumers() {
+		return new ArrayList<>(consumers);
+	}
+
+	int getMessageCount() {
+		return ready.size();
+	}
+
+	int getConsumerCount() {
+		return consumers.size();
+	}
+
+	int purge() {
+		int count = ready.size();
+		ready.clear();
+		readyBytes = 0;
+		return count;
+	}
+
+	void delete() {
+		deleted = true;
+		consumers.clear();
+		purge();
+	}
+
+	boolean isDeleted() {
+		return deleted;
+	}
+
+	private Entry poll() {
+		Entry entry = ready.poll();
+		if (entry != null) {
+			readyBytes -= entry.message.body.length;
+		}
+		return entry;
+	}
+
+	private BrokerConsumer nextConsumer() {
+		int size = consumers.size();
+		for (int i = 0; i < size; i++) {
+			int index = (nextConsumer + i) % size;
+			BrokerConsumer consumer = consumers.get(index);
+			if (consumer.hasCredit()) {
+				nextConsumer = (index + 1) % size;
+				return consumer;
+			}
+		}
+		return null;
+	}
+
+	private long expiresAt(BrokerMessage message, long now) {
+		long expiresAt = ttl >= 0 ? now + ttl : Long.MAX_VALUE;
+		String expiration = message.properties.getExpiration();
+		if (expiration != null) {
+			try {
+				expiresAt = Math.min(expiresAt, now + Long.parseLong(expiration));
+			} catch (NumberFormatException e) {
+				// Invalid expirations are ignored
+			}
+		}
+		return expiresAt;
+	}
+
+	private long longArgument(String name) {
+		Object value = arguments.get(name);
+		return value instanceof Number ? ((Number) value).longValue() : -1;
+	}
+
+	static class Entry {
+
+		final BrokerMessage message;
+		final long expiresAt;
+		boolean redelivered;
+
+		Entry(BrokerMessage message, long expiresAt) {
+			this.message = message;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
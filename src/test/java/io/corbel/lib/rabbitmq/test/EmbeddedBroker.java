@@ -0,0 +1,498 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.PropertiesPropertySource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+import io.corbel.lib.rabbitmq.test.BrokerExchange.Binding;
+
+/**
+ * In-process stand-in of a RabbitMQ broker, speaking AMQP 0-9-1 on a loopback port, so tests exercise the real client,
+ * Spring AMQP and this library without an external broker. It is wired into an
+ * {@link io.corbel.lib.rabbitmq.ioc.AbstractRabbitMQConfiguration} through its connection properties, see
+ * {@link #register(ConfigurableEnvironment)}.
+ *
+ * Everything is kept in memory, with the subset of RabbitMQ used by this library: direct, fanout, topic, headers and
+ * consistent hash exchanges, exchange to exchange bindings and alternate exchanges, exclusive and auto-delete queues
+ * with message TTL, max length and dead lettering, consumers with prefetch, basic.get, publisher confirms, mandatory
+ * returns and direct reply-to. Transactions are not supported, and unknown queue arguments are ignored.
+ */
+public class EmbeddedBroker implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EmbeddedBroker.class);
+
+	public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+	public static final String DEFAULT_USERNAME = "guest";
+	public static final String DEFAULT_PASSWORD = "guest";
+
+	private static final long EXPIRY_INTERVAL_MILLIS = 10;
+
+	private final int requestedPort;
+	private final String username;
+	private final String password;
+	private final Map<String, BrokerExchange> exchanges = new HashMap<>();
+	private final Map<String, BrokerQueue> queues = new HashMap<>();
+	private final Map<String, BrokerChannel> replyTo = new HashMap<>();
+	private final Set<BrokerConnection> connections = new HashSet<>();
+	private ServerSocket serverSocket;
+	private ScheduledExecutorService expirer;
+	private int connectionIds;
+
+	/**
+	 * Broker on a free port
+	 */
+	public EmbeddedBroker() {
+		this(0);
+	}
+
+	public EmbeddedBroker(int port) {
+		this(port, DEFAULT_USERNAME, DEFAULT_PASSWORD);
+	}
+
+	public EmbeddedBroker(int port, String username, String password) {
+		this.requestedPort = port;
+		this.username = username;
+		this.password = password;
+	}
+
+	public synchronized EmbeddedBroker start() throws IOException {
+		if (serverSocket != null) {
+			return this;
+		}
+		declareDefaultExchanges();
+		ServerSocket server = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+		serverSocket = server;
+		Thread acceptor = new Thread(() -> accept(server), "embedded-broker-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("embedded-broker-expirer-");
+		threadFactory.setDaemon(true);
+		expirer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		expirer.scheduleWithFixedDelay(this::expire, EXPIRY_INTERVAL_MILLIS, EXPIRY_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * Closes the connections, as a broker shutdown does, and drops all the exchanges, queues and messages
+	 */
+	public void stop() {
+		ServerSocket server;
+		List<BrokerConnection> open;
+		synchronized (this) {
+			server = serverSocket;
+			if (server == null) {
+				return;
+			}
+			serverSocket = null;
+			expirer.shutdownNow();
+			open = new ArrayList<>(connections);
+		}
+		try {
+			server.close();
+		} catch (IOException e) {
+			LOG.debug("Unable to close embedded broker server socket", e);
+		}
+		open.forEach(BrokerConnection::forceClose);
+		synchronized (this) {
+			exchanges.clear();
+			queues.clear();
+			replyTo.clear();
+		}
+	}
+
+	@Override
+	public void close() {
+		stop();
+	}
+
+	public String getHost() {
+		return InetAddress.getLoopbackAddress().getHostAddress();
+	}
+
+	public synchronized int getPort() {
+		if (serverSocket == null) {
+			throw new IllegalStateException("Embedded broker not started");
+		}
+		return serverSocket.getLocalPort();
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @return the properties read by {@link io.corbel.lib.rabbitmq.ioc.AbstractRabbitMQConfiguration} to connect to
+	 *         this broker
+	 */
+	public Properties getProperties() {
+		return getProperties(null);
+	}
+
+	/**
+	 * @param configPrefix the config prefix of the configuration, or null
+	 */
+	public Properties getProperties(String configPrefix) {
+		String prefix = configPrefix != null ? configPrefix + "." : "";
+		Properties properties = new Properties();
+		properties.setProperty(prefix + "rabbitmq.host", getHost());
+		properties.setProperty(prefix + "rabbitmq.port", Integer.toString(getPort()));
+		properties.setProperty(prefix + "rabbitmq.username", username);
+		properties.setProperty(prefix + "rabbitmq.password", password);
+		return properties;
+	}
+
+	/**
+	 * Adds the connection properties of this broker to the environment, overriding any other
+	 */
+	public void register(ConfigurableEnvironment environment) {
+		environment.getPropertySources().addFirst(new PropertiesPropertySource("embeddedBroker", getProperties()));
+	}
+
+	public synchronized boolean hasExchange(String name) {
+		return exchanges.containsKey(name);
+	}
+
+	public synchronized boolean hasQueue(String name) {
+		return queues.containsKey(name);
+	}
+
+	/**
+	 * @return messages of the queue ready to be delivered, not counting the unacknowledged ones
+	 */
+	public synchronized int getMessageCount(String queueName) {
+		return existingQueue(queueName).getMessageCount();
+	}
+
+	public synchronized int getConsumerCount(String queueName) {
+		return existingQueue(queueName).getConsumerCount();
+	}
+
+	public synchronized int getConnectionCount() {
+		return connections.size();
+	}
+
+	synchronized void declareExchange(String name, String type, boolean passive, Map<String, Object> arguments) {
+		if (name.isEmpty()) {
+			return;
+		}
+		BrokerExchange exchange = exchanges.get(name);
+		if (exchange != null) {
+			if (!passive && !exchange.type.equals(type)) {
+				throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - inequivalent arg 'type' "
+						+ "for exchange '" + name + "'");
+			}
+			return;
+		}
+		if (passive) {
+			throw notFound("exchange", name);
+		}
+		if (!BrokerExchange.TYPES.contains(type)) {
+			throw new BrokerException(AMQP.COMMAND_INVALID, "COMMAND_INVALID - unknown exchange type '" + type + "'",
+					true);
+		}
+		exchanges.put(name, new BrokerExchange(name, type, arguments));
+	}
+
+	synchronized void deleteExchange(String name, boolean ifUnused) {
+		BrokerExchange exchange = exchanges.get(name);
+		if (exchange == null) {
+			return;
+		}
+		if (ifUnused && !exchange.bindings.isEmpty()) {
+			throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - exchange '" + name
+					+ "' in use");
+		}
+		exchanges.remove(name);
+		exchanges.values().forEach(other -> other.removeDestination(name, false));
+	}
+
+	synchronized BrokerQueue declareQueue(BrokerConnection connection, String name, boolean durable,
+			boolean exclusive, boolean autoDelete, Map<String, Object> arguments) {
+		BrokerQueue queue = queues.get(name);
+		if (queue == null) {
+			queue = new BrokerQueue(this, name, durable, autoDelete, exclusive ? connection : null, arguments);
+			queues.put(name, queue);
+		}
+		checkAccess(connection, queue);
+		return queue;
+	}
+
+	synchronized BrokerQueue getQueue(BrokerConnection connection, String name) {
+		BrokerQueue queue = queues.get(name);
+		if (queue == null) {
+			throw notFound("queue", name);
+		}
+		checkAccess(connection, queue);
+		return queue;
+	}
+
+	/**
+	 * @return number of messages deleted with the queue
+	 */
+	synchronized int deleteQueue(BrokerConnection connection, String name, boolean ifUnused, boolean ifEmpty) {
+		BrokerQueue queue = queues.get(name);
+		if (queue == null) {
+			return 0;
+		}
+		checkAccess(connection, queue);
+		if (ifUnused && queue.getConsumerCount() > 0) {
+			throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - queue '" + name + "' in use");
+		}
+		if (ifEmpty && queue.getMessageCount() > 0) {
+			throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - queue '" + name
+					+ "' not empty");
+		}
+		int count = queue.getMessageCount();
+		deleteQueue(queue);
+		return count;
+	}
+
+	/**
+	 * Deletes the queue and its bindings, cancelling its consumers
+	 */
+	synchronized void deleteQueue(BrokerQueue queue) {
+		if (queues.remove(queue.name, queue)) {
+			queue.getConsumers().forEach(consumer -> consumer.channel.cancelConsumer(consumer));
+			queue.delete();
+			exchanges.values().forEach(exchange -> exchange.removeDestination(queue.name, true));
+		}
+	}
+
+	synchronized void bind(String exchangeName, Binding binding) {
+		if (exchangeName.isEmpty()) {
+			throw new BrokerException(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on the default "
+					+ "exchange");
+		}
+		BrokerExchange exchange = existingExchange(exchangeName);
+		if (binding.queue ? !queues.containsKey(binding.destination) : !exchanges.containsKey(binding.destination)) {
+			throw notFound(binding.queue ? "queue" : "exchange", binding.destination);
+		}
+		exchange.bind(binding);
+	}
+
+	synchronized void unbind(String exchangeName, Binding binding) {
+		BrokerExchange exchange = exchanges.get(exchangeName);
+		if (exchange != null) {
+			exchange.unbind(binding);
+		}
+	}
+
+	/**
+	 * @return the queues the message is routed to, through exchange to exchange bindings and alternate exchanges
+	 */
+	synchronized List<BrokerQueue> route(String exchangeName, String routingKey, Map<String, Object> headers) {
+		Set<BrokerQueue> routed = new LinkedHashSet<>();
+		if (exchangeName.isEmpty()) {
+			BrokerQueue queue = queues.get(routingKey);
+			if (queue != null) {
+				routed.add(queue);
+			}
+		} else {
+			route(existingExchange(exchangeName), routingKey, headers, routed, new HashSet<>());
+		}
+		return new ArrayList<>(routed);
+	}
+
+	/**
+	 * Publishes the message removed from the queue to its dead letter exchange, if any, with the x-death header
+	 */
+	synchronized void deadLetter(BrokerQueue queue, BrokerQueue.Entry entry, String reason) {
+		Object exchangeArgument = queue.arguments.get("x-dead-letter-exchange");
+		if (exchangeArgument == null) {
+			return;
+		}
+		String exchangeName = exchangeArgument.toString();
+		if (!exchangeName.isEmpty() && !exchanges.containsKey(exchangeName)) {
+			return;
+		}
+		BrokerMessage message = entry.message;
+		Object routingKeyArgument = queue.arguments.get("x-dead-letter-routing-key");
+		String routingKey = routingKeyArgument != null ? routingKeyArgument.toString() : message.routingKey;
+		Map<String, Object> headers = message.properties.getHeaders() != null ? new HashMap<>(message.properties
+				.getHeaders()) : new HashMap<>();
+		headers.put("x-death", death(headers.get("x-death"), queue, message, reason));
+		BasicProperties properties = message.properties.builder().headers(headers).expiration(null).build();
+		BrokerMessage deadLettered = new BrokerMessage(exchangeName, routingKey, properties, message.body);
+		long now = System.currentTimeMillis();
+		for (BrokerQueue target : route(exchangeName, routingKey, headers)) {
+			target.enqueue(deadLettered, now);
+		}
+	}
+
+	synchronized String registerReplyTo(BrokerChannel channel) {
+		String address = DIRECT_REPLY_TO + "." + generateName("");
+		replyTo.put(address, channel);
+		return address;
+	}
+
+	synchronized void unregisterReplyTo(String address) {
+		replyTo.remove(address);
+	}
+
+	/**
+	 * @return false if the channel of the direct reply-to address is gone
+	 */
+	synchronized boolean reply(String address, BrokerMessage message) {
+		BrokerChannel channel = replyTo.get(address);
+		if (channel == null) {
+			return false;
+		}
+		channel.deliverReply(address, message);
+		return true;
+	}
+
+	String generateName(String prefix) {
+		return prefix + UUID.randomUUID();
+	}
+
+	/**
+	 * Drops the state of a closed connection, deleting its exclusive queues
+	 */
+	synchronized void disconnected(BrokerConnection connection) {
+		connections.remove(connection);
+		new ArrayList<>(queues.values()).stream().filter(queue -> queue.owner == connection).forEach(
+				this::deleteQueue);
+	}
+
+	private void accept(ServerSocket server) {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				BrokerConnection connection = new BrokerConnection(this, socket);
+				int id;
+				synchronized (this) {
+					connections.add(connection);
+					id = ++connectionIds;
+				}
+				connection.start(id);
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					LOG.warn("Embedded broker unable to accept a connection", e);
+				}
+			}
+		}
+	}
+
+	private synchronized void expire() {
+		long now = System.currentTimeMillis();
+		new ArrayList<>(queues.values()).forEach(queue -> queue.expire(now));
+	}
+
+	private void route(BrokerExchange exchange, String routingKey, Map<String, Object> headers,
+			Set<BrokerQueue> routed, Set<String> visited) {
+		if (!visited.add(exchange.name)) {
+			return;
+		}
+		int before = routed.size();
+		for (Binding binding : exchange.match(routingKey, headers)) {
+			if (binding.queue) {
+				BrokerQueue queue = queues.get(binding.destination);
+				if (queue != null) {
+					routed.add(queue);
+				}
+			} else {
+				BrokerExchange destination = exchanges.get(binding.destination);
+				if (destination != null) {
+					route(destination, routingKey, headers, routed, visited);
+				}
+			}
+		}
+		String alternateExchange = exchange.getAlternateExchange();
+		if (routed.size() == before && alternateExchange != null && exchanges.containsKey(alternateExchange)) {
+			route(exchanges.get(alternateExchange), routingKey, headers, routed, visited);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object> death(Object previous, BrokerQueue queue, BrokerMessage message, String reason) {
+		List<Object> deaths = new ArrayList<>();
+		long count = 1;
+		if (previous instanceof List) {
+			for (Object death : (List<Object>) previous) {
+				if (death instanceof Map && queue.name.equals(String.valueOf(((Map<String, Object>) death).get(
+						"queue"))) && reason.equals(String.valueOf(((Map<String, Object>) death).get("reason")))) {
+					Object previousCount = ((Map<String, Object>) death).get("count");
+					count += previousCount instanceof Number ? ((Number) previousCount).longValue() : 0;
+				} else {
+					deaths.add(death);
+				}
+			}
+		}
+		Map<String, Object> death = new HashMap<>();
+		death.put("queue", queue.name);
+		death.put("reason", reason);
+		death.put("count", count);
+		death.put("time", new Date());
+		death.put("exchange", message.exchange);
+		death.put("routing-keys", Collections.singletonList(message.routingKey));
+		deaths.add(0, death);
+		return deaths;
+	}
+
+	private void declareDefaultExchanges() {
+		exchanges.put("amq.direct", new BrokerExchange("amq.direct", "direct", null));
+		exchanges.put("amq.fanout", new BrokerExchange("amq.fanout", "fanout", null));
+		exchanges.put("amq.topic", new BrokerExchange("amq.topic", "topic", null));
+		exchanges.put("amq.headers", new BrokerExchange("amq.headers", "headers", null));
+		exchanges.put("amq.match", new BrokerExchange("amq.match", "headers", null));
+	}
+
+	private BrokerExchange existingExchange(String name) {
+		BrokerExchange exchange = exchanges.get(name);
+		if (exchange == null) {
+			throw notFound("exchange", name);
+		}
+		return exchange;
+	}
+
+	private BrokerQueue existingQueue(String name) {
+		BrokerQueue queue = queues.get(name);
+		if (queue == null) {
+			throw new IllegalArgumentException("No queue " + name);
+		}
+		return queue;
+	}
+
+	private static void checkAccess(BrokerConnection connection, BrokerQueue queue) {
+		if (queue.owner != null && queue.owner != connection) {
+			throw new BrokerException(AMQP.RESOURCE_LOCKED, "RESOURCE_LOCKED - cannot obtain exclusive access to "
+					+ "locked queue '" + queue.name + "'");
+		}
+	}
+
+	private static BrokerException notFound(String kind, String name) {
+		return new BrokerException(AMQP.NOT_FOUND, "NOT_FOUND - no " + kind + " '" + name + "' in vhost '/'");
+	}
+
+}
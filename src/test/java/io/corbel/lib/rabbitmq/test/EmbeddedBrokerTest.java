@@ -0,0 +1,197 @@
+package io.corbel.lib.rabbitmq.test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import com.rabbitmq.client.GetResponse;
+
+import io.corbel.lib.rabbitmq.config.RabbitMQConfigurer;
+import io.corbel.lib.rabbitmq.config.ShardedQueue;
+import io.corbel.lib.rabbitmq.listener.ReplyingMessageListener;
+import io.corbel.lib.rabbitmq.publisher.DirectReplyToClient;
+
+public class EmbeddedBrokerTest {
+
+	private EmbeddedBroker broker;
+	private CachingConnectionFactory connectionFactory;
+	private RabbitAdmin admin;
+	private RabbitTemplate template;
+
+	@Before
+	public void setUp() throws Exception {
+		broker = new EmbeddedBroker().start();
+		connectionFactory = new CachingConnectionFactory(broker.getHost(), broker.getPort());
+		admin = new RabbitAdmin(connectionFactory);
+		template = new RabbitTemplate(connectionFactory);
+	}
+
+	@After
+	public void tearDown() {
+		connectionFactory.destroy();
+		broker.stop();
+	}
+
+	@Test
+	public void testTopicRouting() {
+		TopicExchange exchange = new TopicExchange("events");
+		Queue queue = new Queue("orders");
+		admin.declareExchange(exchange);
+		admin.declareQueue(queue);
+		admin.declareBinding(BindingBuilder.bind(queue).to(exchange).with("order.#"));
+
+		template.convertAndSend("events", "order.created.eu", "created");
+		template.convertAndSend("events", "user.created", "ignored");
+
+		// A synchronous method of the connection is handled after the publishes
+		int messageCount = template.execute(channel -> channel.queueDeclarePassive("orders").getMessageCount());
+		assertThat(messageCount).isEqualTo(1);
+		assertThat(template.receiveAndConvert("orders")).isEqualTo("created");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRejectedMessageIsDeadLettered() {
+		Map<String, Object> arguments = new HashMap<>();
+		arguments.put("x-dead-letter-exchange", "");
+		arguments.put("x-dead-letter-routing-key", "orders.dead");
+		admin.declareQueue(new Queue("orders", true, false, false, arguments));
+		admin.declareQueue(new Queue("orders.dead"));
+		template.convertAndSend("orders", "failing");
+
+		template.execute(channel -> {
+			GetResponse response = channel.basicGet("orders", false);
+			channel.basicReject(response.getEnvelope().getDeliveryTag(), false);
+			return null;
+		});
+
+		Message deadLettered = template.receive("orders.dead");
+		assertThat(new String(deadLettered.getBody())).isEqualTo("failing");
+		List<Map<String, Object>> deaths = (List<Map<String, Object>>) deadLettered.getMessageProperties()
+				.getHeaders().get("x-death");
+		assertThat(deaths.get(0).get("reason").toString()).isEqualTo("rejected");
+		assertThat(deaths.get(0).get("queue").toString()).isEqualTo("orders");
+	}
+
+	@Test(expected = AmqpException.class)
+	public void testPassiveDeclareOfMissingQueueFails() {
+		template.execute(channel -> channel.queueDeclarePassive("missing"));
+	}
+
+	@Test
+	public void testPublisherConfirms() {
+		admin.declareQueue(new Queue("confirmed"));
+
+		boolean confirmed = template.execute(channel -> {
+			channel.confirmSelect();
+			for (int i = 0; i < 10; i++) {
+				channel.basicPublish("", "confirmed", null, new byte[] { (byte) i });
+			}
+			return channel.waitForConfirms(1000);
+		});
+
+		assertThat(confirmed).isTrue();
+		assertThat(broker.getMessageCount("confirmed")).isEqualTo(10);
+	}
+
+	@Test
+	public void testDirectReplyTo() throws Exception {
+		admin.declareQueue(new Queue("rpc"));
+		SimpleMessageListenerContainer server = new SimpleMessageListenerContainer(connectionFactory);
+		server.setQueueNames("rpc");
+		server.setMessageListener(new ReplyingMessageListener(request -> new Message(("re:" + new String(request
+				.getBody())).getBytes(), new MessageProperties())));
+		server.start();
+		DirectReplyToClient client = new DirectReplyToClient(connectionFactory, null, 5000);
+		try {
+			Message reply = client.sendAndReceive("", "rpc", new Message("ping".getBytes(), new MessageProperties()))
+					.get(5, TimeUnit.SECONDS);
+			assertThat(new String(reply.getBody())).isEqualTo("re:ping");
+		} finally {
+			client.destroy();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testDirectReplyToReleasesChannelPermits() throws Exception {
+		admin.declareQueue(new Queue("rpc"));
+		SimpleMessageListenerContainer server = new SimpleMessageListenerContainer(connectionFactory);
+		server.setQueueNames("rpc");
+		server.setMessageListener(new ReplyingMessageListener(request -> request));
+		server.start();
+		CachingConnectionFactory clientConnectionFactory = new CachingConnectionFactory(broker.getHost(), broker
+				.getPort());
+		clientConnectionFactory.setChannelCacheSize(1);
+		clientConnectionFactory.setChannelCheckoutTimeout(200);
+		try {
+			// Each client checks out the only channel and must give it back when destroyed
+			for (int i = 0; i < 3; i++) {
+				DirectReplyToClient client = new DirectReplyToClient(clientConnectionFactory, null, 5000);
+				client.sendAndReceive("", "rpc", new Message("ping".getBytes(), new MessageProperties())).get(5,
+						TimeUnit.SECONDS);
+				client.destroy();
+			}
+		} finally {
+			clientConnectionFactory.destroy();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testStandbyContainerTakesOverShard() throws Exception {
+		String shard = ShardedQueue.shardQueueName("orders", 0);
+		admin.declareQueue(new Queue(shard));
+		RabbitMQConfigurer configurer = new RabbitMQConfigurer(admin, connectionFactory);
+		BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+		SimpleMessageListenerContainer active = shardContainer(configurer, shard, handled, "active");
+		SimpleMessageListenerContainer standby = shardContainer(configurer, shard, handled, "standby");
+		try {
+			active.start();
+			template.convertAndSend(shard, "first");
+			assertThat(handled.poll(5, TimeUnit.SECONDS)).isEqualTo("active:first");
+			standby.start();
+
+			active.stop();
+			template.convertAndSend(shard, "second");
+
+			assertThat(handled.poll(5, TimeUnit.SECONDS)).isEqualTo("standby:second");
+		} finally {
+			active.stop();
+			standby.stop();
+			configurer.destroy();
+		}
+	}
+
+	private SimpleMessageListenerContainer shardContainer(RabbitMQConfigurer configurer, String shard,
+			BlockingQueue<String> handled, String instance) {
+		return configurer.shardListenerContainers(Collections.singletonList(shard), container -> {
+			container.setRecoveryInterval(100);
+			container.setMessageListener((MessageListener) message -> handled.add(
+					instance + ":" + new String(message.getBody())));
+			return container;
+		}).get(0);
+	}
+
+}
@@ -0,0 +1,147 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import io.corbel.lib.rabbitmq.config.AmqpConfigurer;
+import io.corbel.lib.rabbitmq.metrics.HistogramTimer;
+
+/**
+ * Generates load through the library stack: messages are published with the template to a queue consumed by a
+ * listener container of the configurer, which measures the latency of each one, and the throughput of the run.
+ *
+ * With a rate, the messages are sent on a fixed schedule and their latency counts from the time they were due, so a
+ * publisher falling behind shows up in the percentiles instead of being hidden by it. Without a rate, the publishers
+ * send as fast as they can, which measures the maximum throughput.
+ */
+public class LoadGenerator {
+
+	static final String SENT_HEADER = "x-load-generator-sent";
+
+	private final AmqpConfigurer configurer;
+	private final AmqpTemplate template;
+
+	public LoadGenerator(AmqpConfigurer configurer, AmqpTemplate template) {
+		this.configurer = configurer;
+		this.template = template;
+	}
+
+	public LoadReport run(LoadOptions options) throws InterruptedException {
+		configurer.queue(options.getQueueName());
+		Phase warmup = new Phase(options.getWarmupMessages());
+		Phase measured = new Phase(options.getMessages());
+		SimpleMessageListenerContainer container = configurer.listenerContainer(
+				(SimpleMessageListenerContainer listenerContainer) -> {
+					listenerContainer.setConcurrentConsumers(options.getConsumers());
+					listenerContainer.setPrefetchCount(options.getPrefetch());
+					listenerContainer.setMessageListener((MessageListener) message -> (warmup.isDone() ? measured
+							: warmup).received(message));
+					return listenerContainer;
+				}, options.getQueueName());
+		container.start();
+		try {
+			send(options, warmup);
+			warmup.await(options.getTimeoutMillis());
+			long start = System.nanoTime();
+			send(options, measured);
+			measured.await(options.getTimeoutMillis());
+			return new LoadReport(options.getMessages(), Math.max(0, measured.lastReceived.get() - start),
+					measured.latency);
+		} finally {
+			container.stop();
+		}
+	}
+
+	private void send(LoadOptions options, Phase phase) throws InterruptedException {
+		int publishers = options.getPublishers();
+		ExecutorService executor = Executors.newFixedThreadPool(publishers, new CustomizableThreadFactory(
+				"load-generator-"));
+		try {
+			List<Future<?>> results = new ArrayList<>(publishers);
+			for (int i = 0; i < publishers; i++) {
+				int count = phase.messages / publishers + (i < phase.messages % publishers ? 1 : 0);
+				results.add(executor.submit(() -> publish(options, count)));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+					: new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void publish(LoadOptions options, int count) {
+		byte[] body = new byte[options.getMessageBytes()];
+		ThreadLocalRandom.current().nextBytes(body);
+		long interval = options.getRatePerSecond() > 0 ? TimeUnit.SECONDS.toNanos(1) * options.getPublishers()
+				/ options.getRatePerSecond() : 0;
+		long due = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long sent;
+			if (interval > 0) {
+				due += interval;
+				long delay;
+				while ((delay = due - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(delay);
+				}
+				sent = due;
+			} else {
+				sent = System.nanoTime();
+			}
+			MessageProperties properties = new MessageProperties();
+			properties.setHeader(SENT_HEADER, sent);
+			template.send("", options.getQueueName(), new Message(body, properties));
+		}
+	}
+
+	private static class Phase {
+
+		private final int messages;
+		private final CountDownLatch remaining;
+		private final HistogramTimer latency = new HistogramTimer();
+		private final AtomicLong lastReceived = new AtomicLong();
+
+		Phase(int messages) {
+			this.messages = messages;
+			this.remaining = new CountDownLatch(messages);
+		}
+
+		void received(Message message) {
+			long now = System.nanoTime();
+			Object sent = message.getMessageProperties().getHeaders().get(SENT_HEADER);
+			if (sent instanceof Long) {
+				latency.record(now - (Long) sent);
+			}
+			lastReceived.accumulateAndGet(now, Math::max);
+			remaining.countDown();
+		}
+
+		boolean isDone() {
+			return remaining.getCount() == 0;
+		}
+
+		void await(long timeoutMillis) throws InterruptedException {
+			remaining.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package io.corbel.lib.rabbitmq.test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.StandardEnvironment;
+
+import io.corbel.lib.rabbitmq.config.RabbitMQConfigurer;
+import io.corbel.lib.rabbitmq.ioc.AbstractRabbitMQConfiguration;
+
+/**
+ * Load regression test against the embedded broker, through the beans of {@link AbstractRabbitMQConfiguration}. The
+ * default build only checks that every message arrives. The thresholds are {@link LoadTests}, run with
+ * {@code mvn test -Pload-tests}: they are loose by default and can be tightened for a given CI machine with the system
+ * properties rabbitmq.load.minThroughput and rabbitmq.load.maxP99Millis.
+ */
+public class LoadGeneratorTest {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LoadGeneratorTest.class);
+
+	private EmbeddedBroker broker;
+	private RabbitMQConfigurer configurer;
+	private LoadGenerator generator;
+
+	@Before
+	public void setUp() throws Exception {
+		broker = new EmbeddedBroker().start();
+		StandardEnvironment environment = new StandardEnvironment();
+		broker.register(environment);
+		AbstractRabbitMQConfiguration configuration = new AbstractRabbitMQConfiguration() {
+			@Override
+			protected Environment getEnvironment() {
+				return environment;
+			}
+		};
+		configurer = (RabbitMQConfigurer) configuration.amqpConfigurer();
+		generator = new LoadGenerator(configurer, configuration.amqpTemplate());
+	}
+
+	@After
+	public void tearDown() {
+		configurer.destroy();
+		broker.stop();
+	}
+
+	@Test
+	public void testThroughput() throws InterruptedException {
+		LoadReport report = run(throughputOptions());
+
+		assertThat(report.getReceived()).as(report.toString()).isEqualTo(5000);
+	}
+
+	@Test
+	@Category(LoadTests.class)
+	public void testThroughputThreshold() throws InterruptedException {
+		LoadReport report = run(throughputOptions());
+
+		assertThat(report.getReceived()).as(report.toString()).isEqualTo(5000);
+		assertThat(report.getThroughput()).as(report.toString()).isGreaterThan(Double.parseDouble(System
+				.getProperty("rabbitmq.load.minThroughput", "100")));
+	}
+
+	@Test
+	public void testLatencyAtFixedRate() throws InterruptedException {
+		LoadReport report = run(latencyOptions());
+
+		assertThat(report.getReceived()).as(report.toString()).isEqualTo(1000);
+		assertThat(report.getP50Millis()).as(report.toString()).isLessThanOrEqualTo(report.getP99Millis());
+	}
+
+	@Test
+	@Category(LoadTests.class)
+	public void testLatencyThreshold() throws InterruptedException {
+		LoadReport report = run(latencyOptions());
+
+		assertThat(report.getReceived()).as(report.toString()).isEqualTo(1000);
+		assertThat(report.getP99Millis()).as(report.toString()).isLessThan(Double.parseDouble(System.getProperty(
+				"rabbitmq.load.maxP99Millis", "1000")));
+	}
+
+	private LoadReport run(LoadOptions options) throws InterruptedException {
+		LoadReport report = generator.run(options);
+		LOG.info("Load of queue {}: {}", options.getQueueName(), report);
+		return report;
+	}
+
+	private LoadOptions throughputOptions() {
+		LoadOptions options = new LoadOptions();
+		options.setQueueName("load.throughput");
+		options.setMessages(5000);
+		options.setPublishers(2);
+		options.setConsumers(2);
+		return options;
+	}
+
+	private LoadOptions latencyOptions() {
+		LoadOptions options = new LoadOptions();
+		options.setQueueName("load.latency");
+		options.setMessages(1000);
+		options.setWarmupMessages(200);
+		options.setRatePerSecond(1000);
+		return options;
+	}
+
+}
@@ -0,0 +1,111 @@
+package io.corbel.lib.rabbitmq.test;
+
+/**
+ * Options of a {@link LoadGenerator} run
+ */
+public class LoadOptions {
+
+	private String queueName = "load-generator";
+	private int messages = 10000;
+	private int warmupMessages = 1000;
+	private int messageBytes = 256;
+	private int publishers = 1;
+	private int consumers = 1;
+	private int prefetch = 250;
+	private int ratePerSecond = 0;
+	private long timeoutMillis = 60000;
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	/**
+	 * Queue declared, and consumed, by the generator
+	 */
+	public void setQueueName(String queueName) {
+		this.queueName = queueName;
+	}
+
+	public int getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Messages measured
+	 */
+	public void setMessages(int messages) {
+		this.messages = messages;
+	}
+
+	public int getWarmupMessages() {
+		return warmupMessages;
+	}
+
+	/**
+	 * Messages sent and received before measuring, not reported
+	 */
+	public void setWarmupMessages(int warmupMessages) {
+		this.warmupMessages = warmupMessages;
+	}
+
+	public int getMessageBytes() {
+		return messageBytes;
+	}
+
+	public void setMessageBytes(int messageBytes) {
+		this.messageBytes = messageBytes;
+	}
+
+	public int getPublishers() {
+		return publishers;
+	}
+
+	/**
+	 * Threads publishing through the template
+	 */
+	public void setPublishers(int publishers) {
+		this.publishers = publishers;
+	}
+
+	public int getConsumers() {
+		return consumers;
+	}
+
+	/**
+	 * Concurrent consumers of the listener container
+	 */
+	public void setConsumers(int consumers) {
+		this.consumers = consumers;
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(int prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public int getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	/**
+	 * Messages per second among all the publishers, or 0 to publish as fast as possible
+	 */
+	public void setRatePerSecond(int ratePerSecond) {
+		this.ratePerSecond = ratePerSecond;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Time to wait for each phase to be received
+	 */
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+}
@@ -0,0 +1,73 @@
+package io.corbel.lib.rabbitmq.test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import io.corbel.lib.rabbitmq.metrics.HistogramTimer;
+
+/**
+ * Result of a {@link LoadGenerator} run: throughput and latency percentiles of the messages received
+ */
+public class LoadReport {
+
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final long sent;
+	private final long elapsedNanos;
+	private final HistogramTimer latency;
+
+	public LoadReport(long sent, long elapsedNanos, HistogramTimer latency) {
+		this.sent = sent;
+		this.elapsedNanos = elapsedNanos;
+		this.latency = latency;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getReceived() {
+		return latency.getCount();
+	}
+
+	/**
+	 * @return time between the first send and the last reception
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return messages received per second
+	 */
+	public double getThroughput() {
+		return elapsedNanos > 0 ? getReceived() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos : 0;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 */
+	public double getLatencyMillis(double percentile) {
+		return latency.getPercentileNanos(percentile) / NANOS_PER_MILLI;
+	}
+
+	public double getP50Millis() {
+		return getLatencyMillis(50);
+	}
+
+	public double getP99Millis() {
+		return getLatencyMillis(99);
+	}
+
+	public double getMeanLatencyMillis() {
+		return latency.getMeanNanos() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%d/%d messages in %.2f s: %.0f msgs/s, latency p50 %.3f ms, p99 %.3f ms, "
+				+ "mean %.3f ms", getReceived(), sent, elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1),
+				getThroughput(), getP50Millis(), getP99Millis(), getMeanLatencyMillis());
+	}
+
+}
@@ -0,0 +1,7 @@
+package io.corbel.lib.rabbitmq.test;
+
+/**
+ * Category of the tests that assert wall-clock thresholds, which depend on the machine. They are excluded from the
+ * default build and run with the load-tests profile.
+ */
+public interface LoadTests {}